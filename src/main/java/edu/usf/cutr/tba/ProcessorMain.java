@@ -16,9 +16,13 @@
 package edu.usf.cutr.tba;
 
 
+import edu.usf.cutr.tba.constants.FirebaseConstants;
 import edu.usf.cutr.tba.exception.FirebaseFileNotInitializedException;
+import edu.usf.cutr.tba.io.ReplayDataSource;
+import edu.usf.cutr.tba.io.ShardMerger;
 import edu.usf.cutr.tba.manager.TravelBehaviorDataAnalysisManager;
 import edu.usf.cutr.tba.options.ProgramOptions;
+import edu.usf.cutr.tba.utils.ShardUtils;
 import edu.usf.cutr.tba.utils.StringUtils;
 import org.apache.commons.cli.*;
 
@@ -26,18 +30,37 @@ import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
 
 public class ProcessorMain {
     public static void main(String[] args) {
         Options options = createCommandLineOptions();
-        ProgramOptions programOptions = ProgramOptions.getInstance();
+        ProgramOptions.Builder optionsBuilder = new ProgramOptions.Builder();
 
         CommandLineParser parser = new DefaultParser();
         try {
             CommandLine cmd = parser.parse(options, args);
 
-            if (cmd.hasOption(ProgramOptions.KEY_FILE)) {
-                programOptions.setKeyFilePath(cmd.getOptionValue(ProgramOptions.KEY_FILE));
+            if (cmd.hasOption(ProgramOptions.MERGE_SHARDS)) {
+                // Only the outputs of the shards are read, so no admin key is needed
+                mergeShards(cmd);
+                return;
+            }
+
+            if (cmd.hasOption(ProgramOptions.REPLAY_DIR)) {
+                // The data is read from local dumps, so no admin key is needed
+                String replayDir = cmd.getOptionValue(ProgramOptions.REPLAY_DIR);
+                if (ReplayDataSource.findFile(replayDir, FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER) == null) {
+                    System.err.println("The replay directory doesn't contain an activity-transitions.jsonl file.");
+                    return;
+                }
+                if (cmd.hasOption(ProgramOptions.CACHE_DIR)) {
+                    System.err.println("Invalid command line option. cacheDir can't be used together with replayDir.");
+                    return;
+                }
+                optionsBuilder.setReplayDir(replayDir);
+            } else if (cmd.hasOption(ProgramOptions.KEY_FILE)) {
+                optionsBuilder.setKeyFilePath(cmd.getOptionValue(ProgramOptions.KEY_FILE));
             } else {
                 System.err.println("Firebase admin key is not provided. \n" +
                         "Provide an admin key using -keyFile path/to/file.json");
@@ -45,33 +68,33 @@ public class ProcessorMain {
             }
 
             if (cmd.hasOption(ProgramOptions.USER_ID)) {
-                programOptions.setUserId(cmd.getOptionValue(ProgramOptions.USER_ID));
+                optionsBuilder.setUserId(cmd.getOptionValue(ProgramOptions.USER_ID));
             }
 
             if (cmd.hasOption(ProgramOptions.NO_MERGE_STILL)) {
-                programOptions.setMergeStillEventsEnabled(false);
+                optionsBuilder.setMergeStillEventsEnabled(false);
             }
 
             if (cmd.hasOption(ProgramOptions.NO_MERGE_WALKING_RUNNING)) {
-                programOptions.setMergeAllWalkingAndRunningEventsEnabled(false);
+                optionsBuilder.setMergeAllWalkingAndRunningEventsEnabled(false);
             }
 
             if (cmd.hasOption(ProgramOptions.SAME_DAY_START_POINT)) {
                 String value = cmd.getOptionValue(ProgramOptions.SAME_DAY_START_POINT);
                 Integer i = Integer.valueOf(value);
-                programOptions.setSameDayStartPoint(i);
+                optionsBuilder.setSameDayStartPoint(i);
             }
 
             if (cmd.hasOption(ProgramOptions.STILL_EVENT_MERGE_THRESHOLD)) {
                 String value = cmd.getOptionValue(ProgramOptions.STILL_EVENT_MERGE_THRESHOLD);
                 Integer i = Integer.valueOf(value);
-                programOptions.setStillEventMergeThreshold(i);
+                optionsBuilder.setStillEventMergeThreshold(i);
             }
 
             if (cmd.hasOption(ProgramOptions.WALKING_RUNNING_EVENT_MERGE_THRESHOLD)) {
                 String value = cmd.getOptionValue(ProgramOptions.WALKING_RUNNING_EVENT_MERGE_THRESHOLD);
                 Integer i = Integer.valueOf(value);
-                programOptions.setWalkingRunningEventMergeThreshold(i);
+                optionsBuilder.setWalkingRunningEventMergeThreshold(i);
             }
 
             if (cmd.hasOption(ProgramOptions.START_DATE) && cmd.hasOption(ProgramOptions.END_DATE)) {
@@ -84,8 +107,8 @@ public class ProcessorMain {
                             "Please provide dates in using the format mm-dd-yyyy.");
                     return;
                 }
-                programOptions.setStartDate(dateStartMillis);
-                programOptions.setEndDate(dateEndMillis);
+                optionsBuilder.setStartDate(dateStartMillis);
+                optionsBuilder.setEndDate(dateEndMillis);
 
             } else if (cmd.hasOption(ProgramOptions.START_DATE)) {
                 System.err.println("startDate and endDate must be provided together. \n" +
@@ -104,16 +127,68 @@ public class ProcessorMain {
                 String newDir = StringUtils.validateAndParseFolderPath(argDir);
 
                 if (!newDir.isEmpty()) {
-                    programOptions.setOutputDir(newDir);
+                    optionsBuilder.setOutputDir(newDir);
                 } else {
                     // Error messages were provided in the validateAndParseOutputPath() method.
                     return;
                 }
             }
 
+            // Write the output of a shard to its own sub-folder of the output folder
+            if (cmd.hasOption(ProgramOptions.SHARD)) {
+                String[] shard = cmd.getOptionValue(ProgramOptions.SHARD).split("/");
+                int shardIndex = -1;
+                int shardCount = 0;
+                if (shard.length == 2) {
+                    try {
+                        shardIndex = Integer.parseInt(shard[0].trim());
+                        shardCount = Integer.parseInt(shard[1].trim());
+                    } catch (NumberFormatException e) {
+                        shardCount = 0;
+                    }
+                }
+                if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+                    System.err.println("Invalid command line option. shard must be index/count, with an index " +
+                            "from 0 to count - 1 (e.g., -shard 0/4).");
+                    return;
+                }
+                String shardDir = StringUtils.validateAndParseFolderPath(
+                        ShardUtils.getShardDir(optionsBuilder.getOutputDir(), shardIndex));
+                if (shardDir.isEmpty()) {
+                    return;
+                }
+                optionsBuilder.setOutputDir(shardDir).setShardIndex(shardIndex).setShardCount(shardCount);
+            }
+
             // Verify noKMZ option
             if (cmd.hasOption(ProgramOptions.SKIP_KMZ)) {
-                programOptions.setSkipKmz(true);
+                optionsBuilder.setSkipKmz(true);
+            }
+
+            if (cmd.hasOption(ProgramOptions.FAST_DISTANCE)) {
+                optionsBuilder.setFastDistance(true);
+            }
+
+            if (cmd.hasOption(ProgramOptions.TIME_ZONE_BOUNDS)) {
+                String[] values = cmd.getOptionValue(ProgramOptions.TIME_ZONE_BOUNDS).split(",");
+                double[] bounds = null;
+                if (values.length == 4) {
+                    bounds = new double[4];
+                    try {
+                        for (int i = 0; i < 4; i++) {
+                            bounds[i] = Double.parseDouble(values[i].trim());
+                        }
+                    } catch (NumberFormatException e) {
+                        bounds = null;
+                    }
+                }
+                if (bounds == null || bounds[0] < -90 || bounds[2] > 90 || bounds[1] < -180 || bounds[3] > 180 ||
+                        bounds[0] >= bounds[2] || bounds[1] >= bounds[3]) {
+                    System.err.println("Invalid command line option. timeZoneBounds must be minLat,minLon,maxLat," +
+                            "maxLon (e.g., -timeZoneBounds 18,-180,72,-50).");
+                    return;
+                }
+                optionsBuilder.setTimeZoneBounds(bounds);
             }
 
             // Verify and process file with multiple users
@@ -126,20 +201,139 @@ public class ProcessorMain {
                         System.err.println("The provided csv file for multiple userId's does not exist.");
                         return;
                     }
-                    programOptions.setMultiUserId(localPath.toString());
+                    optionsBuilder.setMultiUserId(localPath.toString());
                 } catch (InvalidPathException e) {
                     System.err.println("Invalid command line option. multiUserId is not a valid path." + e);
                     return;
                 }
             }
 
+            if (cmd.hasOption(ProgramOptions.THREADS)) {
+                String value = cmd.getOptionValue(ProgramOptions.THREADS);
+                int threads;
+                try {
+                    threads = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+                if (threads < 1) {
+                    System.err.println("Invalid command line option. threads must be a positive integer.");
+                    return;
+                }
+                optionsBuilder.setThreads(threads);
+            }
+
+            if (cmd.hasOption(ProgramOptions.ORDERED_FETCH)) {
+                optionsBuilder.setOrderedFetch(true);
+            }
+
+            if (cmd.hasOption(ProgramOptions.PREFETCH)) {
+                String value = cmd.getOptionValue(ProgramOptions.PREFETCH);
+                int prefetch;
+                try {
+                    prefetch = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    prefetch = -1;
+                }
+                if (prefetch < 0) {
+                    System.err.println("Invalid command line option. prefetch must be zero or a positive integer.");
+                    return;
+                }
+                optionsBuilder.setPrefetch(prefetch);
+            }
+
+            if (cmd.hasOption(ProgramOptions.RESUME)) {
+                optionsBuilder.setResume(true);
+            }
+
+            if (cmd.hasOption(ProgramOptions.WORK_STATS)) {
+                if (cmd.hasOption(ProgramOptions.REPLAY_DIR)) {
+                    // Listing all users first would load the whole replay files in memory
+                    System.err.println("Invalid command line option. workStats can't be used together with replayDir.");
+                    return;
+                }
+                optionsBuilder.setWorkStatsPath(cmd.getOptionValue(ProgramOptions.WORK_STATS));
+            }
+
+            try {
+                if (cmd.hasOption(ProgramOptions.MAX_READS_PER_SECOND)) {
+                    int maxReadsPerSecond = Integer.parseInt(cmd.getOptionValue(ProgramOptions.MAX_READS_PER_SECOND));
+                    optionsBuilder.setMaxReadsPerSecond(Math.max(maxReadsPerSecond, 0));
+                }
+                if (cmd.hasOption(ProgramOptions.MAX_CONCURRENT_READS)) {
+                    int maxConcurrentReads = Integer.parseInt(cmd.getOptionValue(ProgramOptions.MAX_CONCURRENT_READS));
+                    if (maxConcurrentReads < 1) {
+                        throw new NumberFormatException();
+                    }
+                    optionsBuilder.setMaxConcurrentReads(maxConcurrentReads);
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid command line option. maxReadsPerSecond must be an integer and " +
+                        "maxConcurrentReads a positive integer.");
+                return;
+            }
+
+            if (cmd.hasOption(ProgramOptions.INCREMENTAL)) {
+                if (cmd.hasOption(ProgramOptions.START_DATE) || cmd.hasOption(ProgramOptions.RESUME)) {
+                    System.err.println("Invalid command line option. incremental can't be used together with " +
+                            "startDate, endDate or resume.");
+                    return;
+                }
+                optionsBuilder.setIncrementalStatePath(cmd.getOptionValue(ProgramOptions.INCREMENTAL));
+                // The watermarks rely on the order of the documents in Firestore
+                optionsBuilder.setOrderedFetch(true);
+            }
+
+            if (cmd.hasOption(ProgramOptions.MEMORY_BUDGET)) {
+                long megabytes;
+                try {
+                    megabytes = Long.parseLong(cmd.getOptionValue(ProgramOptions.MEMORY_BUDGET));
+                } catch (NumberFormatException e) {
+                    megabytes = 0;
+                }
+                if (megabytes < 1) {
+                    System.err.println("Invalid command line option. memoryBudget must be a positive integer.");
+                    return;
+                }
+                optionsBuilder.setMemoryBudgetBytes(megabytes * 1024 * 1024);
+                // Only the ordered fetch streams the documents instead of downloading all documents of a user
+                optionsBuilder.setOrderedFetch(true);
+            }
+
+            if (cmd.hasOption(ProgramOptions.CACHE_DIR)) {
+                if (optionsBuilder.isOrderedFetch()) {
+                    System.err.println("Invalid command line option. cacheDir can't be used together with " +
+                            "orderedFetch, incremental or memoryBudget.");
+                    return;
+                }
+                String cacheDir = StringUtils.validateAndParseFolderPath(cmd.getOptionValue(ProgramOptions.CACHE_DIR));
+                if (cacheDir.isEmpty()) {
+                    return;
+                }
+                optionsBuilder.setCacheDir(cacheDir);
+
+                try {
+                    if (cmd.hasOption(ProgramOptions.CACHE_MAX_AGE)) {
+                        long hours = Long.parseLong(cmd.getOptionValue(ProgramOptions.CACHE_MAX_AGE));
+                        optionsBuilder.setCacheMaxAgeMillis(TimeUnit.HOURS.toMillis(Math.max(hours, 0)));
+                    }
+                    if (cmd.hasOption(ProgramOptions.CACHE_MAX_SIZE)) {
+                        long megabytes = Long.parseLong(cmd.getOptionValue(ProgramOptions.CACHE_MAX_SIZE));
+                        optionsBuilder.setCacheMaxSizeBytes(Math.max(megabytes, 0) * 1024 * 1024);
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid command line option. cacheMaxAge and cacheMaxSize must be integers.");
+                    return;
+                }
+            }
+
         } catch (ParseException e) {
             System.err.println("Invalid command line options");
         }
 
         System.out.println("Analysis started!");
         try {
-            new TravelBehaviorDataAnalysisManager().processData();
+            new TravelBehaviorDataAnalysisManager(optionsBuilder.build()).processData();
         } catch (FirebaseFileNotInitializedException e) {
             System.err.println("Firebase file is not initialized properly.");
         }
@@ -147,6 +341,31 @@ public class ProcessorMain {
         System.out.println("Analysis finished!");
     }
 
+    /**
+     * Merges the CSV files of the shards in the output folder
+     * @param cmd parsed command line
+     */
+    private static void mergeShards(CommandLine cmd) {
+        int shardCount;
+        try {
+            shardCount = Integer.parseInt(cmd.getOptionValue(ProgramOptions.MERGE_SHARDS));
+        } catch (NumberFormatException e) {
+            shardCount = 0;
+        }
+        if (shardCount < 1) {
+            System.err.println("Invalid command line option. mergeShards must be a positive integer.");
+            return;
+        }
+        String outputDir = "";
+        if (cmd.hasOption(ProgramOptions.SAVE_ON_PATH)) {
+            outputDir = StringUtils.validateAndParseFolderPath(cmd.getOptionValue(ProgramOptions.SAVE_ON_PATH));
+            if (outputDir.isEmpty()) {
+                return;
+            }
+        }
+        new ShardMerger(outputDir, shardCount).merge();
+    }
+
     private static Options createCommandLineOptions() {
         Options options = new Options();
         options.addOption(ProgramOptions.USER_ID, true, "Only run the analysis for specific user");
@@ -163,6 +382,23 @@ public class ProcessorMain {
         options.addOption(ProgramOptions.SAVE_ON_PATH, true, "Path of directory to save output data on.");
         options.addOption(ProgramOptions.SKIP_KMZ, false, "No export data in KMZ format.");
         options.addOption(ProgramOptions.MULTI_USERS_PATH, true, "Path to file including multiple user IDs.");
+        options.addOption(ProgramOptions.THREADS, true, "Number of users to process concurrently. By default it is 1.");
+        options.addOption(ProgramOptions.ORDERED_FETCH, false, "Fetch activity transitions ordered by time and in pages.");
+        options.addOption(ProgramOptions.PREFETCH, true, "Number of users downloaded ahead of the processed user. By default it is 0.");
+        options.addOption(ProgramOptions.RESUME, false, "Resume a previous run, skipping the users it completed.");
+        options.addOption(ProgramOptions.INCREMENTAL, true, "Path to the state file of incremental runs.");
+        options.addOption(ProgramOptions.CACHE_DIR, true, "Directory of the local cache of Firestore documents.");
+        options.addOption(ProgramOptions.CACHE_MAX_AGE, true, "Maximum age in hours of the cached documents. By default they never expire.");
+        options.addOption(ProgramOptions.CACHE_MAX_SIZE, true, "Maximum size in megabytes of the cache. By default it is unlimited.");
+        options.addOption(ProgramOptions.FAST_DISTANCE, false, "Report the origin-destination distance computed on a sphere instead of the WGS84 ellipsoid.");
+        options.addOption(ProgramOptions.TIME_ZONE_BOUNDS, true, "Only load the time zones within a bounding box, as minLat,minLon,maxLat,maxLon. By default the time zones of the whole globe are loaded.");
+        options.addOption(ProgramOptions.REPLAY_DIR, true, "Directory with JSON lines dumps to analyze instead of Firestore.");
+        options.addOption(ProgramOptions.MAX_READS_PER_SECOND, true, "Maximum number of Firestore reads started per second. By default it is unlimited.");
+        options.addOption(ProgramOptions.MAX_CONCURRENT_READS, true, "Maximum number of Firestore reads in flight. By default it is 32.");
+        options.addOption(ProgramOptions.WORK_STATS, true, "Path of the file with the work of each user in previous runs, used to process the heaviest users first.");
+        options.addOption(ProgramOptions.SHARD, true, "Only process the users of a shard, given as index/count (e.g., 0/4).");
+        options.addOption(ProgramOptions.MERGE_SHARDS, true, "Merge the CSV files of the given number of shards in the output directory.");
+        options.addOption(ProgramOptions.MEMORY_BUDGET, true, "Approximate heap in megabytes for the documents downloaded ahead of the analysis. By default it is unlimited.");
         return options;
     }
 }
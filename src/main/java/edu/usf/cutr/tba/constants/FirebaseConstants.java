@@ -21,6 +21,8 @@ public class FirebaseConstants {
 
     public static final String TRAVEL_BEHAVIOR_CSV_FILE = "travel-behavior.csv";
 
+    public static final String TRAVEL_BEHAVIOR_CHECKPOINT_FILE = "travel-behavior-checkpoint.csv";
+
     public static final String TRAVEL_BEHAVIOR_KML_FILE_EXTENSION = ".kml";
 
     public static final String TRAVEL_BEHAVIOR_KMZ_FILE_EXTENSION = ".kmz";
@@ -34,4 +36,46 @@ public class FirebaseConstants {
     public static final String FIREBASE_DESTINATION_REMINDER_FOLDER = "destination-reminders";
 
     public static final String FIREBASE_DEVICE_INFO_FOLDER = "device-information";
+
+    // Number of user documents requested per page when listing all users
+    public static final int FIREBASE_USERS_PAGE_SIZE = 1000;
+
+    // Number of activity-transitions documents requested per page by the ordered fetch
+    public static final int FIREBASE_ACTIVITY_TRANSITIONS_PAGE_SIZE = 500;
+
+    // Time of the first activity of an activity-transitions document, used to filter and order the documents
+    public static final String FIREBASE_FIRST_ACTIVITY_EVENT_TIME_FIELD = "firstActivityEventTimeMillis";
+
+    // Fields of the activity-transitions documents used by the analysis, the other fields are not downloaded
+    public static final String[] FIREBASE_ACTIVITY_TRANSITION_FIELDS = {"activities", "locationInfoList",
+            FIREBASE_FIRST_ACTIVITY_EVENT_TIME_FIELD};
+
+    // Fields of the device-information documents used by the analysis, the other fields are not downloaded
+    public static final String[] FIREBASE_DEVICE_INFO_FIELDS = {"timestamp", "regionId",
+            "isIgnoringBatteryOptimizations", "isTalkBackEnabled", "isPowerSaveModeEnabled"};
+
+    // Number of times a failed Firestore read is retried before the read fails
+    public static final int FIREBASE_READ_MAX_RETRIES = 8;
+
+    // Backoff before the first retry of a failed Firestore read, doubled for each following retry
+    public static final long FIREBASE_READ_INITIAL_BACKOFF_MILLIS = 250;
+
+    // Maximum backoff between two retries of a failed Firestore read
+    public static final long FIREBASE_READ_MAX_BACKOFF_MILLIS = 32000;
+
+    // Estimated number of activity-transitions documents above which the history of a user is split into time slices
+    // that are downloaded concurrently
+    public static final int FIREBASE_HEAVY_USER_DOCUMENTS = 20000;
+
+    // Maximum number of time slices of the history of a heavy user
+    public static final int FIREBASE_MAX_TIME_SLICES = 8;
+
+    // Number of pages each time slice downloads ahead of the page being analyzed
+    public static final int FIREBASE_SLICE_BUFFERED_PAGES = 8;
+
+    // Default maximum number of Firestore reads in flight
+    public static final int FIREBASE_DEFAULT_MAX_CONCURRENT_READS = 32;
+
+    // Approximate heap used by a downloaded activity-transitions document, used to apply the memory budget
+    public static final int FIREBASE_ESTIMATED_DOCUMENT_BYTES = 4096;
 }
@@ -39,4 +39,10 @@ public class TravelBehaviorConstants {
      * We split days at this number of hours past midnight (e.g., if 3 hours, then it will be split at 3am)
      */
     public static final long SAME_DAY_TIME_DIFF = 3; // 3 hours
+
+    /**
+     * In an incremental run the last day of a user is exported once it ended more than this time ago, activity
+     * transitions are rarely uploaded later than that
+     */
+    public static final long INCREMENTAL_DATA_CUTOFF = TimeUnit.DAYS.toMillis(1);
 }
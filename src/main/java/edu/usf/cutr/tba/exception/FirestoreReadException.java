@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.exception;
+
+/**
+ * Thrown when a Firestore read fails and can't be retried anymore, so the data of the user is incomplete
+ */
+public class FirestoreReadException extends RuntimeException {
+    public FirestoreReadException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -18,12 +18,13 @@ package edu.usf.cutr.tba.io;
 import com.opencsv.CSVWriter;
 import edu.usf.cutr.tba.constants.FirebaseConstants;
 import edu.usf.cutr.tba.model.TravelBehaviorRecord;
-import edu.usf.cutr.tba.options.ProgramOptions;
 import edu.usf.cutr.tba.utils.TravelBehaviorUtils;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
@@ -31,19 +32,39 @@ import java.util.List;
 public class CSVFileWriter {
 
     private CSVWriter mCSVWriter;
-    private ProgramOptions mProgramOptions;
+    private FileOutputStream mOutputStream;
+    /**
+     * Creates the CSV file of the output directory
+     * @param outputDir output directory of the job
+     */
+    public CSVFileWriter(String outputDir) {
+        this(outputDir, 0);
+    }
 
-    public CSVFileWriter() {
-        mProgramOptions = ProgramOptions.getInstance();
+    /**
+     * Opens the CSV file of the output directory
+     * @param outputDir output directory of the job
+     * @param resumeOffset 0 to start a new file, or the size of a previous file to keep. Any data written after that
+     *                     size by the previous run is dropped and the new rows are appended.
+     */
+    public CSVFileWriter(String outputDir, long resumeOffset) {
         try {
             Path localPath;
-            localPath = Paths.get(mProgramOptions.getOutputDir(), FirebaseConstants.TRAVEL_BEHAVIOR_CSV_FILE);
+            localPath = Paths.get(outputDir, FirebaseConstants.TRAVEL_BEHAVIOR_CSV_FILE);
             File file = new File(localPath.toString());
-            // create FileWriter object with file as parameter
-            FileWriter outputFile = new FileWriter(file);
+            if (resumeOffset > 0) {
+                if (file.length() < resumeOffset) {
+                    System.err.println("The CSV file is smaller than the checkpoint, some rows of completed users " +
+                            "are missing.");
+                }
+                try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                    randomAccessFile.setLength(resumeOffset);
+                }
+            }
+            mOutputStream = new FileOutputStream(file, resumeOffset > 0);
 
-            // create CSVFileWriter object filewriter object as parameter
-            mCSVWriter = new CSVWriter(outputFile);
+            // create CSVFileWriter object with the output stream as parameter
+            mCSVWriter = new CSVWriter(new OutputStreamWriter(mOutputStream));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -57,12 +78,34 @@ public class CSVFileWriter {
         }
     }
 
-    public void appendAllToCsV(List<TravelBehaviorRecord> travelBehaviorRecords) {
+    /**
+     * Appends the records that are allowed to be exported
+     * @param travelBehaviorRecords records to append
+     * @return number of appended records
+     */
+    public int appendAllToCsV(List<TravelBehaviorRecord> travelBehaviorRecords) {
+        int count = 0;
         for (TravelBehaviorRecord tbr : travelBehaviorRecords) {
             if (TravelBehaviorUtils.isAllowedToExport(tbr)) {
                 appendToCsV(tbr);
+                count++;
             }
         }
+        return count;
+    }
+
+    /**
+     * Flushes the appended rows to the file
+     * @return the size of the file after the flushed rows, or -1 if the rows couldn't be flushed
+     */
+    public long flushAndGetOffset() {
+        try {
+            mCSVWriter.flush();
+            return mOutputStream.getChannel().position();
+        } catch (IOException e) {
+            System.err.println("Flush CSV Exception: " + e);
+            return -1;
+        }
     }
 
     private void appendToCsV(TravelBehaviorRecord travelBehaviorRecord) {
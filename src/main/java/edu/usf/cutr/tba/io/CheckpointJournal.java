@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.io;
+
+import com.opencsv.CSVWriter;
+import edu.usf.cutr.tba.constants.FirebaseConstants;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Journal of the rows written to the CSV file of the output directory. A line is appended each time the CSV rows of a
+ * day of a user are written and flushed, with the user id, the start of the day, the size of the CSV file after the
+ * rows of the day, the number of rows of the day and the name of the KMZ file of the day. Once all days of a user are
+ * written a last line is appended for the user, with USER_COMPLETED as the start of the day. When a run is resumed the
+ * CSV file is truncated to the size recorded in the last line, so rows of days that were being written when the run
+ * stopped are dropped. The completed users are skipped, the days already written for the other users are not written
+ * again, and their KMZ files that are not in the journal are deleted.
+ */
+public class CheckpointJournal {
+
+    private static final int COLUMN_COUNT = 5;
+
+    // Start of the day of the line that completes a user
+    private static final String USER_COMPLETED = "completed";
+
+    private final Set<String> mCompletedUserIds = new HashSet<>();
+
+    // Start of the last day written for each user that is not completed
+    private final Map<String, Long> mLastDayStartMillis = new HashMap<>();
+
+    // KMZ files of the days written for each user that is not completed
+    private final Map<String, Set<String>> mKmzFileNames = new HashMap<>();
+
+    // True if the journal continues the journal of a previous run
+    private final boolean mResumed;
+
+    private long mCsvOffset = 0;
+
+    private CSVWriter mWriter;
+
+    /**
+     * Opens the journal of an output directory
+     * @param outputDir output directory of the run
+     * @param resume true to load the journal of a previous run, false to start a new journal
+     */
+    public CheckpointJournal(String outputDir, boolean resume) {
+        mResumed = resume;
+        File file = Paths.get(outputDir, FirebaseConstants.TRAVEL_BEHAVIOR_CHECKPOINT_FILE).toFile();
+        List<String[]> entries = new ArrayList<>();
+        if (resume && file.exists()) {
+            entries = readEntries(file);
+        }
+        try {
+            // Rewrite the valid entries, which drops a partially written last line
+            mWriter = new CSVWriter(new FileWriter(file));
+            for (String[] entry : entries) {
+                mWriter.writeNext(entry);
+            }
+            mWriter.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private List<String[]> readEntries(File file) {
+        List<String[]> entries = new ArrayList<>();
+        List<String[]> rows = new CSVFileReader().readUserList(file.getPath());
+        if (rows == null) {
+            return entries;
+        }
+        if (!rows.isEmpty() && !endsWithLineBreak(file)) {
+            // The last line was being written when the run stopped, even if it has all its columns
+            String[] row = rows.remove(rows.size() - 1);
+            System.err.println("Ignoring incomplete checkpoint entry " + String.join(",", row));
+        }
+        for (String[] row : rows) {
+            if (row.length != COLUMN_COUNT || row[0] == null) {
+                // A line that was being written when the run stopped
+                System.err.println("Ignoring invalid checkpoint entry " + String.join(",", row));
+                continue;
+            }
+            try {
+                boolean userCompleted = USER_COMPLETED.equals(row[1]);
+                long dayStartMillis = userCompleted ? 0 : Long.parseLong(row[1]);
+                long csvOffset = Long.parseLong(row[2]);
+                Integer.parseInt(row[3]);
+
+                if (userCompleted) {
+                    mCompletedUserIds.add(row[0]);
+                    mLastDayStartMillis.remove(row[0]);
+                    mKmzFileNames.remove(row[0]);
+                } else {
+                    mLastDayStartMillis.merge(row[0], dayStartMillis, Math::max);
+                    if (row[4] != null && !row[4].isEmpty()) {
+                        mKmzFileNames.computeIfAbsent(row[0], userId -> new HashSet<>()).add(row[4]);
+                    }
+                }
+                mCsvOffset = Math.max(mCsvOffset, csvOffset);
+                entries.add(row);
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring invalid checkpoint entry of user " + row[0]);
+            }
+        }
+        return entries;
+    }
+
+    private static boolean endsWithLineBreak(File file) {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            if (randomAccessFile.length() == 0) {
+                return true;
+            }
+            randomAccessFile.seek(randomAccessFile.length() - 1);
+            return randomAccessFile.read() == '\n';
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the rows of the user were written by a previous run
+     * @param userId firebase user id
+     * @return true if the rows of the user were written by a previous run
+     */
+    public boolean isCompleted(String userId) {
+        return mCompletedUserIds.contains(userId);
+    }
+
+    /**
+     * Returns the number of users written by a previous run
+     * @return the number of users written by a previous run
+     */
+    public int getCompletedUserCount() {
+        return mCompletedUserIds.size();
+    }
+
+    /**
+     * Returns true if the journal continues the journal of a previous run
+     * @return true if the journal continues the journal of a previous run
+     */
+    public boolean isResumed() {
+        return mResumed;
+    }
+
+    /**
+     * Returns the KMZ files of the days of a user written by a previous run that didn't complete the user
+     * @param userId firebase user id
+     * @return the names of the KMZ files, empty if no day was written or the user is completed
+     */
+    public Set<String> getKmzFileNames(String userId) {
+        return mKmzFileNames.getOrDefault(userId, Collections.emptySet());
+    }
+
+    /**
+     * Returns the start of the last day of a user written by a previous run that didn't complete the user
+     * @param userId firebase user id
+     * @return the start of the last day written for the user, or null if no day was written or the user is completed
+     */
+    public Long getLastDayStartMillis(String userId) {
+        return mLastDayStartMillis.get(userId);
+    }
+
+    /**
+     * Returns the size of the CSV file after the rows of the last day written by a previous run
+     * @return the size of the CSV file in bytes
+     */
+    public long getCsvOffset() {
+        return mCsvOffset;
+    }
+
+    /**
+     * Records that all rows of a day of a user were written and flushed to the CSV file
+     * @param userId firebase user id
+     * @param dayStartMillis start of the day, see TravelBehaviorSegmenter.DayListener
+     * @param csvOffset size of the CSV file after the rows of the day
+     * @param recordCount number of rows of the day
+     * @param kmzFileName name of the KMZ file of the day, or null if no KMZ file was written
+     */
+    public void appendDay(String userId, long dayStartMillis, long csvOffset, int recordCount, String kmzFileName) {
+        append(new String[]{userId, String.valueOf(dayStartMillis), String.valueOf(csvOffset),
+                String.valueOf(recordCount), kmzFileName == null ? "" : kmzFileName});
+    }
+
+    /**
+     * Records that all rows of a user were written and flushed to the CSV file
+     * @param userId firebase user id
+     * @param csvOffset size of the CSV file after the rows of the user
+     * @param recordCount number of rows of the user
+     */
+    public void appendUserCompleted(String userId, long csvOffset, int recordCount) {
+        append(new String[]{userId, USER_COMPLETED, String.valueOf(csvOffset), String.valueOf(recordCount), ""});
+    }
+
+    private synchronized void append(String[] entry) {
+        if (mWriter == null) {
+            return;
+        }
+        mWriter.writeNext(entry);
+        try {
+            mWriter.flush();
+        } catch (IOException e) {
+            System.err.println("Checkpoint error for user " + entry[0] + ": " + e);
+        }
+    }
+
+    public synchronized void close() {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -15,32 +15,97 @@
  */
 package edu.usf.cutr.tba.io;
 
+import com.google.api.core.ApiFunction;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.firestore.*;
+import com.google.common.util.concurrent.MoreExecutors;
 import edu.usf.cutr.tba.constants.FirebaseConstants;
 import edu.usf.cutr.tba.exception.FirebaseFileNotInitializedException;
+import edu.usf.cutr.tba.model.DeviceInformationDocument;
+import edu.usf.cutr.tba.model.TravelBehaviorDocument;
 import edu.usf.cutr.tba.model.TravelBehaviorInfo;
+import edu.usf.cutr.tba.model.UserWatermark;
 import edu.usf.cutr.tba.options.ProgramOptions;
 import edu.usf.cutr.tba.utils.FirebaseIOUtils;
+import edu.usf.cutr.tba.utils.FirestoreReadLimiter;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class FirebaseReader {
+public class FirebaseReader implements TravelBehaviorDataSource {
 
     private Firestore mFirestoreDB;
 
-    public FirebaseReader() throws FirebaseFileNotInitializedException{
-        initFirebase();
+    // Throttles and retries the reads of this job
+    private final FirestoreReadLimiter mReadLimiter;
+
+    // Requests the pages of the time slices of this job, shut down by close()
+    private final ExecutorService mSliceExecutor;
+
+    // Local cache of the downloaded documents, or null if the documents are not cached
+    private FirestoreCache mCache;
+
+    // Time slices downloaded concurrently and pages buffered by each slice when streaming the documents of a user
+    private int mMaxTimeSlices = FirebaseConstants.FIREBASE_MAX_TIME_SLICES;
+
+    private int mSliceBufferedPages = FirebaseConstants.FIREBASE_SLICE_BUFFERED_PAGES;
+
+    /**
+     * @param programOptions options of the job, with the admin key and the read and cache settings
+     * @throws FirebaseFileNotInitializedException if no admin key is set
+     */
+    public FirebaseReader(ProgramOptions programOptions) throws FirebaseFileNotInitializedException{
+        initFirebase(programOptions.getKeyFilePath());
+        mReadLimiter = new FirestoreReadLimiter(programOptions.getMaxReadsPerSecond(),
+                programOptions.getMaxConcurrentReads());
+        mSliceExecutor = Executors.newFixedThreadPool(Math.max(programOptions.getMaxConcurrentReads(), 1),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "firestore-time-slice");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        if (programOptions.getCacheDir() != null) {
+            mCache = new FirestoreCache(programOptions.getCacheDir(), programOptions.getCacheMaxAgeMillis(),
+                    programOptions.getCacheMaxSizeBytes());
+        }
+        if (programOptions.getMemoryBudgetBytes() > 0) {
+            setPagesAhead(programOptions.getMemoryBudgetBytes(), programOptions.getThreads() +
+                    programOptions.getPrefetch());
+        }
     }
 
-    private void initFirebase() throws FirebaseFileNotInitializedException {
+    /**
+     * Splits the memory budget between the users whose documents can be downloaded at the same time, and limits the
+     * time slices and the pages they buffer so that the buffered pages of all users fit in the budget. Each slice
+     * holds the page being consumed and at least one page ahead.
+     * @param memoryBudgetBytes approximate heap for the downloaded documents
+     * @param users number of users that are processed or prefetched at the same time
+     */
+    private void setPagesAhead(long memoryBudgetBytes, int users) {
+        long pageBytes = (long) FirebaseConstants.FIREBASE_ACTIVITY_TRANSITIONS_PAGE_SIZE *
+                FirebaseConstants.FIREBASE_ESTIMATED_DOCUMENT_BYTES;
+        long pages = Math.max(2, memoryBudgetBytes / pageBytes / Math.max(users, 1));
+        mMaxTimeSlices = (int) Math.max(1, Math.min(FirebaseConstants.FIREBASE_MAX_TIME_SLICES, pages / 2));
+        mSliceBufferedPages = (int) Math.max(1, Math.min(FirebaseConstants.FIREBASE_SLICE_BUFFERED_PAGES,
+                pages / mMaxTimeSlices - 1));
+        if (memoryBudgetBytes / pageBytes < 2L * users) {
+            System.err.println("The memory budget is too small to buffer two pages of documents for each of the " +
+                    users + " users processed at the same time, it will be exceeded.");
+        }
+    }
+
+    private void initFirebase(String filePath) throws FirebaseFileNotInitializedException {
         FileInputStream serviceAccount = null;
         try {
-            String filePath = ProgramOptions.getInstance().getKeyFilePath();
             if (filePath == null) {
                 throw new FirebaseFileNotInitializedException();
             }
@@ -62,13 +127,44 @@ public class FirebaseReader {
         mFirestoreDB = options.getService();
     }
 
-    public List<QueryDocumentSnapshot> getAllUserIds() {
-        return FirebaseIOUtils.getAllUserIds(mFirestoreDB);
+    /**
+     * Streams the ids of all users, one page at a time
+     * @return iterator over the ids of all users
+     */
+    @Override
+    public Iterator<String> getAllUserIds() {
+        return FirebaseIOUtils.getAllUserIds(mFirestoreDB, mReadLimiter);
     }
 
-    public List<QueryDocumentSnapshot> getAllUserInfoById(String userId) {
-        return FirebaseIOUtils.getAllRecordIdsByUserIdAndFolder(mFirestoreDB, userId,
-                FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER);
+    public List<TravelBehaviorDocument> getAllUserInfoById(String userId) {
+        return FirebaseIOUtils.getDocuments(getAllUserInfoByIdAsync(userId));
+    }
+
+    /**
+     * Starts downloading all user information without waiting for it, so other queries can be issued meanwhile.
+     * @param userId id of user to retrieve data from
+     * @return future list including all user information
+     */
+    @Override
+    public ApiFuture<List<TravelBehaviorDocument>> getAllUserInfoByIdAsync(final String userId) {
+        if (mCache == null) {
+            return decodeTravelBehaviorDocuments(FirebaseIOUtils.getAllRecordsByUserIdAndFolderAsync(mFirestoreDB,
+                    mReadLimiter, userId, FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER));
+        }
+        List<TravelBehaviorDocument> cached = mCache.readTravelBehaviorDocuments(userId);
+        if (cached != null) {
+            return ApiFutures.immediateFuture(cached);
+        }
+        ApiFuture<List<TravelBehaviorDocument>> documents = decodeTravelBehaviorDocuments(
+                FirebaseIOUtils.getAllRecordsByUserIdAndFolderAsync(mFirestoreDB, mReadLimiter, userId,
+                        FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER));
+        return ApiFutures.transform(documents, new ApiFunction<List<TravelBehaviorDocument>, List<TravelBehaviorDocument>>() {
+            @Override
+            public List<TravelBehaviorDocument> apply(List<TravelBehaviorDocument> input) {
+                mCache.writeTravelBehaviorDocuments(userId, input);
+                return input;
+            }
+        }, MoreExecutors.directExecutor());
     }
 
     /**
@@ -78,15 +174,166 @@ public class FirebaseReader {
      * @param endDateMillis end date to filter activities
      * @return List including all user information filtered by a date range.
      */
-    public List<QueryDocumentSnapshot> getAllUserInfoByIdAndDateRange(String userId, long startDateMillis,
-                                                                      long endDateMillis) {
-        return FirebaseIOUtils.getAllRecordIdsByDateRangeUserIdAndFolder(mFirestoreDB, userId,
-                FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER, startDateMillis, endDateMillis);
+    public List<TravelBehaviorDocument> getAllUserInfoByIdAndDateRange(String userId, long startDateMillis,
+                                                                       long endDateMillis) {
+        return FirebaseIOUtils.getDocuments(getAllUserInfoByIdAndDateRangeAsync(userId, startDateMillis,
+                endDateMillis));
     }
 
-    public List<QueryDocumentSnapshot> getAllUserDeviceInfoById(String userId) {
-        return FirebaseIOUtils.getAllRecordIdsByUserIdAndFolder(mFirestoreDB, userId,
-                FirebaseConstants.FIREBASE_DEVICE_INFO_FOLDER);
+    /**
+     * Starts downloading all user information filtered by a date range without waiting for it.
+     * @param userId id of user to retrieve data from
+     * @param startDateMillis starting date to filter activities
+     * @param endDateMillis end date to filter activities
+     * @return future list including all user information filtered by a date range.
+     */
+    @Override
+    public ApiFuture<List<TravelBehaviorDocument>> getAllUserInfoByIdAndDateRangeAsync(String userId,
+                                                                                       final long startDateMillis,
+                                                                                       final long endDateMillis) {
+        if (mCache != null) {
+            // The cache holds all documents of the user, so the range is applied on the client the same way
+            // Firestore applies it
+            return ApiFutures.transform(getAllUserInfoByIdAsync(userId),
+                    new ApiFunction<List<TravelBehaviorDocument>, List<TravelBehaviorDocument>>() {
+                @Override
+                public List<TravelBehaviorDocument> apply(List<TravelBehaviorDocument> input) {
+                    List<TravelBehaviorDocument> documents = new ArrayList<>();
+                    for (TravelBehaviorDocument document : input) {
+                        long time = document.getInfo().firstActivityEventTimeMillis;
+                        if (time >= startDateMillis && time <= endDateMillis) {
+                            documents.add(document);
+                        }
+                    }
+                    return documents;
+                }
+            }, MoreExecutors.directExecutor());
+        }
+        return decodeTravelBehaviorDocuments(FirebaseIOUtils.getAllRecordsByDateRangeUserIdAndFolderAsync(mFirestoreDB,
+                mReadLimiter, userId, FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER, startDateMillis,
+                endDateMillis));
+    }
+
+    /**
+     * Streams the activity transitions of a user ordered by firstActivityEventTimeMillis, one page at a time, so the
+     * documents don't need to be sorted on the client.
+     * @param userId id of user to retrieve data from
+     * @param startDateMillis starting date to filter activities, or 0 to not filter the activities by date
+     * @param endDateMillis end date to filter activities, or 0 to not filter the activities by date
+     * @return iterator over the activity transitions ordered by firstActivityEventTimeMillis
+     */
+    @Override
+    public Iterator<TravelBehaviorDocument> getUserInfoByIdOrderedByTime(String userId, long startDateMillis,
+                                                                         long endDateMillis) {
+        return decodeTravelBehaviorDocuments(FirebaseIOUtils.getRecordsOrderedByActivityTime(mFirestoreDB,
+                mReadLimiter, mSliceExecutor, userId, FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER, startDateMillis,
+                endDateMillis, mMaxTimeSlices, mSliceBufferedPages));
+    }
+
+    /**
+     * Streams the activity transitions of a user ordered by firstActivityEventTimeMillis and document id, starting
+     * at the watermark left by a previous incremental run.
+     * @param userId id of user to retrieve data from
+     * @param watermark watermark of the user
+     * @return iterator over the activity transitions from the watermark on
+     */
+    @Override
+    public Iterator<TravelBehaviorDocument> getUserInfoByIdFromWatermark(String userId, UserWatermark watermark) {
+        return decodeTravelBehaviorDocuments(FirebaseIOUtils.getRecordsOrderedByActivityTimeFrom(mFirestoreDB,
+                mReadLimiter, userId, FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER,
+                watermark.getEventTimeMillis(), watermark.getDocumentId(), watermark.isInclusive()));
+    }
+
+    /**
+     * Decodes each activity-transitions snapshot as it is consumed, so only the current page is held as snapshots
+     * @param snapshots Firestore activity-transitions documents
+     * @return iterator over the decoded documents, in the same order
+     */
+    private static Iterator<TravelBehaviorDocument> decodeTravelBehaviorDocuments(
+            final Iterator<QueryDocumentSnapshot> snapshots) {
+        return new Iterator<TravelBehaviorDocument>() {
+            @Override
+            public boolean hasNext() {
+                return snapshots.hasNext();
+            }
+
+            @Override
+            public TravelBehaviorDocument next() {
+                return TravelBehaviorDocument.fromSnapshot(snapshots.next());
+            }
+        };
+    }
+
+    /**
+     * Returns true if the user has at least one activity transition document
+     * @param userId id of user to retrieve data from
+     * @return true if the user has at least one activity transition document
+     */
+    @Override
+    public boolean hasAnyUserInfo(String userId) {
+        return FirebaseIOUtils.hasAnyRecord(mFirestoreDB, mReadLimiter, userId,
+                FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER);
+    }
+
+    /**
+     * Stops the threads that request the pages of the time slices once the job is done
+     */
+    @Override
+    public void close() {
+        mSliceExecutor.shutdown();
+    }
+
+    public List<DeviceInformationDocument> getAllUserDeviceInfoById(String userId) {
+        return FirebaseIOUtils.getDocuments(getAllUserDeviceInfoByIdAsync(userId));
+    }
+
+    /**
+     * Starts downloading the device information of a user without waiting for it.
+     * @param userId id of user to retrieve data from
+     * @return future list including the device information of the user
+     */
+    @Override
+    public ApiFuture<List<DeviceInformationDocument>> getAllUserDeviceInfoByIdAsync(final String userId) {
+        if (mCache != null) {
+            List<DeviceInformationDocument> cached = mCache.readDeviceInformationDocuments(userId);
+            if (cached != null) {
+                return ApiFutures.immediateFuture(cached);
+            }
+        }
+        ApiFuture<List<QueryDocumentSnapshot>> snapshots = FirebaseIOUtils.getAllRecordsByUserIdAndFolderAsync(
+                mFirestoreDB, mReadLimiter, userId, FirebaseConstants.FIREBASE_DEVICE_INFO_FOLDER);
+        return ApiFutures.transform(snapshots, new ApiFunction<List<QueryDocumentSnapshot>, List<DeviceInformationDocument>>() {
+            @Override
+            public List<DeviceInformationDocument> apply(List<QueryDocumentSnapshot> input) {
+                List<DeviceInformationDocument> documents = new ArrayList<>(input.size());
+                for (QueryDocumentSnapshot snapshot : input) {
+                    documents.add(DeviceInformationDocument.fromSnapshot(snapshot));
+                }
+                if (mCache != null) {
+                    mCache.writeDeviceInformationDocuments(userId, documents);
+                }
+                return documents;
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Decodes each activity-transitions snapshot exactly once, as soon as the query completes
+     * @param snapshots future Firestore activity-transitions documents
+     * @return the future decoded documents, in the same order
+     */
+    private static ApiFuture<List<TravelBehaviorDocument>> decodeTravelBehaviorDocuments(
+            ApiFuture<List<QueryDocumentSnapshot>> snapshots) {
+        return ApiFutures.transform(snapshots, new ApiFunction<List<QueryDocumentSnapshot>, List<TravelBehaviorDocument>>() {
+            @Override
+            public List<TravelBehaviorDocument> apply(List<QueryDocumentSnapshot> input) {
+                List<TravelBehaviorDocument> documents = new ArrayList<>(input.size());
+                for (QueryDocumentSnapshot snapshot : input) {
+                    documents.add(TravelBehaviorDocument.fromSnapshot(snapshot));
+                }
+                return documents;
+            }
+        }, MoreExecutors.directExecutor());
     }
 
     private void processTransitionData(String recordId, String userId) {
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.io;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import edu.usf.cutr.tba.constants.FirebaseConstants;
+import edu.usf.cutr.tba.model.DeviceInformation;
+import edu.usf.cutr.tba.model.DeviceInformationDocument;
+import edu.usf.cutr.tba.model.TravelBehaviorDocument;
+import edu.usf.cutr.tba.model.TravelBehaviorInfo;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local on-disk cache of the Firestore documents of each user, so runs that only change the analysis options don't
+ * need to download the data again. The documents of a user folder are stored in one gzipped JSON lines file
+ * (cacheDir/folder/userId.jsonl.gz). The first line holds the time the documents were downloaded, and each other line
+ * holds the id and the data of one document.
+ *
+ * A file older than the maximum age is downloaded again. When the cache exceeds its maximum size the least recently
+ * used files are deleted.
+ */
+public class FirestoreCache {
+
+    private static final String FILE_EXTENSION = ".jsonl.gz";
+
+    private static final String FETCHED_AT = "fetchedAt";
+
+    private static final String ID = "id";
+
+    private static final String DATA = "data";
+
+    private final File mCacheDir;
+
+    private final long mMaxAgeMillis;
+
+    private final long mMaxSizeBytes;
+
+    private final AtomicLong mSizeBytes = new AtomicLong();
+
+    private final Gson mGson = new Gson();
+
+    /**
+     * @param cacheDir directory of the cache, created if it doesn't exist
+     * @param maxAgeMillis maximum age of the cached documents, or 0 if they never expire
+     * @param maxSizeBytes maximum size of the cache, or 0 if it is unlimited
+     */
+    public FirestoreCache(String cacheDir, long maxAgeMillis, long maxSizeBytes) {
+        mCacheDir = new File(cacheDir);
+        mMaxAgeMillis = maxAgeMillis;
+        mMaxSizeBytes = maxSizeBytes;
+        for (File file : getCacheFiles()) {
+            mSizeBytes.addAndGet(file.length());
+        }
+    }
+
+    /**
+     * Returns the cached activity transitions of a user
+     * @param userId firebase user id
+     * @return the cached documents, or null if they are not cached or they expired
+     */
+    public List<TravelBehaviorDocument> readTravelBehaviorDocuments(String userId) {
+        List<JsonObject> lines = read(FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER, userId);
+        if (lines == null) {
+            return null;
+        }
+        List<TravelBehaviorDocument> documents = new ArrayList<>(lines.size());
+        for (JsonObject line : lines) {
+            documents.add(new TravelBehaviorDocument(line.get(ID).getAsString(),
+                    mGson.fromJson(line.get(DATA), TravelBehaviorInfo.class)));
+        }
+        return documents;
+    }
+
+    public void writeTravelBehaviorDocuments(String userId, List<TravelBehaviorDocument> documents) {
+        List<JsonObject> lines = new ArrayList<>(documents.size());
+        for (TravelBehaviorDocument document : documents) {
+            lines.add(toLine(document.getId(), document.getInfo()));
+        }
+        write(FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER, userId, lines);
+    }
+
+    /**
+     * Returns the cached device information of a user
+     * @param userId firebase user id
+     * @return the cached documents, or null if they are not cached or they expired
+     */
+    public List<DeviceInformationDocument> readDeviceInformationDocuments(String userId) {
+        List<JsonObject> lines = read(FirebaseConstants.FIREBASE_DEVICE_INFO_FOLDER, userId);
+        if (lines == null) {
+            return null;
+        }
+        List<DeviceInformationDocument> documents = new ArrayList<>(lines.size());
+        for (JsonObject line : lines) {
+            documents.add(new DeviceInformationDocument(line.get(ID).getAsString(),
+                    mGson.fromJson(line.get(DATA), DeviceInformation.class)));
+        }
+        return documents;
+    }
+
+    public void writeDeviceInformationDocuments(String userId, List<DeviceInformationDocument> documents) {
+        List<JsonObject> lines = new ArrayList<>(documents.size());
+        for (DeviceInformationDocument document : documents) {
+            lines.add(toLine(document.getId(), document.getInfo()));
+        }
+        write(FirebaseConstants.FIREBASE_DEVICE_INFO_FOLDER, userId, lines);
+    }
+
+    private JsonObject toLine(String id, Object data) {
+        JsonObject line = new JsonObject();
+        line.addProperty(ID, id);
+        line.add(DATA, mGson.toJsonTree(data));
+        return line;
+    }
+
+    private File getFile(String folder, String userId) {
+        return new File(new File(mCacheDir, folder), userId + FILE_EXTENSION);
+    }
+
+    private List<JsonObject> read(String folder, String userId) {
+        File file = getFile(folder, userId);
+        if (!file.exists()) {
+            return null;
+        }
+        List<JsonObject> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            long fetchedAt = JsonParser.parseString(line).getAsJsonObject().get(FETCHED_AT).getAsLong();
+            if (mMaxAgeMillis > 0 && System.currentTimeMillis() - fetchedAt > mMaxAgeMillis) {
+                return null;
+            }
+            while ((line = reader.readLine()) != null) {
+                lines.add(JsonParser.parseString(line).getAsJsonObject());
+            }
+        } catch (IOException | JsonParseException | IllegalStateException | NullPointerException e) {
+            System.err.println("Ignoring unreadable cache file " + file + ": " + e);
+            return null;
+        }
+        // The last modified time orders the files for the eviction
+        file.setLastModified(System.currentTimeMillis());
+        return lines;
+    }
+
+    private void write(String folder, String userId, List<JsonObject> lines) {
+        File file = getFile(folder, userId);
+        File tempFile = new File(file.getPath() + ".tmp");
+        file.getParentFile().mkdirs();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(tempFile)), StandardCharsets.UTF_8))) {
+            JsonObject header = new JsonObject();
+            header.addProperty(FETCHED_AT, System.currentTimeMillis());
+            writer.write(header.toString());
+            writer.write('\n');
+            for (JsonObject line : lines) {
+                writer.write(line.toString());
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to write cache file " + file + ": " + e);
+            tempFile.delete();
+            return;
+        }
+        long previousLength = file.length();
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Unable to write cache file " + file + ": " + e);
+            tempFile.delete();
+            return;
+        }
+        if (mMaxSizeBytes > 0 && mSizeBytes.addAndGet(file.length() - previousLength) > mMaxSizeBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the cache fits in its maximum size
+     */
+    private synchronized void evict() {
+        if (mSizeBytes.get() <= mMaxSizeBytes) {
+            return;
+        }
+        List<File> files = getCacheFiles();
+        files.sort(Comparator.comparingLong(File::lastModified));
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        for (File file : files) {
+            if (size <= mMaxSizeBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+            }
+        }
+        mSizeBytes.set(size);
+    }
+
+    private List<File> getCacheFiles() {
+        List<File> files = new ArrayList<>();
+        for (String folder : Arrays.asList(FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER,
+                FirebaseConstants.FIREBASE_DEVICE_INFO_FOLDER)) {
+            File[] folderFiles = new File(mCacheDir, folder).listFiles();
+            if (folderFiles == null) {
+                continue;
+            }
+            for (File file : folderFiles) {
+                if (file.getName().endsWith(FILE_EXTENSION)) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+}
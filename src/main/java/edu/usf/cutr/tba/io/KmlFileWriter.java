@@ -16,7 +16,6 @@
 package edu.usf.cutr.tba.io;
 
 import edu.usf.cutr.tba.model.TravelBehaviorRecord;
-import edu.usf.cutr.tba.options.ProgramOptions;
 import edu.usf.cutr.tba.utils.TimeZoneHelper;
 import edu.usf.cutr.tba.utils.TravelBehaviorUtils;
 
@@ -26,6 +25,7 @@ import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.time.ZoneId;
 import java.util.List;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -34,8 +34,9 @@ import static edu.usf.cutr.tba.constants.FirebaseConstants.TRAVEL_BEHAVIOR_KMZ_F
 
 public class KmlFileWriter {
 
-    BufferedWriter mKmlWriter;
-    private ProgramOptions mProgramOptions;
+    private final String mOutputDir;
+
+    private final TimeZoneHelper mTimeZoneHelper;
 
     private static final String STYLE_TEXT =
             "<StyleMap id=\"msn_ylw-pushpin\">\n" +
@@ -154,15 +155,26 @@ public class KmlFileWriter {
                     "</PolyStyle>\n" +
                     "</Style>"; // end of styleString
 
-    public KmlFileWriter() {
+    /**
+     * @param outputDir output directory of the job, the KMZ files are written to a sub-folder per user
+     * @param timeZoneHelper time zones of the job, used to show the local times of the records
+     */
+    public KmlFileWriter(String outputDir, TimeZoneHelper timeZoneHelper) {
+        mOutputDir = outputDir;
+        mTimeZoneHelper = timeZoneHelper;
     }
 
-    public void appendAllToKml(List<TravelBehaviorRecord> travelBehaviorRecords) {
+    /**
+     * Writes the records of a user-day to a KMZ file in the folder of the user
+     * @param travelBehaviorRecords records of a single user for a single day
+     * @return the name of the KMZ file, or null if no file was written
+     */
+    public String appendAllToKml(List<TravelBehaviorRecord> travelBehaviorRecords) {
         if (travelBehaviorRecords.isEmpty()) {
-            return;
+            return null;
         }
         if (!TravelBehaviorUtils.isAllowedToExport(travelBehaviorRecords.get(0))) {
-            return;
+            return null;
         }
         try {
             TravelBehaviorRecord firstTbr = travelBehaviorRecords.get(0);
@@ -179,29 +191,50 @@ public class KmlFileWriter {
                 millis = firstTbr.getLocationEndTimeMillis();
             } else {
                 System.err.println("Bad time data in first record for travel behavior data list - skipping KMZ write for " + firstTbr.getUserId());
-                return;
+                return null;
             }
 
             String fileName = firstTbr.getUserId() + "_" + TravelBehaviorUtils.getDateAndTimeFileNameFromMillis(millis);
-            mProgramOptions = ProgramOptions.getInstance();
-            Path localPath = Paths.get(mProgramOptions.getOutputDir(),firstTbr.getUserId(), fileName + TRAVEL_BEHAVIOR_KML_FILE_EXTENSION);
+            Path localPath = Paths.get(mOutputDir,firstTbr.getUserId(), fileName + TRAVEL_BEHAVIOR_KML_FILE_EXTENSION);
 
             File kmlFile = new File(localPath.toString());
-            mKmlWriter = new BufferedWriter(new FileWriter(kmlFile));
+            // The writer is local so different user-days can be written concurrently
+            BufferedWriter kmlWriter = new BufferedWriter(new FileWriter(kmlFile));
 
-            mKmlWriter.write("<?xml version=\"1.0\" encoding =\"UTF-8\"?>\n");
-            mKmlWriter.write("<kml xmlns=\"http://earth.google.com/kml/2.1\">\n <Document>\n");
-            mKmlWriter.write("<name>" +fileName + "</name>");
-            mKmlWriter.write("<description><![CDATA[" + fileName + "]]></description>");
-            mKmlWriter.write(STYLE_TEXT);
+            kmlWriter.write("<?xml version=\"1.0\" encoding =\"UTF-8\"?>\n");
+            kmlWriter.write("<kml xmlns=\"http://earth.google.com/kml/2.1\">\n <Document>\n");
+            kmlWriter.write("<name>" +fileName + "</name>");
+            kmlWriter.write("<description><![CDATA[" + fileName + "]]></description>");
+            kmlWriter.write(STYLE_TEXT);
             for (TravelBehaviorRecord tbr : travelBehaviorRecords) {
-                appendToKml(tbr);
+                appendToKml(kmlWriter, tbr);
             }
-            mKmlWriter.write("</Document>\n</kml>");
-            mKmlWriter.close();
+            kmlWriter.write("</Document>\n</kml>");
+            kmlWriter.close();
             convertKMLtoKMZ(fileName, kmlFile);
+            return fileName + TRAVEL_BEHAVIOR_KMZ_FILE_EXTENSION;
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the KML and KMZ files of a user, except the given ones
+     * @param userId firebase user id
+     * @param keptFileNames names of the KMZ files to keep
+     */
+    public void deleteUserFiles(String userId, Set<String> keptFileNames) {
+        File[] files = Paths.get(mOutputDir, userId).toFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if ((name.endsWith(TRAVEL_BEHAVIOR_KML_FILE_EXTENSION) || name.endsWith(TRAVEL_BEHAVIOR_KMZ_FILE_EXTENSION))
+                    && !keptFileNames.contains(name) && !file.delete()) {
+                System.err.println("Failed to delete " + file);
+            }
         }
     }
 
@@ -233,11 +266,11 @@ public class KmlFileWriter {
         kmlFile.delete();
     }
 
-    private void appendToKml(TravelBehaviorRecord tbr) throws IOException {
+    private void appendToKml(BufferedWriter kmlWriter, TravelBehaviorRecord tbr) throws IOException {
         // Write Placemark for trip origin
-        mKmlWriter.write(getLocationPlacemark(tbr, true));
-        mKmlWriter.write(getLocationPlacemark(tbr, false));
-        mKmlWriter.write(getLinePlacemark(tbr));
+        kmlWriter.write(getLocationPlacemark(tbr, true));
+        kmlWriter.write(getLocationPlacemark(tbr, false));
+        kmlWriter.write(getLinePlacemark(tbr));
     }
 
     /**
@@ -261,7 +294,7 @@ public class KmlFileWriter {
             // Bad location data - we can't create a placemark out of this record
             return "";
         }
-        ZoneId zoneId = TimeZoneHelper.query(lat, lon);
+        ZoneId zoneId = mTimeZoneHelper.query(lat, lon);
         String localStartTime = TravelBehaviorUtils.getLocalTimeFromMillis(tbr.getActivityStartTimeMillis(), zoneId);
         String localEndTime = TravelBehaviorUtils.getLocalTimeFromMillis(tbr.getActivityEndTimeMillis(), zoneId);
 
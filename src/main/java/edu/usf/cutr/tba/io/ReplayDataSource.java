@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.io;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import edu.usf.cutr.tba.constants.FirebaseConstants;
+import edu.usf.cutr.tba.model.DeviceInformation;
+import edu.usf.cutr.tba.model.DeviceInformationDocument;
+import edu.usf.cutr.tba.model.TravelBehaviorDocument;
+import edu.usf.cutr.tba.model.TravelBehaviorInfo;
+import edu.usf.cutr.tba.model.UserWatermark;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the users and their documents from local newline-delimited JSON dumps instead of Firestore, so the whole
+ * analysis can run without network access or an admin key. The replay directory contains activity-transitions.jsonl
+ * and, optionally, device-information.jsonl (either of them can be gzipped, i.e. activity-transitions.jsonl.gz).
+ * Each line holds one document:
+ *
+ * {"userId": "...", "id": "...", "data": {...}}
+ *
+ * where data matches the TravelBehaviorInfo or DeviceInformation schema. The lines of both files must be sorted by
+ * user id, so all users are streamed by reading each file once. Only the users that were listed by
+ * getAllUserIds() and not released yet are held in memory, which is bounded by the number of users the manager
+ * queues ahead. Users that are requested without being listed (i.e. -userId or -multiUserId) are found by scanning
+ * the files.
+ */
+public class ReplayDataSource implements TravelBehaviorDataSource {
+
+    private static final String FILE_EXTENSION = ".jsonl";
+
+    private static final String GZIP_EXTENSION = ".gz";
+
+    private static final String USER_ID = "userId";
+
+    private static final String ID = "id";
+
+    private static final String DATA = "data";
+
+    /**
+     * Order of the documents returned by the ordered Firestore queries
+     */
+    private static final Comparator<TravelBehaviorDocument> FIRESTORE_ORDER =
+            Comparator.<TravelBehaviorDocument>comparingLong(d -> d.getInfo().firstActivityEventTimeMillis)
+                    .thenComparing(TravelBehaviorDocument::getId);
+
+    private final File mTransitionsFile;
+
+    private final File mDeviceInfoFile;
+
+    private final Map<String, UserData> mUsers = new ConcurrentHashMap<>();
+
+    private final Gson mGson = new Gson();
+
+    /**
+     * Documents of a single user
+     */
+    private static class UserData {
+        final List<TravelBehaviorDocument> mTransitions;
+        final List<DeviceInformationDocument> mDeviceInfos;
+
+        UserData(List<TravelBehaviorDocument> transitions, List<DeviceInformationDocument> deviceInfos) {
+            mTransitions = transitions;
+            mDeviceInfos = deviceInfos;
+        }
+    }
+
+    /**
+     * @param replayDir directory with the JSON lines dumps
+     */
+    public ReplayDataSource(String replayDir) {
+        mTransitionsFile = findFile(replayDir, FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER);
+        mDeviceInfoFile = findFile(replayDir, FirebaseConstants.FIREBASE_DEVICE_INFO_FOLDER);
+    }
+
+    /**
+     * Returns the dump of a folder in the replay directory
+     * @param replayDir directory with the JSON lines dumps
+     * @param folder firebase folder of the documents
+     * @return the plain or gzipped dump of the folder, or null if there is no dump
+     */
+    public static File findFile(String replayDir, String folder) {
+        File file = new File(replayDir, folder + FILE_EXTENSION);
+        if (file.exists()) {
+            return file;
+        }
+        file = new File(replayDir, folder + FILE_EXTENSION + GZIP_EXTENSION);
+        return file.exists() ? file : null;
+    }
+
+    @Override
+    public Iterator<String> getAllUserIds() {
+        final GroupReader transitions = new GroupReader(mTransitionsFile);
+        final GroupReader deviceInfos = new GroupReader(mDeviceInfoFile);
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                if (transitions.peekUserId() != null || deviceInfos.peekUserId() != null) {
+                    return true;
+                }
+                transitions.close();
+                deviceInfos.close();
+                return false;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String transitionsUserId = transitions.peekUserId();
+                String deviceInfosUserId = deviceInfos.peekUserId();
+                String userId;
+                if (transitionsUserId == null) {
+                    userId = deviceInfosUserId;
+                } else if (deviceInfosUserId == null) {
+                    userId = transitionsUserId;
+                } else {
+                    userId = transitionsUserId.compareTo(deviceInfosUserId) <= 0 ? transitionsUserId :
+                            deviceInfosUserId;
+                }
+                mUsers.put(userId, new UserData(decodeTransitions(transitions.readGroup(userId)),
+                        decodeDeviceInfos(deviceInfos.readGroup(userId))));
+                return userId;
+            }
+        };
+    }
+
+    @Override
+    public ApiFuture<List<TravelBehaviorDocument>> getAllUserInfoByIdAsync(String userId) {
+        return ApiFutures.immediateFuture(new ArrayList<>(getUserData(userId).mTransitions));
+    }
+
+    @Override
+    public ApiFuture<List<TravelBehaviorDocument>> getAllUserInfoByIdAndDateRangeAsync(String userId,
+                                                                                       long startDateMillis,
+                                                                                       long endDateMillis) {
+        List<TravelBehaviorDocument> documents = new ArrayList<>();
+        for (TravelBehaviorDocument document : getUserData(userId).mTransitions) {
+            long time = document.getInfo().firstActivityEventTimeMillis;
+            if (time >= startDateMillis && time <= endDateMillis) {
+                documents.add(document);
+            }
+        }
+        return ApiFutures.immediateFuture(documents);
+    }
+
+    @Override
+    public Iterator<TravelBehaviorDocument> getUserInfoByIdOrderedByTime(String userId, long startDateMillis,
+                                                                         long endDateMillis) {
+        boolean hasDateRange = startDateMillis > 0 && endDateMillis > 0;
+        List<TravelBehaviorDocument> documents = new ArrayList<>();
+        for (TravelBehaviorDocument document : getUserData(userId).mTransitions) {
+            long time = document.getInfo().firstActivityEventTimeMillis;
+            // Documents without the field are not returned by Firestore
+            if (time != 0 && (!hasDateRange || (time >= startDateMillis && time <= endDateMillis))) {
+                documents.add(document);
+            }
+        }
+        documents.sort(FIRESTORE_ORDER);
+        return documents.iterator();
+    }
+
+    @Override
+    public Iterator<TravelBehaviorDocument> getUserInfoByIdFromWatermark(String userId, UserWatermark watermark) {
+        TravelBehaviorDocument start = new TravelBehaviorDocument(watermark.getDocumentId(), new TravelBehaviorInfo());
+        start.getInfo().firstActivityEventTimeMillis = watermark.getEventTimeMillis();
+        List<TravelBehaviorDocument> documents = new ArrayList<>();
+        for (TravelBehaviorDocument document : getUserData(userId).mTransitions) {
+            if (document.getInfo().firstActivityEventTimeMillis == 0) {
+                continue;
+            }
+            int order = FIRESTORE_ORDER.compare(document, start);
+            if (order > 0 || (order == 0 && watermark.isInclusive())) {
+                documents.add(document);
+            }
+        }
+        documents.sort(FIRESTORE_ORDER);
+        return documents.iterator();
+    }
+
+    @Override
+    public boolean hasAnyUserInfo(String userId) {
+        return !getUserData(userId).mTransitions.isEmpty();
+    }
+
+    @Override
+    public ApiFuture<List<DeviceInformationDocument>> getAllUserDeviceInfoByIdAsync(String userId) {
+        return ApiFutures.immediateFuture(new ArrayList<>(getUserData(userId).mDeviceInfos));
+    }
+
+    @Override
+    public void release(String userId) {
+        mUsers.remove(userId);
+    }
+
+    private UserData getUserData(String userId) {
+        UserData userData = mUsers.get(userId);
+        if (userData != null) {
+            return userData;
+        }
+        // The user was not listed, scan the files for it
+        GroupReader transitions = new GroupReader(mTransitionsFile);
+        GroupReader deviceInfos = new GroupReader(mDeviceInfoFile);
+        try {
+            userData = new UserData(decodeTransitions(transitions.findGroup(userId)),
+                    decodeDeviceInfos(deviceInfos.findGroup(userId)));
+        } finally {
+            transitions.close();
+            deviceInfos.close();
+        }
+        UserData previous = mUsers.putIfAbsent(userId, userData);
+        return previous != null ? previous : userData;
+    }
+
+    private List<TravelBehaviorDocument> decodeTransitions(List<JsonObject> lines) {
+        List<TravelBehaviorDocument> documents = new ArrayList<>(lines.size());
+        for (JsonObject line : lines) {
+            documents.add(new TravelBehaviorDocument(line.get(ID).getAsString(),
+                    mGson.fromJson(line.get(DATA), TravelBehaviorInfo.class)));
+        }
+        return documents;
+    }
+
+    private List<DeviceInformationDocument> decodeDeviceInfos(List<JsonObject> lines) {
+        List<DeviceInformationDocument> documents = new ArrayList<>(lines.size());
+        for (JsonObject line : lines) {
+            documents.add(new DeviceInformationDocument(line.get(ID).getAsString(),
+                    mGson.fromJson(line.get(DATA), DeviceInformation.class)));
+        }
+        return documents;
+    }
+
+    /**
+     * Reads the consecutive lines of each user from a dump sorted by user id
+     */
+    private static class GroupReader {
+
+        private BufferedReader mReader;
+
+        private JsonObject mNext;
+
+        private String mNextUserId;
+
+        /**
+         * @param file dump to read, or null to read nothing
+         */
+        GroupReader(File file) {
+            if (file == null) {
+                return;
+            }
+            try {
+                InputStream inputStream = new FileInputStream(file);
+                if (file.getName().endsWith(GZIP_EXTENSION)) {
+                    inputStream = new GZIPInputStream(inputStream);
+                }
+                mReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            advance();
+        }
+
+        String peekUserId() {
+            return mNextUserId;
+        }
+
+        /**
+         * Reads the lines of a user, which must be the next lines of the dump
+         * @param userId id of the user
+         * @return the lines of the user, or an empty list if the next lines belong to another user
+         */
+        List<JsonObject> readGroup(String userId) {
+            List<JsonObject> lines = new ArrayList<>();
+            while (mNextUserId != null && mNextUserId.equals(userId)) {
+                lines.add(mNext);
+                advance();
+            }
+            return lines;
+        }
+
+        /**
+         * Skips the lines of the users before the given one and reads the lines of the user
+         * @param userId id of the user
+         * @return the lines of the user, or an empty list if the dump has no lines for the user
+         */
+        List<JsonObject> findGroup(String userId) {
+            while (mNextUserId != null && mNextUserId.compareTo(userId) < 0) {
+                advance();
+            }
+            return readGroup(userId);
+        }
+
+        private void advance() {
+            String previousUserId = mNextUserId;
+            mNext = null;
+            mNextUserId = null;
+            if (mReader == null) {
+                return;
+            }
+            try {
+                String line;
+                do {
+                    line = mReader.readLine();
+                } while (line != null && line.trim().isEmpty());
+                if (line == null) {
+                    close();
+                    return;
+                }
+                mNext = JsonParser.parseString(line).getAsJsonObject();
+                mNextUserId = mNext.get(USER_ID).getAsString();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (previousUserId != null && mNextUserId.compareTo(previousUserId) < 0) {
+                throw new IllegalStateException("The replay files must be sorted by userId, found " + mNextUserId +
+                        " after " + previousUserId);
+            }
+        }
+
+        void close() {
+            if (mReader == null) {
+                return;
+            }
+            try {
+                mReader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mReader = null;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.io;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+import edu.usf.cutr.tba.constants.FirebaseConstants;
+import edu.usf.cutr.tba.utils.ShardUtils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Combines the CSV files written by the shards of a sharded run into the CSV file of the output directory. Trip and
+ * tour ids only depend on the user and its documents, so the rows of the shards are copied as they are.
+ */
+public class ShardMerger {
+
+    private final String mOutputDir;
+
+    private final int mShardCount;
+
+    /**
+     * @param outputDir output directory that contains the directories of the shards
+     * @param shardCount number of shards of the run
+     */
+    public ShardMerger(String outputDir, int shardCount) {
+        mOutputDir = outputDir;
+        mShardCount = shardCount;
+    }
+
+    /**
+     * Writes the rows of all shards to the CSV file of the output directory
+     * @return true if all shards were merged, false if a shard is missing or can't be read
+     */
+    public boolean merge() {
+        for (int i = 0; i < mShardCount; i++) {
+            if (!getShardCsvFile(i).exists()) {
+                System.err.println("The CSV file of shard " + i + " doesn't exist: " + getShardCsvFile(i));
+                return false;
+            }
+        }
+
+        File mergedFile = Paths.get(mOutputDir, FirebaseConstants.TRAVEL_BEHAVIOR_CSV_FILE).toFile();
+        try (CSVWriter writer = new CSVWriter(new FileWriter(mergedFile))) {
+            String[] header = null;
+            long rowCount = 0;
+            for (int i = 0; i < mShardCount; i++) {
+                try (CSVReader reader = new CSVReader(CSVFileReader.getReader(getShardCsvFile(i).getPath()))) {
+                    String[] shardHeader = reader.readNext();
+                    if (shardHeader == null) {
+                        continue;
+                    }
+                    if (header == null) {
+                        header = shardHeader;
+                        writer.writeNext(header);
+                    } else if (!Arrays.equals(header, shardHeader)) {
+                        System.err.println("The CSV file of shard " + i + " has different columns than shard 0.");
+                        return false;
+                    }
+                    String[] row;
+                    while ((row = reader.readNext()) != null) {
+                        writer.writeNext(row);
+                        rowCount++;
+                    }
+                }
+            }
+            System.out.println("Merged " + rowCount + " rows of " + mShardCount + " shards into " + mergedFile);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Unable to merge the CSV files of the shards.");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private File getShardCsvFile(int shardIndex) {
+        return Paths.get(ShardUtils.getShardDir(mOutputDir, shardIndex), FirebaseConstants.TRAVEL_BEHAVIOR_CSV_FILE)
+                .toFile();
+    }
+}
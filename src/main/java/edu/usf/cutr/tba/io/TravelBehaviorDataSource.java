@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.io;
+
+import com.google.api.core.ApiFuture;
+import edu.usf.cutr.tba.model.DeviceInformationDocument;
+import edu.usf.cutr.tba.model.TravelBehaviorDocument;
+import edu.usf.cutr.tba.model.UserWatermark;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Source of the users and of their activity transitions and device information. Implementations must be thread-safe,
+ * as several users can be analyzed concurrently. The returned lists can be modified by the caller.
+ */
+public interface TravelBehaviorDataSource {
+
+    /**
+     * Streams the ids of all users
+     * @return iterator over the ids of all users
+     */
+    Iterator<String> getAllUserIds();
+
+    /**
+     * Starts reading all activity transitions of a user
+     * @param userId id of user to retrieve data from
+     * @return future list including all activity transitions of the user
+     */
+    ApiFuture<List<TravelBehaviorDocument>> getAllUserInfoByIdAsync(String userId);
+
+    /**
+     * Starts reading the activity transitions of a user whose firstActivityEventTimeMillis is within a date range
+     * @param userId id of user to retrieve data from
+     * @param startDateMillis starting date to filter activities
+     * @param endDateMillis end date to filter activities
+     * @return future list including the activity transitions of the user filtered by the date range
+     */
+    ApiFuture<List<TravelBehaviorDocument>> getAllUserInfoByIdAndDateRangeAsync(String userId, long startDateMillis,
+                                                                                long endDateMillis);
+
+    /**
+     * Streams the activity transitions of a user ordered by firstActivityEventTimeMillis. Activity transitions
+     * without that field are not returned.
+     * @param userId id of user to retrieve data from
+     * @param startDateMillis starting date to filter activities, or 0 to not filter the activities by date
+     * @param endDateMillis end date to filter activities, or 0 to not filter the activities by date
+     * @return iterator over the activity transitions ordered by firstActivityEventTimeMillis
+     */
+    Iterator<TravelBehaviorDocument> getUserInfoByIdOrderedByTime(String userId, long startDateMillis,
+                                                                  long endDateMillis);
+
+    /**
+     * Streams the activity transitions of a user ordered by firstActivityEventTimeMillis and document id, starting
+     * at the watermark left by a previous incremental run.
+     * @param userId id of user to retrieve data from
+     * @param watermark watermark of the user
+     * @return iterator over the activity transitions from the watermark on
+     */
+    Iterator<TravelBehaviorDocument> getUserInfoByIdFromWatermark(String userId, UserWatermark watermark);
+
+    /**
+     * Returns true if the user has at least one activity transition document
+     * @param userId id of user to retrieve data from
+     * @return true if the user has at least one activity transition document
+     */
+    boolean hasAnyUserInfo(String userId);
+
+    /**
+     * Starts reading the device information of a user
+     * @param userId id of user to retrieve data from
+     * @return future list including the device information of the user
+     */
+    ApiFuture<List<DeviceInformationDocument>> getAllUserDeviceInfoByIdAsync(String userId);
+
+    /**
+     * Called once the data of a user is no longer needed, so it can be released
+     * @param userId id of the user
+     */
+    default void release(String userId) {
+    }
+
+    /**
+     * Called once the job is done, so the resources of the data source can be released
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.io;
+
+import edu.usf.cutr.tba.model.TravelBehaviorRecord;
+
+import java.util.List;
+
+/**
+ * Thread-safe destination for completed travel behavior records. The rows of each day are appended to the shared CSV
+ * file as soon as the day is completed, so only the current day of each user is held in memory. The rows of a day are
+ * never interleaved with rows of another user, but the days of users processed concurrently are. Each day is recorded
+ * in the checkpoint journal once its rows are flushed, and each user once all its days are. KMZ files are written per
+ * user-day and don't share any state, so they are written outside of the CSV lock.
+ */
+public class TravelBehaviorRecordSink {
+
+    private final CSVFileWriter mCSVFileWriter;
+
+    private final KmlFileWriter mKmlFileWriter;
+
+    private final CheckpointJournal mCheckpointJournal;
+
+    /**
+     * @param csvFileWriter writer for the shared CSV file
+     * @param kmlFileWriter writer for the KMZ files, or null if KMZ files should not be exported
+     * @param checkpointJournal journal of the written days and completed users
+     */
+    public TravelBehaviorRecordSink(CSVFileWriter csvFileWriter, KmlFileWriter kmlFileWriter,
+                                    CheckpointJournal checkpointJournal) {
+        mCSVFileWriter = csvFileWriter;
+        mKmlFileWriter = kmlFileWriter;
+        mCheckpointJournal = checkpointJournal;
+    }
+
+    /**
+     * Writes all records of a user-day to a KMZ file, if enabled, and to the CSV file, and records the day in the
+     * checkpoint journal
+     * @param userId firebase user id
+     * @param dayStartMillis start of the day, see TravelBehaviorSegmenter.DayListener
+     * @param oneDayTravelBehaviorRecordList records of a single user for a single day
+     * @return number of rows written to the CSV file
+     */
+    public int appendDay(String userId, long dayStartMillis,
+                         List<TravelBehaviorRecord> oneDayTravelBehaviorRecordList) {
+        String kmzFileName = null;
+        if (mKmlFileWriter != null) {
+            // Write a KML file for this user's behavior for this day
+            kmzFileName = mKmlFileWriter.appendAllToKml(oneDayTravelBehaviorRecordList);
+        }
+        synchronized (mCSVFileWriter) {
+            int recordCount = mCSVFileWriter.appendAllToCsV(oneDayTravelBehaviorRecordList);
+            long csvOffset = mCSVFileWriter.flushAndGetOffset();
+            if (csvOffset >= 0) {
+                mCheckpointJournal.appendDay(userId, dayStartMillis, csvOffset, recordCount, kmzFileName);
+            }
+            return recordCount;
+        }
+    }
+
+    /**
+     * Prepares the output of a user before its days are written. When a run is resumed the KMZ files of the user that
+     * are not recorded in the checkpoint journal are deleted, they belong to days that were being written when the
+     * previous run stopped and are written again.
+     * @param userId firebase user id
+     */
+    public void startUser(String userId) {
+        if (mKmlFileWriter != null && mCheckpointJournal.isResumed()) {
+            mKmlFileWriter.deleteUserFiles(userId, mCheckpointJournal.getKmzFileNames(userId));
+        }
+    }
+
+    /**
+     * Returns the start of the last day of a user written by a previous run that stopped before the user was completed
+     * @param userId firebase user id
+     * @return the start of the last day written for the user, or null if none of its days was written
+     */
+    public Long getLastDayStartMillis(String userId) {
+        return mCheckpointJournal.getLastDayStartMillis(userId);
+    }
+
+    /**
+     * Records in the checkpoint journal that all days of a user were written
+     * @param userId firebase user id
+     * @param recordCount number of rows of the user
+     */
+    public void completeUser(String userId, int recordCount) {
+        synchronized (mCSVFileWriter) {
+            long csvOffset = mCSVFileWriter.flushAndGetOffset();
+            if (csvOffset >= 0) {
+                mCheckpointJournal.appendUserCompleted(userId, csvOffset, recordCount);
+            }
+        }
+    }
+}
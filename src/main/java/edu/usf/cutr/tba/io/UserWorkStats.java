@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.io;
+
+import com.opencsv.CSVWriter;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe store of the work each user took in previous runs, i.e. the number of activity transitions and the time
+ * spent processing them. It is used to start the heaviest users first, so a large user found at the end of the list
+ * doesn't keep a single worker busy after all the others are done. The stats of the previous runs are loaded from the
+ * stats file, updated as users are processed and written back once the run is completed.
+ */
+public class UserWorkStats {
+
+    private static final int COLUMN_COUNT = 3;
+
+    private final File mFile;
+
+    private final Map<String, long[]> mStats = new ConcurrentHashMap<>();
+
+    /**
+     * @param statsFilePath path of the stats file. If it doesn't exist all users are processed in the listed order.
+     */
+    public UserWorkStats(String statsFilePath) {
+        mFile = new File(statsFilePath);
+        if (!mFile.exists()) {
+            return;
+        }
+        List<String[]> rows = new CSVFileReader().readUserList(mFile.getPath());
+        if (rows == null) {
+            return;
+        }
+        for (String[] row : rows) {
+            if (row.length != COLUMN_COUNT || row[0] == null) {
+                continue;
+            }
+            try {
+                mStats.put(row[0], new long[]{Long.parseLong(row[1]), Long.parseLong(row[2])});
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring invalid work stats of user " + row[0]);
+            }
+        }
+    }
+
+    /**
+     * Records the work of a user in this run
+     * @param userId firebase user id
+     * @param documentCount number of activity transitions analyzed
+     * @param processingMillis time spent downloading and analyzing the data of the user
+     */
+    public void put(String userId, long documentCount, long processingMillis) {
+        mStats.put(userId, new long[]{documentCount, processingMillis});
+    }
+
+    /**
+     * Returns the time it took to process a user in the last run that processed it
+     * @param userId firebase user id
+     * @return the processing time in milliseconds, or 0 if the user was never processed
+     */
+    public long getProcessingMillis(String userId) {
+        long[] stats = mStats.get(userId);
+        return stats != null ? stats[1] : 0;
+    }
+
+    /**
+     * Returns the number of activity transitions of a user in the last run that processed it
+     * @param userId firebase user id
+     * @return the number of activity transitions, or 0 if the user was never processed
+     */
+    public long getDocumentCount(String userId) {
+        long[] stats = mStats.get(userId);
+        return stats != null ? stats[0] : 0;
+    }
+
+    /**
+     * Orders users from the heaviest to the lightest according to the previous runs. Users that were never processed
+     * are placed last, in their original order.
+     * @param userIds ids of the users to order
+     * @return the ordered user ids
+     */
+    public List<String> sortByWorkDescending(Collection<String> userIds) {
+        List<String> sorted = new ArrayList<>(userIds);
+        sorted.sort((u1, u2) -> {
+            int order = Long.compare(getProcessingMillis(u2), getProcessingMillis(u1));
+            return order != 0 ? order : Long.compare(getDocumentCount(u2), getDocumentCount(u1));
+        });
+        return sorted;
+    }
+
+    /**
+     * Writes the stats of all users to the stats file. They are written to a temporary file first, so the previous
+     * stats are kept if the run stops while writing.
+     */
+    public void save() {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try (CSVWriter writer = new CSVWriter(new FileWriter(tempFile))) {
+            for (Map.Entry<String, long[]> entry : mStats.entrySet()) {
+                writer.writeNext(new String[]{entry.getKey(), String.valueOf(entry.getValue()[0]),
+                        String.valueOf(entry.getValue()[1])});
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to write the work stats file.");
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tempFile.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Unable to replace the work stats file.");
+            e.printStackTrace();
+        }
+    }
+}
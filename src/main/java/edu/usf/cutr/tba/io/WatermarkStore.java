@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.io;
+
+import com.opencsv.CSVWriter;
+import edu.usf.cutr.tba.model.UserWatermark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe store of the watermark of each user used by incremental runs. The watermarks of the previous run are
+ * loaded from the state file, updated as users are analyzed and written back once the run is completed. Users that
+ * are not analyzed by a run keep their previous watermark.
+ */
+public class WatermarkStore {
+
+    private static final int COLUMN_COUNT = 5;
+
+    private final File mFile;
+
+    private final Map<String, UserWatermark> mWatermarks = new ConcurrentHashMap<>();
+
+    /**
+     * @param stateFilePath path of the state file. If it doesn't exist all users are analyzed from the beginning.
+     */
+    public WatermarkStore(String stateFilePath) {
+        mFile = new File(stateFilePath);
+        if (!mFile.exists()) {
+            return;
+        }
+        List<String[]> rows = new CSVFileReader().readUserList(mFile.getPath());
+        if (rows == null) {
+            return;
+        }
+        for (String[] row : rows) {
+            if (row.length != COLUMN_COUNT || row[0] == null || row[2] == null) {
+                continue;
+            }
+            try {
+                mWatermarks.put(row[0], new UserWatermark(Long.parseLong(row[1]), row[2],
+                        Boolean.parseBoolean(row[3]), Integer.parseInt(row[4])));
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring invalid watermark of user " + row[0]);
+            }
+        }
+    }
+
+    /**
+     * Returns the watermark of a user
+     * @param userId firebase user id
+     * @return the watermark of the user, or null if the user was never analyzed
+     */
+    public UserWatermark get(String userId) {
+        return mWatermarks.get(userId);
+    }
+
+    public void put(String userId, UserWatermark watermark) {
+        mWatermarks.put(userId, watermark);
+    }
+
+    /**
+     * Writes all watermarks to the state file. They are written to a temporary file first, so the previous state is
+     * kept if the run stops while writing.
+     */
+    public void save() {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try (CSVWriter writer = new CSVWriter(new FileWriter(tempFile))) {
+            for (Map.Entry<String, UserWatermark> entry : mWatermarks.entrySet()) {
+                UserWatermark watermark = entry.getValue();
+                writer.writeNext(new String[]{entry.getKey(), String.valueOf(watermark.getEventTimeMillis()),
+                        watermark.getDocumentId(), String.valueOf(watermark.isInclusive()),
+                        String.valueOf(watermark.getDeviceTripId())});
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to write the incremental state file.");
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tempFile.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Unable to replace the incremental state file.");
+            e.printStackTrace();
+        }
+    }
+}
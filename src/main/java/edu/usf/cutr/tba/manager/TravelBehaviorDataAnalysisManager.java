@@ -15,31 +15,31 @@
  */
 package edu.usf.cutr.tba.manager;
 
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-import edu.usf.cutr.tba.constants.TravelBehaviorConstants;
 import edu.usf.cutr.tba.exception.FirebaseFileNotInitializedException;
-import edu.usf.cutr.tba.io.CSVFileReader;
-import edu.usf.cutr.tba.io.CSVFileWriter;
-import edu.usf.cutr.tba.io.FirebaseReader;
-import edu.usf.cutr.tba.io.KmlFileWriter;
-import edu.usf.cutr.tba.model.DeviceInformation;
-import edu.usf.cutr.tba.model.TravelBehaviorInfo;
+import edu.usf.cutr.tba.exception.FirestoreReadException;
+import edu.usf.cutr.tba.io.*;
 import edu.usf.cutr.tba.model.TravelBehaviorRecord;
 import edu.usf.cutr.tba.options.ProgramOptions;
-import edu.usf.cutr.tba.utils.*;
+import edu.usf.cutr.tba.utils.ShardUtils;
+import edu.usf.cutr.tba.utils.TimeZoneHelper;
 
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class TravelBehaviorDataAnalysisManager {
 
-    private ProgramOptions mProgramOptions;
+    private final ProgramOptions mProgramOptions;
 
-    private FirebaseReader mFirebaseReader;
+    private TravelBehaviorDataSource mDataSource;
 
     private CSVFileWriter mCSVFileWriter;
 
@@ -47,31 +47,95 @@ public class TravelBehaviorDataAnalysisManager {
 
     private KmlFileWriter mKmlFileWriter;
 
-    private TravelBehaviorRecord mLastTravelBehaviorRecord;
+    private TravelBehaviorRecordSink mSink;
 
-    private List<TravelBehaviorRecord> mOneDayTravelBehaviorRecordList;
+    private CheckpointJournal mCheckpointJournal;
 
-    private int mTripId = 0;
+    // True if the run continues the output of a previous run
+    private boolean mResumed;
 
-    private int mTourId = 0;
+    private int mSkippedUserCount = 0;
 
-    private int mDeviceTripId = 0;
+    // Users that failed, they are not recorded as completed in the journal so -resume processes them again
+    private final Queue<String> mFailedUserIds = new ConcurrentLinkedQueue<>();
 
-    public TravelBehaviorDataAnalysisManager() throws FirebaseFileNotInitializedException {
-        mFirebaseReader = new FirebaseReader();
-        mCSVFileWriter = new CSVFileWriter();
-        mOneDayTravelBehaviorRecordList = new ArrayList<>();
-        mProgramOptions = ProgramOptions.getInstance();
+    // Watermarks of the incremental run, or null if the run is not incremental
+    private WatermarkStore mWatermarkStore;
+
+    // Work of each user in previous runs, or null if the users are processed in the listed order
+    private UserWorkStats mUserWorkStats;
+
+    /**
+     * Worker pool used to process several users concurrently, or null if users are processed on the calling thread
+     */
+    private ThreadPoolExecutor mExecutor;
+
+    /**
+     * Users whose data is being downloaded ahead of time, in the order they must be processed
+     */
+    private final ArrayDeque<UserTravelBehaviorProcessor> mPrefetchedUsers = new ArrayDeque<>();
+
+    /**
+     * @param programOptions options of the export job
+     * @throws FirebaseFileNotInitializedException if the data is read from Firestore and no admin key is set
+     */
+    public TravelBehaviorDataAnalysisManager(ProgramOptions programOptions) throws FirebaseFileNotInitializedException {
+        mProgramOptions = programOptions;
+        // Load the time zones while the first documents are downloaded
+        TimeZoneHelper timeZoneHelper = TimeZoneHelper.getInstance(mProgramOptions.getTimeZoneBounds());
+        if (mProgramOptions.getReplayDir() != null) {
+            mDataSource = new ReplayDataSource(mProgramOptions.getReplayDir());
+        } else {
+            mDataSource = new FirebaseReader(mProgramOptions);
+        }
+        mCheckpointJournal = new CheckpointJournal(mProgramOptions.getOutputDir(), mProgramOptions.isResume());
+        mResumed = mCheckpointJournal.getCsvOffset() > 0;
+        if (mResumed) {
+            System.out.println("Resuming the previous run, " + mCheckpointJournal.getCompletedUserCount() +
+                    " users were already completed");
+            mCSVFileWriter = new CSVFileWriter(mProgramOptions.getOutputDir(),
+                    mCheckpointJournal.getCsvOffset());
+        } else {
+            mCSVFileWriter = new CSVFileWriter(mProgramOptions.getOutputDir());
+        }
         mCSVFileReader = new CSVFileReader();
 
+        if (mProgramOptions.getIncrementalStatePath() != null) {
+            mWatermarkStore = new WatermarkStore(mProgramOptions.getIncrementalStatePath());
+        }
+
+        if (mProgramOptions.getWorkStatsPath() != null) {
+            mUserWorkStats = new UserWorkStats(mProgramOptions.getWorkStatsPath());
+        }
+
         if (!mProgramOptions.skipKmz()) {
-            mKmlFileWriter = new KmlFileWriter();
+            mKmlFileWriter = new KmlFileWriter(mProgramOptions.getOutputDir(), timeZoneHelper);
+        }
+        mSink = new TravelBehaviorRecordSink(mCSVFileWriter, mKmlFileWriter, mCheckpointJournal);
+
+        int threads = mProgramOptions.getThreads();
+        if (threads > 1) {
+            // Bound the queue so users are handed to the workers as they become free instead of all at once. When
+            // the queue is full the calling thread waits for a free slot, instead of processing the user itself,
+            // so it never holds up the submission of the next users while a long user is being processed.
+            RejectedExecutionHandler waitForFreeSlot = (runnable, executor) -> {
+                try {
+                    executor.getQueue().put(runnable);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+            };
+            mExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(threads * 2), waitForFreeSlot);
         }
     }
 
     public void processData() {
-        // create csv file and add the header
-        mCSVFileWriter.createHeader(TravelBehaviorRecord.CSV_HEADER);
+        // create csv file and add the header, unless the rows are appended to the file of a previous run
+        if (!mResumed) {
+            mCSVFileWriter.createHeader(TravelBehaviorRecord.CSV_HEADER);
+        }
 
         if (mProgramOptions.getMultiUserId() != null) {
             // analyze all data for a specific list of userIds
@@ -84,8 +148,34 @@ public class TravelBehaviorDataAnalysisManager {
             analyzeAllTravelBehaviorData();
         }
 
+        // process the users that are still being downloaded
+        while (!mPrefetchedUsers.isEmpty()) {
+            runProcessor(mPrefetchedUsers.poll());
+        }
+
+        awaitAllUsersProcessed();
+        mDataSource.close();
+
+        if (mSkippedUserCount > 0) {
+            System.out.println("Skipped " + mSkippedUserCount + " users completed by the previous run");
+        }
+
+        if (!mFailedUserIds.isEmpty()) {
+            System.err.println("Failed to process " + mFailedUserIds.size() + " users, run again with -resume to " +
+                    "retry them: " + String.join(", ", mFailedUserIds));
+        }
+
         //close the csv file
         mCSVFileWriter.closeWriter();
+        mCheckpointJournal.close();
+
+        if (mWatermarkStore != null) {
+            mWatermarkStore.save();
+        }
+
+        if (mUserWorkStats != null) {
+            mUserWorkStats.save();
+        }
     }
 
     /**
@@ -94,10 +184,17 @@ public class TravelBehaviorDataAnalysisManager {
     private void analyzeListOfUserIdTravelBehaviorData(String pathToCSVFileListOfUserIds) {
         List<String[]> allUserIds = mCSVFileReader.readUserList(pathToCSVFileListOfUserIds);
         if (allUserIds.size() > 0) {
+            List<String> userIds = new ArrayList<>();
+            for (String[] userId : allUserIds) {
+                userIds.add(userId[0]);
+            }
+            if (mUserWorkStats != null) {
+                userIds = mUserWorkStats.sortByWorkDescending(userIds);
+            }
             int userRecordNumber = 1;
-            for(String[] userId : allUserIds){
-                System.out.println("Processing user record " + userRecordNumber + " out of " + allUserIds.size());
-                processUserById(userId[0]);
+            for (String userId : userIds) {
+                System.out.println("Processing user record " + userRecordNumber + " out of " + userIds.size());
+                processUserById(userId);
                 userRecordNumber++;
             }
         } else {
@@ -106,449 +203,110 @@ public class TravelBehaviorDataAnalysisManager {
     }
 
     /**
-     * Retrieves all user ids in firebase and analyses each user's data one by one
+     * Streams all user ids in firebase and analyses each user's data one by one. If work stats are available all ids
+     * are listed first and the heaviest users are processed first.
      */
     private void analyzeAllTravelBehaviorData() {
-        List<QueryDocumentSnapshot> allUserIds = mFirebaseReader.getAllUserIds();
+        Iterator<String> allUserIds = mDataSource.getAllUserIds();
+        if (mUserWorkStats != null) {
+            List<String> userIds = new ArrayList<>();
+            allUserIds.forEachRemaining(userIds::add);
+            allUserIds = mUserWorkStats.sortByWorkDescending(userIds).iterator();
+        }
         int userRecordNumber = 1;
-        for (QueryDocumentSnapshot doc : allUserIds) {
+        while (allUserIds.hasNext()) {
             if (userRecordNumber % ProgramOptions.SHOW_PROGRESS_INTERVAL == 1) {
-                System.out.println("Processing user record " + userRecordNumber + " out of " + allUserIds.size());
+                System.out.println("Processing user record " + userRecordNumber);
             }
-            processUserById(doc.getId());
+            processUserById(allUserIds.next());
             userRecordNumber++;
         }
+        System.out.println("Processed " + (userRecordNumber - 1) + " user records");
     }
 
     /**
-     * analyzes a user data by the given user id
+     * Analyzes a user data by the given user id, unless it belongs to another shard or a previous run completed it.
+     * If prefetching is enabled the download of the user data starts right away, and the user is processed once the
+     * given number of users are queued after it. If more than one thread is configured the user is queued to be
+     * processed by the worker pool, otherwise it is processed on the calling thread.
      * @param userId firebase user id
      */
     private void processUserById(String userId) {
-        // Reset DeviceTripID every time a new user data is processed
-        mDeviceTripId = 0;
-        // Holds all user data by id
-        List<QueryDocumentSnapshot> userInfoById;
-
-        long startDateMillis = mProgramOptions.getStartDate();
-        long endDateMillis = mProgramOptions.getEndDate();
-
-        if (startDateMillis > 0 && endDateMillis > 0) {
-            // Valid date range exists, make a filtered query by using date range
-            userInfoById = new ArrayList<>(mFirebaseReader.getAllUserInfoByIdAndDateRange(userId, startDateMillis, endDateMillis));
-        } else {
-            // No valid date range defined, continue with a regular query by userId
-            userInfoById = new ArrayList<>(mFirebaseReader.getAllUserInfoById(userId));
-        }
-        // sorts the data by activity time
-        Collections.sort(userInfoById, new QueryDocumentSnapshotComparator());
-
-        mLastTravelBehaviorRecord = null;
-
-        // Get the device information of the current userId
-        List<QueryDocumentSnapshot> userDeviceInfoList = new ArrayList<>(mFirebaseReader.getAllUserDeviceInfoById(userId));
-
-        // Sort the data by timestamp, if timestamp is not available, then the comparator will
-        // fall back to the QueryDocumentSnapshot id which is assumed has the timestamp as its name
-        Collections.sort(userDeviceInfoList, new QueryDocumentSnapshotDeviceComparator());
-
-        // create sub-folder named after userId for kmz files
-        if (!mProgramOptions.skipKmz()) {
-            Path userFolderPath = Paths.get(mProgramOptions.getOutputDir(), userId);
-            StringUtils.validateAndParseFolderPath(userFolderPath.toString());
-        }
-
-        // analyze each transition activity of the user one by one
-        for (QueryDocumentSnapshot doc : userInfoById) {
-            processUserActivityTransitionData(doc, userId, userDeviceInfoList);
-        }
-
-        if (mOneDayTravelBehaviorRecordList.size() > 0) {
-            applyTourAlgorithmToOneDayRecordList();
-        }
-    }
-
-    /**
-     *  -- if mLastTravelBehaviorRecord is null which means there is no previous enter activity then we look for an enter
-     *     activity ub tge given Travel Behavior data.
-     *  -- if mLastTravelBehaviorRecord is not null which means there is a previous enter activity then we look for an
-     *     exit activity in the data.
-     *
-     * @param doc user's travel behavior data
-     * @param userId firebase user id
-     * @param userDeviceInfoList a list that contains user's device info
-     */
-    private void processUserActivityTransitionData(QueryDocumentSnapshot doc, String userId,
-                                                   List<QueryDocumentSnapshot> userDeviceInfoList) {
-        TravelBehaviorInfo tbi = doc.toObject(TravelBehaviorInfo.class);
-        if (mLastTravelBehaviorRecord == null) {
-            TravelBehaviorInfo.TravelBehaviorActivity enterActivity = TravelBehaviorUtils.getEnterActivity(tbi.activities);
-            if (enterActivity != null) {
-                mLastTravelBehaviorRecord = createTravelBehaviorRecord(userId, tbi, enterActivity);
-            }
-        } else {
-            TravelBehaviorInfo.TravelBehaviorActivity exitActivity = TravelBehaviorUtils.getExitActivity(tbi.activities);
-            if (exitActivity != null &&
-                    exitActivity.detectedActivity.equals(mLastTravelBehaviorRecord.getGoogleActivity())) {
-                completeTravelBehaviorRecord(tbi, doc, userDeviceInfoList);
-                mLastTravelBehaviorRecord.setTripId(String.valueOf(mTripId++));
-                // Set the device trip Id
-                mLastTravelBehaviorRecord.setDeviceTripId(String.valueOf(mDeviceTripId++));
-
-                addTravelBehaviorRecord(mLastTravelBehaviorRecord);
-
-                mergeStillEvents();
-
-                mergeWalkingAndRunningEvents();
-            }
-
-            mLastTravelBehaviorRecord = null;
-
-            TravelBehaviorInfo.TravelBehaviorActivity enterActivity = TravelBehaviorUtils.getEnterActivity(tbi.activities);
-            if (enterActivity != null) {
-                mLastTravelBehaviorRecord = createTravelBehaviorRecord(userId, tbi, enterActivity);
-            }
-        }
-    }
-
-    /**
-     * The method creates a TravelBehaviorRecord for an enter activity which is a row representation in the output CSV
-     * The created object is not complete and it only contains the data from the enter activity. In order for this
-     * object to be valid, the next TravelBehavior data should be a matching exit activity.
-     *
-     * @param userId firebase user id
-     * @param tbi Firebase TravelBehaviorInfo object
-     * @param enterActivity enter activity
-     * @return new travel behavior record
-     */
-    private TravelBehaviorRecord createTravelBehaviorRecord(String userId, TravelBehaviorInfo tbi,
-                                                            TravelBehaviorInfo.TravelBehaviorActivity enterActivity) {
-        TravelBehaviorRecord tbr = new TravelBehaviorRecord(userId);
-        tbr.setGoogleActivity(enterActivity.detectedActivity).
-                setGoogleConfidence(enterActivity.confidenceLevel == null ? null :
-                        ((float) enterActivity.confidenceLevel / 100f));
-
-        Long activityStartTime = TravelBehaviorUtils.getActivityStartTime(tbi);
-
-        if (activityStartTime != null) {
-            tbr.setActivityStartDateAndTime(TravelBehaviorUtils.getDateAndTimeFromMillis(activityStartTime)).
-                    setActivityStartTimeMillis(activityStartTime);
-        }
-
-        List<TravelBehaviorInfo.LocationInfo> locationInfoList = tbi.locationInfoList;
-        TravelBehaviorInfo.LocationInfo bestLocation = LocationUtils.getBestLocation(locationInfoList, activityStartTime);
-        if (bestLocation != null) {
-            tbr.setStartLat(bestLocation.getLat()).setStartLon(bestLocation.getLon()).
-                    setOriginLocationDateAndTime(TravelBehaviorUtils.getDateAndTimeFromMillis(bestLocation.time)).
-                    setOriginHorAccuracy(bestLocation.accuracy).setOriginProvider(bestLocation.provider).
-                    setLocationStartTimeMillis(bestLocation.time);
-            // Add locationInfoList to the start of the tbr
-            tbr.locationInfoListOrigin = tbi.locationInfoList;
-        }
-
-        if (tbr.getActivityStartTimeMillis() != null && tbr.getLocationStartTimeMillis() != null) {
-            long diff = Math.abs(tbr.getActivityStartTimeMillis() - tbr.getLocationStartTimeMillis());
-            tbr.setActivityStartOriginTimeDiff(TravelBehaviorUtils.millisToMinutes(diff));
-        }
-
-
-        return tbr;
-    }
-
-    /**
-     * This method completes the last travel behavior record object with an exit activity.
-     *
-     * @param tbi TravelBehaviorInfo
-     * @param doc Firebase representation of  TravelBehaviorInfo, we use it's time to determine the closest device info
-     * @param userDeviceInfoList the device info list that contains the region id
-     */
-    private void completeTravelBehaviorRecord(TravelBehaviorInfo tbi, QueryDocumentSnapshot doc,
-                                              List<QueryDocumentSnapshot> userDeviceInfoList) {
-        Long activityEndTime = TravelBehaviorUtils.getActivityStartTime(tbi);
-
-        if (activityEndTime != null) {
-            mLastTravelBehaviorRecord.setActivityEndDateAndTime(TravelBehaviorUtils.getDateAndTimeFromMillis(activityEndTime)).
-                    setActivityEndTimeMillis(activityEndTime);
-        }
-
-        List<TravelBehaviorInfo.LocationInfo> locationInfoList = tbi.locationInfoList;
-        TravelBehaviorInfo.LocationInfo bestLocation = LocationUtils.getBestLocation(locationInfoList, activityEndTime);
-        if (bestLocation != null) {
-            mLastTravelBehaviorRecord.setEndLat(bestLocation.getLat()).setEndLon(bestLocation.getLon()).
-                    setDestinationLocationDateAndTime(TravelBehaviorUtils.getDateAndTimeFromMillis(bestLocation.time)).
-                    setDestinationHorAccuracy(bestLocation.accuracy).setDestinationProvider(bestLocation.provider).
-                    setLocationEndTimeMillis(bestLocation.time);
-            // Add locationInfoList to the end of the lastTravelBehaviorRecord
-            mLastTravelBehaviorRecord.locationInfoListDestination = tbi.locationInfoList;
-        }
-
-        if (mLastTravelBehaviorRecord.getActivityEndTimeMillis() != null &&
-                mLastTravelBehaviorRecord.getLocationEndTimeMillis() != null) {
-            long diff = Math.abs(mLastTravelBehaviorRecord.getActivityEndTimeMillis() -
-                    mLastTravelBehaviorRecord.getLocationEndTimeMillis());
-            mLastTravelBehaviorRecord.setActivityEndDestinationTimeDiff(TravelBehaviorUtils.millisToMinutes(diff));
-        }
-
-        if (mLastTravelBehaviorRecord.getActivityStartTimeMillis() != null &&
-                mLastTravelBehaviorRecord.getActivityEndTimeMillis() != null) {
-            long diff = mLastTravelBehaviorRecord.getActivityEndTimeMillis() - mLastTravelBehaviorRecord.
-                    getActivityStartTimeMillis();
-            mLastTravelBehaviorRecord.setActivityDuration(TravelBehaviorUtils.millisToMinutes(diff));
-        }
-
-        if (mLastTravelBehaviorRecord.getStartLat() != null && mLastTravelBehaviorRecord.getStartLon() != null &&
-                mLastTravelBehaviorRecord.getEndLat() != null && mLastTravelBehaviorRecord.getEndLon() != null) {
-            float distance = LocationUtils.computeDistanceAndBearing(mLastTravelBehaviorRecord.getStartLat(),
-                    mLastTravelBehaviorRecord.getStartLon(), mLastTravelBehaviorRecord.getEndLat(),
-                    mLastTravelBehaviorRecord.getEndLon());
-            mLastTravelBehaviorRecord.setOriginDestinationDistance(distance);
-        }
-
-        // While completing TBR update isIgnoringBatteryOptimization, isTalkBackEnabled
-        // and isPowerSaveModeOn
-        if (mLastTravelBehaviorRecord.getActivityEndTimeMillis() != null) {
-            // Get the previous DeviceInformation but closest in time to the activity end time
-            DeviceInformation dvInfo = TravelBehaviorUtils.getClosestDeviceInfo(userDeviceInfoList,
-                    mLastTravelBehaviorRecord.getActivityEndTimeMillis());
-            if (dvInfo != null) {
-                // Get the corresponding properties when available
-                if (dvInfo.getIgnoringBatteryOptimizations() != null) {
-                    mLastTravelBehaviorRecord.setIsIgnoringBatteryOptimization(dvInfo.getIgnoringBatteryOptimizations());
-                }
-                if (dvInfo.getTalkBackEnabled() != null) {
-                    mLastTravelBehaviorRecord.setIsTalkBackEnabled(dvInfo.getTalkBackEnabled());
-                }
-
-                if (dvInfo.getPowerSaveModeEnabled() != null){
-                    mLastTravelBehaviorRecord.setIsPowerSaveModeEnabled(dvInfo.getPowerSaveModeEnabled());
-                }
-                // setRegionID
-                mLastTravelBehaviorRecord.setRegionId(String.valueOf(dvInfo.regionId));
-            }
-        }
-    }
-
-
-    /**
-     * Finds a region id in the device info list. It picks the closest time device info that is entered with the record
-     * It performs binary search to find the closest device info
-     * @param doc firebase representation of travel behavior data
-     * @param userDeviceInfoList device info list
-     * @return region id
-     */
-    private String findRegionIdFromDeviceInfoList(QueryDocumentSnapshot doc,
-                                                  List<QueryDocumentSnapshot> userDeviceInfoList) {
-        if (userDeviceInfoList == null || userDeviceInfoList.size() == 0) return null;
-        long updateTimeMillis = doc.getUpdateTime().toDate().getTime();
-
-        // binary search to find closest timestamp record
-        int low = 0;
-        int high = userDeviceInfoList.size() - 1;
-
-        while (low < high) {
-            int mid = (low + high) / 2;
-            assert (mid < high);
-            long d1 = Math.abs(userDeviceInfoList.get(mid).getUpdateTime().toDate().getTime() - updateTimeMillis);
-            long d2 = Math.abs(userDeviceInfoList.get(mid).getUpdateTime().toDate().getTime() - updateTimeMillis);
-            if (d2 <= d1) {
-                low = mid + 1;
-            } else {
-                high = mid;
-            }
-        }
-        DeviceInformation deviceInformation = userDeviceInfoList.get(high).toObject(DeviceInformation.class);
-        return String.valueOf(deviceInformation.regionId);
-    }
-
-    /**
-     * Adds a completed travel behavior record to the one day list
-     * if the given data is belong to next day it applies the tour algorithm and flushes the all today's data
-     * then adds the new data that belongs to the next day.
-     *
-     * @param tbr TravelBehaviorRecord
-     */
-    private void addTravelBehaviorRecord(TravelBehaviorRecord tbr) {
-        // By default the day starts at 3 AM and ends at 3 AM next day
-        long sameDayDiffHours = ProgramOptions.getInstance().getSameDayStartPoint() == null ? TravelBehaviorConstants.
-                SAME_DAY_TIME_DIFF : ProgramOptions.getInstance().getSameDayStartPoint();
-
-        if (mOneDayTravelBehaviorRecordList.size() == 0) {
-            // add new data to list with new tour id
-            mOneDayTravelBehaviorRecordList.add(tbr);
-        } else if (TravelBehaviorUtils.isInSameDay(mOneDayTravelBehaviorRecordList, tbr, sameDayDiffHours)) {
-            mOneDayTravelBehaviorRecordList.add(tbr);
-        } else {
-            applyTourAlgorithmToOneDayRecordList();
-            // add new data to list with new tour id
-            mOneDayTravelBehaviorRecordList.add(tbr);
+        if (mProgramOptions.getShardCount() > 1 &&
+                ShardUtils.getShard(userId, mProgramOptions.getShardCount()) != mProgramOptions.getShardIndex()) {
+            // The user is processed by another shard
+            mDataSource.release(userId);
+            return;
         }
-    }
-
-    /**
-     * TODO: Implement subtours to this tour algorithm
-     *
-     * Tour Algorithm:
-     * 1. Put all activity transition records that happened in the same day
-     *    in a list
-     * 2.  Assume the first element in the list is the home of the user
-     * 3.  Iterate over the list, if the user comes back to home then
-     * mark all transition between two home travel as one tour
-     * 4. If the user does not come to the starting place (home),
-     * all activity transition are marked with new tour ids
-     */
-    private void applyTourAlgorithmToOneDayRecordList() {
-        if (mOneDayTravelBehaviorRecordList.size() < 2) {
-            flushOneDayTravelBehaviorRecordList();
+        if (mCheckpointJournal.isCompleted(userId)) {
+            mDataSource.release(userId);
+            mSkippedUserCount++;
             return;
         }
-
-        // Assume the first record of the day is at home
-        TravelBehaviorRecord homeTbr = mOneDayTravelBehaviorRecordList.get(0);
-        int startIndex = 0;
-        int tailIndex = 1;
-
-        while (startIndex < mOneDayTravelBehaviorRecordList.size() && tailIndex < mOneDayTravelBehaviorRecordList.size()) {
-            TravelBehaviorRecord currTbr = mOneDayTravelBehaviorRecordList.get(tailIndex);
-            if (LocationUtils.isTravelBehaviorRecordsClose(homeTbr, currTbr)) {
-                setTourIdBetweenIndices(startIndex, tailIndex);
-                startIndex = ++tailIndex;
-            } else {
-                tailIndex++;
-            }
+        UserTravelBehaviorProcessor processor = new UserTravelBehaviorProcessor(userId, mDataSource, mSink,
+                mWatermarkStore, mProgramOptions);
+        int prefetch = mProgramOptions.getPrefetch();
+        if (prefetch == 0) {
+            runProcessor(processor);
+            return;
         }
-
-        flushOneDayTravelBehaviorRecordList();
-    }
-
-    private void setTourIdBetweenIndices(int startIndex, int tailIndex) {
-        int tourId = mTourId++;
-        int tourIndex = 1;
-        for (int i = startIndex; i <= tailIndex; i++) {
-            mOneDayTravelBehaviorRecordList.get(i).setTourId(tourId).setTourIndex(tourIndex++);
+        processor.prefetch();
+        mPrefetchedUsers.add(processor);
+        if (mPrefetchedUsers.size() > prefetch) {
+            runProcessor(mPrefetchedUsers.poll());
         }
     }
 
     /**
-     * Writes all one day travel behavior data to the CSV file
+     * Processes a user on the worker pool, or on the calling thread if there is no worker pool
+     * @param processor processor of the user
      */
-    private void flushOneDayTravelBehaviorRecordList() {
-        // flush all data to csv
-        mCSVFileWriter.appendAllToCsV(mOneDayTravelBehaviorRecordList);
-        if (!mProgramOptions.skipKmz()) {
-            // Write a KML file for this user's behavior for this day
-            mKmlFileWriter.appendAllToKml(mOneDayTravelBehaviorRecordList);
+    private void runProcessor(final UserTravelBehaviorProcessor processor) {
+        if (mExecutor == null) {
+            processUser(processor);
+            return;
         }
-        // clean the one day list
-        mOneDayTravelBehaviorRecordList.clear();
+        mExecutor.execute(() -> processUser(processor));
     }
 
     /**
-     * Every time we add a transition record to the same day record list,
-     * we look if this event is walking or running and we look the previous
-     * event. If the previous event is walking, running, or walking/running
-     * we merge them together.
-     * And make the event walking and running.
+     * Processes a user, recording it as failed if its data can't be read or analyzed
+     * @param processor processor of the user
      */
-    private void mergeWalkingAndRunningEvents() {
-        int size = mOneDayTravelBehaviorRecordList.size();
-        if (!mProgramOptions.isMergeAllWalkingAndRunningEventsEnabled() || size < 2) return;
-
-        if ((TravelBehaviorConstants.ACTIVITY_RUNNING.equals(mOneDayTravelBehaviorRecordList.get(size - 1).
-                getGoogleActivity()) || TravelBehaviorConstants.ACTIVITY_WALKING.equals(mOneDayTravelBehaviorRecordList.get(size - 1).
-                getGoogleActivity())) && (TravelBehaviorConstants.ACTIVITY_RUNNING.equals(mOneDayTravelBehaviorRecordList.get(size - 2).
-                getGoogleActivity()) || TravelBehaviorConstants.ACTIVITY_WALKING.equals(mOneDayTravelBehaviorRecordList.get(size - 2).
-                getGoogleActivity()) || TravelBehaviorConstants.ACTIVITY_WALKING_AND_RUNNING.equals(mOneDayTravelBehaviorRecordList.get(size - 2).
-                getGoogleActivity()))){
-
-            TravelBehaviorRecord tbrFirst = mOneDayTravelBehaviorRecordList.get(size - 2);
-            TravelBehaviorRecord tbrSecond = mOneDayTravelBehaviorRecordList.get(size - 1);
-
-            long walkingRunningActivityMergeThreshold = mProgramOptions.getWalkingRunningEventMergeThreshold() == null ?
-                    TravelBehaviorConstants.WALKING_RUNNING_THRESHOLD : TimeUnit.MINUTES.toMillis(mProgramOptions.
-                    getWalkingRunningEventMergeThreshold());
-
-            if (tbrFirst.getActivityEndTimeMillis() != null && tbrSecond.getActivityStartTimeMillis() != null &&
-                    tbrSecond.getActivityStartTimeMillis() - tbrFirst.getActivityEndTimeMillis() <
-                            walkingRunningActivityMergeThreshold) {
-
-                mergeTravelBehaviorRecord(tbrFirst, tbrSecond);
-                tbrFirst.setGoogleActivity(TravelBehaviorConstants.ACTIVITY_WALKING_AND_RUNNING);
-
-                mOneDayTravelBehaviorRecordList.remove(mOneDayTravelBehaviorRecordList.size() - 1);
-                mOneDayTravelBehaviorRecordList.remove(mOneDayTravelBehaviorRecordList.size() - 1);
-                mOneDayTravelBehaviorRecordList.add(tbrFirst);
+    private void processUser(UserTravelBehaviorProcessor processor) {
+        try {
+            long startMillis = System.currentTimeMillis();
+            processor.process();
+            if (mUserWorkStats != null) {
+                mUserWorkStats.put(processor.getUserId(), processor.getDocumentCount(),
+                        System.currentTimeMillis() - startMillis);
             }
+        } catch (FirestoreReadException e) {
+            System.err.println("Error while reading user " + processor.getUserId() + ": " + e.getMessage() +
+                    " (" + e.getCause() + ")");
+            mFailedUserIds.add(processor.getUserId());
+        } catch (Exception e) {
+            System.err.println("Error while processing user " + processor.getUserId() + ": " + e);
+            e.printStackTrace();
+            mFailedUserIds.add(processor.getUserId());
         }
     }
 
     /**
-     * Every time we add a transition record to the same day record list,
-     * we look if the previous record is a still event and the two previous
-     * event is the same event with this event and if the still event's duration
-     * is less then the threshold we remove the middle still event and merge
-     * two same (e.g., in_vehicle, in_vehicle) or similar events (e.g., walking,
-     *  walking/running) events into a single event.
+     * Waits until all the queued users are processed by the worker pool
      */
-    private void mergeStillEvents() {
-        if (!mProgramOptions.isMergeStillEventsEnabled()) return;
-
-        int size = mOneDayTravelBehaviorRecordList.size();
-        if (size < 3 || TravelBehaviorConstants.ACTIVITY_STILL.equals(mOneDayTravelBehaviorRecordList.get(size - 1).
-                getGoogleActivity()) || !TravelBehaviorConstants.ACTIVITY_STILL.equals(mOneDayTravelBehaviorRecordList.
-                get(size - 2).getGoogleActivity())) {
+    private void awaitAllUsersProcessed() {
+        if (mExecutor == null) {
             return;
         }
-
-        TravelBehaviorRecord tbrFirst = mOneDayTravelBehaviorRecordList.get(size - 3);
-        TravelBehaviorRecord tbrLast = mOneDayTravelBehaviorRecordList.get(size - 1);
-
-        long stillActivityMergeThreshold = mProgramOptions.getStillEventMergeThreshold() == null ?
-                TravelBehaviorConstants.STILL_ACTIVITY_THRESHOLD : TimeUnit.MINUTES.toMillis(mProgramOptions.
-                getStillEventMergeThreshold());
-
-        if ((tbrFirst.getGoogleActivity().contains(tbrLast.getGoogleActivity()) ||
-                tbrLast.getGoogleActivity().contains(tbrFirst.getGoogleActivity())) &&
-                tbrFirst.getActivityEndTimeMillis() != null && tbrLast.getActivityStartTimeMillis() != null &&
-                tbrLast.getActivityStartTimeMillis() - tbrFirst.getActivityEndTimeMillis() < stillActivityMergeThreshold) {
-
-            mergeTravelBehaviorRecord(tbrFirst, tbrLast);
-
-            mOneDayTravelBehaviorRecordList.remove(mOneDayTravelBehaviorRecordList.size() - 1);
-            mOneDayTravelBehaviorRecordList.remove(mOneDayTravelBehaviorRecordList.size() - 1);
-            mOneDayTravelBehaviorRecordList.remove(mOneDayTravelBehaviorRecordList.size() - 1);
-            mOneDayTravelBehaviorRecordList.add(tbrFirst);
-        }
-    }
-
-    /**
-     * Merges two TravelBehaviorRecord's into the first TravelBehaviorRecord object
-     * @param tbrFirst First TravelBehaviorRecord
-     * @param tbrLast Second TravelBehaviorRecord
-     */
-    private void mergeTravelBehaviorRecord(TravelBehaviorRecord tbrFirst, TravelBehaviorRecord tbrLast) {
-        tbrFirst.setActivityEndDateAndTime(tbrLast.getActivityEndDateAndTime()).setActivityEndTimeMillis(
-                tbrLast.getActivityEndTimeMillis()).setEndLat(tbrLast.getEndLat()).setEndLon(tbrLast.getEndLon()).
-                setDestinationLocationDateAndTime(tbrLast.getDestinationLocationDateAndTime()).
-                setDestinationHorAccuracy(tbrLast.getDestinationHorAccuracy()).setDestinationProvider
-                (tbrLast.getDestinationProvider()).setLocationEndTimeMillis(tbrLast.getLocationEndTimeMillis()).
-                setActivityEndDestinationTimeDiff(tbrLast.getActivityEndDestinationTimeDiff()).setRegionId(
-                tbrLast.getRegionId());
-
-        if (tbrFirst.getActivityStartTimeMillis() != null &&
-                tbrFirst.getActivityEndTimeMillis() != null) {
-            long diff = tbrFirst.getActivityEndTimeMillis() - tbrFirst.getActivityStartTimeMillis();
-            tbrFirst.setActivityDuration(TravelBehaviorUtils.millisToMinutes(diff));
-        }
-
-        if (tbrFirst.getStartLat() != null && tbrFirst.getStartLon() != null &&
-                tbrFirst.getEndLat() != null && tbrFirst.getEndLon() != null) {
-            float distance = LocationUtils.computeDistanceAndBearing(tbrFirst.getStartLat(), tbrFirst.getStartLon(),
-                    tbrFirst.getEndLat(), tbrFirst.getEndLon());
-            tbrFirst.setOriginDestinationDistance(distance);
-        }
-
-        if (tbrLast.getGoogleActivity().equals(TravelBehaviorConstants.ACTIVITY_WALKING_AND_RUNNING)) {
-            tbrFirst.setGoogleActivity(TravelBehaviorConstants.ACTIVITY_WALKING_AND_RUNNING);
+        mExecutor.shutdown();
+        try {
+            while (!mExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Waiting for " + mExecutor.getActiveCount() + " users to be processed...");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
         }
     }
 }
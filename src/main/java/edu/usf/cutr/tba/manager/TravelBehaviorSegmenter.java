@@ -0,0 +1,540 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.manager;
+
+import edu.usf.cutr.tba.constants.TravelBehaviorConstants;
+import edu.usf.cutr.tba.model.DeviceInformation;
+import edu.usf.cutr.tba.model.TravelBehaviorDocument;
+import edu.usf.cutr.tba.model.TravelBehaviorInfo;
+import edu.usf.cutr.tba.model.TravelBehaviorRecord;
+import edu.usf.cutr.tba.model.UserWatermark;
+import edu.usf.cutr.tba.options.ProgramOptions;
+import edu.usf.cutr.tba.utils.DeviceInfoTimeline;
+import edu.usf.cutr.tba.utils.LocationUtils;
+import edu.usf.cutr.tba.utils.TimeZoneHelper;
+import edu.usf.cutr.tba.utils.TravelBehaviorUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns the activity transitions of a single user into travel behavior records. Documents are pushed one at a time in
+ * activity time order, enter and exit activities are paired into records, still, walking and running events are
+ * merged, and each completed day is handed to a {@link DayListener} after the tour algorithm is applied. Only the
+ * pending enter activity and the records of the current day are kept, so it doesn't matter if the documents come
+ * from a downloaded list, a paged query or a live stream.
+ *
+ * A new instance must be created for each user, and an instance must only be used by one thread at a time.
+ */
+public class TravelBehaviorSegmenter {
+
+    /**
+     * Receives the days completed by the segmenter
+     */
+    public interface DayListener {
+        /**
+         * Called when all records of a day are completed. The list is reused for the next day once the call returns,
+         * so the listener must copy the records it keeps.
+         * @param dayStartMillis comparable time of the document that starts the day, it increases from one day to
+         *                       the next so it identifies the day among the days of the user
+         * @param oneDayTravelBehaviorRecordList records of the day, with their trip and tour ids
+         */
+        void onDayCompleted(long dayStartMillis, List<TravelBehaviorRecord> oneDayTravelBehaviorRecordList);
+    }
+
+    private final String mUserId;
+
+    private final DeviceInfoTimeline mDeviceInfoTimeline;
+
+    private final DayListener mDayListener;
+
+    private final long mSameDayDiffHours;
+
+    // Time zones of the job, used to split the days at the local day start point
+    private final TimeZoneHelper mTimeZoneHelper;
+
+    private final boolean mMergeStillEvents;
+
+    private final long mStillActivityMergeThreshold;
+
+    private final boolean mMergeWalkingAndRunningEvents;
+
+    private final long mWalkingRunningActivityMergeThreshold;
+
+    // True to report the origin-destination distance computed on a sphere
+    private final boolean mFastDistance;
+
+    private TravelBehaviorRecord mLastTravelBehaviorRecord;
+
+    private final List<TravelBehaviorRecord> mOneDayTravelBehaviorRecordList = new ArrayList<>();
+
+    private int mDeviceTripId;
+
+    // Last analyzed document
+    private TravelBehaviorDocument mLastDoc;
+
+    // Document of the enter activity of mLastTravelBehaviorRecord, and the device trip id when it was analyzed
+    private TravelBehaviorDocument mLastEnterDoc;
+
+    private int mLastEnterDeviceTripId;
+
+    // Document of the enter activity of the first record of the one day list, and the device trip id when it was
+    // analyzed
+    private TravelBehaviorDocument mOneDayStartDoc;
+
+    private int mOneDayStartDeviceTripId;
+
+    // Locations chosen for mLocationsDoc, a document that ends a record and starts the next one is only scanned once
+    private TravelBehaviorDocument mLocationsDoc;
+
+    private LocationUtils.LocationSelection mLocations;
+
+    /**
+     * @param userId firebase user id
+     * @param deviceInfoTimeline device information of the user over time
+     * @param programOptions options of the job, with the day start point and the merge settings
+     * @param deviceTripId device trip id of the first trip, 0 unless the segmentation continues a previous run
+     * @param dayListener receives the completed days
+     */
+    public TravelBehaviorSegmenter(String userId, DeviceInfoTimeline deviceInfoTimeline,
+                                   ProgramOptions programOptions, int deviceTripId, DayListener dayListener) {
+        mUserId = userId;
+        mDeviceInfoTimeline = deviceInfoTimeline;
+        mDayListener = dayListener;
+        mDeviceTripId = deviceTripId;
+
+        // By default the day starts at 3 AM and ends at 3 AM next day
+        mSameDayDiffHours = programOptions.getSameDayStartPoint() == null ? TravelBehaviorConstants.
+                SAME_DAY_TIME_DIFF : programOptions.getSameDayStartPoint();
+        mTimeZoneHelper = TimeZoneHelper.getInstance(programOptions.getTimeZoneBounds());
+        mMergeStillEvents = programOptions.isMergeStillEventsEnabled();
+        mStillActivityMergeThreshold = programOptions.getStillEventMergeThreshold() == null ?
+                TravelBehaviorConstants.STILL_ACTIVITY_THRESHOLD : TimeUnit.MINUTES.toMillis(programOptions.
+                getStillEventMergeThreshold());
+        mMergeWalkingAndRunningEvents = programOptions.isMergeAllWalkingAndRunningEventsEnabled();
+        mWalkingRunningActivityMergeThreshold = programOptions.getWalkingRunningEventMergeThreshold() == null ?
+                TravelBehaviorConstants.WALKING_RUNNING_THRESHOLD : TimeUnit.MINUTES.toMillis(programOptions.
+                getWalkingRunningEventMergeThreshold());
+        mFastDistance = programOptions.isFastDistance();
+    }
+
+    /**
+     * Analyzes the next activity transition of the user, documents must be pushed in activity time order.
+     *  -- if mLastTravelBehaviorRecord is null which means there is no previous enter activity then we look for an enter
+     *     activity ub tge given Travel Behavior data.
+     *  -- if mLastTravelBehaviorRecord is not null which means there is a previous enter activity then we look for an
+     *     exit activity in the data.
+     *
+     * @param doc user's decoded travel behavior data
+     */
+    public void accept(TravelBehaviorDocument doc) {
+        TravelBehaviorInfo tbi = doc.getInfo();
+        mLastDoc = doc;
+        if (mLastTravelBehaviorRecord == null) {
+            TravelBehaviorInfo.TravelBehaviorActivity enterActivity = TravelBehaviorUtils.getEnterActivity(tbi.activities);
+            if (enterActivity != null) {
+                mLastTravelBehaviorRecord = createTravelBehaviorRecord(doc, enterActivity);
+            }
+        } else {
+            TravelBehaviorInfo.TravelBehaviorActivity exitActivity = TravelBehaviorUtils.getExitActivity(tbi.activities);
+            if (exitActivity != null &&
+                    exitActivity.detectedActivity.equals(mLastTravelBehaviorRecord.getGoogleActivity())) {
+                completeTravelBehaviorRecord(doc);
+                mLastTravelBehaviorRecord.setTripId(TravelBehaviorUtils.getTripId(mUserId, mLastEnterDoc.getId()));
+                // Set the device trip Id
+                mLastTravelBehaviorRecord.setDeviceTripId(String.valueOf(mDeviceTripId++));
+
+                addTravelBehaviorRecord(mLastTravelBehaviorRecord);
+
+                mergeStillEvents();
+
+                mergeWalkingAndRunningEvents();
+            }
+
+            mLastTravelBehaviorRecord = null;
+
+            TravelBehaviorInfo.TravelBehaviorActivity enterActivity = TravelBehaviorUtils.getEnterActivity(tbi.activities);
+            if (enterActivity != null) {
+                mLastTravelBehaviorRecord = createTravelBehaviorRecord(doc, enterActivity);
+            }
+        }
+    }
+
+    /**
+     * The method creates a TravelBehaviorRecord for an enter activity which is a row representation in the output CSV
+     * The created object is not complete and it only contains the data from the enter activity. In order for this
+     * object to be valid, the next TravelBehavior data should be a matching exit activity.
+     *
+     * @param doc decoded Firebase TravelBehaviorInfo object
+     * @param enterActivity enter activity
+     * @return new travel behavior record
+     */
+    private TravelBehaviorRecord createTravelBehaviorRecord(TravelBehaviorDocument doc,
+                                                            TravelBehaviorInfo.TravelBehaviorActivity enterActivity) {
+        TravelBehaviorInfo tbi = doc.getInfo();
+        TravelBehaviorRecord tbr = new TravelBehaviorRecord(mUserId);
+        // Remember where the record starts, so an incremental run can restart from it
+        mLastEnterDoc = doc;
+        mLastEnterDeviceTripId = mDeviceTripId;
+        tbr.setGoogleActivity(enterActivity.detectedActivity).
+                setGoogleConfidence(enterActivity.confidenceLevel == null ? null :
+                        ((float) enterActivity.confidenceLevel / 100f));
+
+        Long activityStartTime = doc.getActivityStartTime();
+
+        if (activityStartTime != null) {
+            tbr.setActivityStartDateAndTime(TravelBehaviorUtils.getDateAndTimeFromMillis(activityStartTime)).
+                    setActivityStartTimeMillis(activityStartTime);
+        }
+
+        LocationUtils.LocationSelection locations = getLocations(doc);
+        TravelBehaviorInfo.LocationInfo bestLocation = locations.getBest();
+        if (bestLocation != null) {
+            tbr.setStartLat(bestLocation.getLat()).setStartLon(bestLocation.getLon()).
+                    setOriginLocationDateAndTime(TravelBehaviorUtils.getDateAndTimeFromMillis(bestLocation.time)).
+                    setOriginHorAccuracy(bestLocation.accuracy).setOriginProvider(bestLocation.provider).
+                    setLocationStartTimeMillis(bestLocation.time);
+            // Keep the locations of each provider at the start of the tbr
+            tbr.setOriginLocations(locations);
+        }
+
+        if (tbr.getActivityStartTimeMillis() != null && tbr.getLocationStartTimeMillis() != null) {
+            long diff = Math.abs(tbr.getActivityStartTimeMillis() - tbr.getLocationStartTimeMillis());
+            tbr.setActivityStartOriginTimeDiff(TravelBehaviorUtils.millisToMinutes(diff));
+        }
+
+
+        return tbr;
+    }
+
+    /**
+     * Returns the locations of a document chosen for its activity time
+     * @param doc decoded TravelBehaviorInfo
+     * @return the locations of the document
+     */
+    private LocationUtils.LocationSelection getLocations(TravelBehaviorDocument doc) {
+        if (mLocationsDoc != doc) {
+            mLocations = LocationUtils.selectLocations(doc.getInfo().locationInfoList, doc.getActivityStartTime());
+            mLocationsDoc = doc;
+        }
+        return mLocations;
+    }
+
+    /**
+     * This method completes the last travel behavior record object with an exit activity.
+     *
+     * @param doc decoded TravelBehaviorInfo, we use it's time to determine the closest device info
+     */
+    private void completeTravelBehaviorRecord(TravelBehaviorDocument doc) {
+        TravelBehaviorInfo tbi = doc.getInfo();
+        Long activityEndTime = doc.getActivityStartTime();
+
+        if (activityEndTime != null) {
+            mLastTravelBehaviorRecord.setActivityEndDateAndTime(TravelBehaviorUtils.getDateAndTimeFromMillis(activityEndTime)).
+                    setActivityEndTimeMillis(activityEndTime);
+        }
+
+        LocationUtils.LocationSelection locations = getLocations(doc);
+        TravelBehaviorInfo.LocationInfo bestLocation = locations.getBest();
+        if (bestLocation != null) {
+            mLastTravelBehaviorRecord.setEndLat(bestLocation.getLat()).setEndLon(bestLocation.getLon()).
+                    setDestinationLocationDateAndTime(TravelBehaviorUtils.getDateAndTimeFromMillis(bestLocation.time)).
+                    setDestinationHorAccuracy(bestLocation.accuracy).setDestinationProvider(bestLocation.provider).
+                    setLocationEndTimeMillis(bestLocation.time);
+            // Keep the locations of each provider at the end of the lastTravelBehaviorRecord
+            mLastTravelBehaviorRecord.setDestinationLocations(locations);
+        }
+
+        if (mLastTravelBehaviorRecord.getActivityEndTimeMillis() != null &&
+                mLastTravelBehaviorRecord.getLocationEndTimeMillis() != null) {
+            long diff = Math.abs(mLastTravelBehaviorRecord.getActivityEndTimeMillis() -
+                    mLastTravelBehaviorRecord.getLocationEndTimeMillis());
+            mLastTravelBehaviorRecord.setActivityEndDestinationTimeDiff(TravelBehaviorUtils.millisToMinutes(diff));
+        }
+
+        if (mLastTravelBehaviorRecord.getActivityStartTimeMillis() != null &&
+                mLastTravelBehaviorRecord.getActivityEndTimeMillis() != null) {
+            long diff = mLastTravelBehaviorRecord.getActivityEndTimeMillis() - mLastTravelBehaviorRecord.
+                    getActivityStartTimeMillis();
+            mLastTravelBehaviorRecord.setActivityDuration(TravelBehaviorUtils.millisToMinutes(diff));
+        }
+
+        if (mLastTravelBehaviorRecord.getStartLat() != null && mLastTravelBehaviorRecord.getStartLon() != null &&
+                mLastTravelBehaviorRecord.getEndLat() != null && mLastTravelBehaviorRecord.getEndLon() != null) {
+            float distance = LocationUtils.computeDistance(mLastTravelBehaviorRecord.getStartLat(),
+                    mLastTravelBehaviorRecord.getStartLon(), mLastTravelBehaviorRecord.getEndLat(),
+                    mLastTravelBehaviorRecord.getEndLon(), mFastDistance);
+            mLastTravelBehaviorRecord.setOriginDestinationDistance(distance);
+        }
+
+        // While completing TBR update isIgnoringBatteryOptimization, isTalkBackEnabled
+        // and isPowerSaveModeOn
+        if (mLastTravelBehaviorRecord.getActivityEndTimeMillis() != null) {
+            // Get the previous DeviceInformation but closest in time to the activity end time
+            DeviceInformation dvInfo = mDeviceInfoTimeline.getClosestDeviceInfo(
+                    mLastTravelBehaviorRecord.getActivityEndTimeMillis());
+            if (dvInfo != null) {
+                // Get the corresponding properties when available
+                if (dvInfo.getIgnoringBatteryOptimizations() != null) {
+                    mLastTravelBehaviorRecord.setIsIgnoringBatteryOptimization(dvInfo.getIgnoringBatteryOptimizations());
+                }
+                if (dvInfo.getTalkBackEnabled() != null) {
+                    mLastTravelBehaviorRecord.setIsTalkBackEnabled(dvInfo.getTalkBackEnabled());
+                }
+
+                if (dvInfo.getPowerSaveModeEnabled() != null){
+                    mLastTravelBehaviorRecord.setIsPowerSaveModeEnabled(dvInfo.getPowerSaveModeEnabled());
+                }
+                // setRegionID
+                mLastTravelBehaviorRecord.setRegionId(String.valueOf(dvInfo.regionId));
+            }
+        }
+    }
+
+
+    /**
+     * Adds a completed travel behavior record to the one day list
+     * if the given data is belong to next day it applies the tour algorithm and flushes the all today's data
+     * then adds the new data that belongs to the next day.
+     *
+     * @param tbr TravelBehaviorRecord
+     */
+    private void addTravelBehaviorRecord(TravelBehaviorRecord tbr) {
+        if (mOneDayTravelBehaviorRecordList.size() == 0) {
+            // add new data to list with new tour id
+            mOneDayTravelBehaviorRecordList.add(tbr);
+        } else if (TravelBehaviorUtils.isInSameDay(mOneDayTravelBehaviorRecordList, tbr, mSameDayDiffHours,
+                mTimeZoneHelper)) {
+            mOneDayTravelBehaviorRecordList.add(tbr);
+        } else {
+            applyTourAlgorithmToOneDayRecordList();
+            // add new data to list with new tour id
+            mOneDayTravelBehaviorRecordList.add(tbr);
+        }
+
+        if (mOneDayTravelBehaviorRecordList.size() == 1) {
+            // tbr starts a new day
+            mOneDayStartDoc = mLastEnterDoc;
+            mOneDayStartDeviceTripId = mLastEnterDeviceTripId;
+        }
+    }
+
+    /**
+     * Creates the watermark from which the next incremental run must analyze the user. Documents that belong to the
+     * current day or to the pending enter activity are analyzed again, so the next run rebuilds exactly the same
+     * segmentation state, otherwise the next run starts after the last analyzed document.
+     * @return the watermark of the user, or null if no activity transition was analyzed
+     */
+    public UserWatermark getWatermark() {
+        if (mOneDayTravelBehaviorRecordList.size() > 0) {
+            return new UserWatermark(mOneDayStartDoc.getInfo().firstActivityEventTimeMillis, mOneDayStartDoc.getId(),
+                    true, mOneDayStartDeviceTripId);
+        }
+        if (mLastTravelBehaviorRecord != null) {
+            return new UserWatermark(mLastEnterDoc.getInfo().firstActivityEventTimeMillis, mLastEnterDoc.getId(),
+                    true, mLastEnterDeviceTripId);
+        }
+        if (mLastDoc != null) {
+            return new UserWatermark(mLastDoc.getInfo().firstActivityEventTimeMillis, mLastDoc.getId(), false,
+                    mDeviceTripId);
+        }
+        return null;
+    }
+
+    /**
+     * Completes the current day, once all activity transitions of the user were analyzed. The pending enter activity
+     * has no exit activity, so it is dropped.
+     */
+    public void finish() {
+        if (mOneDayTravelBehaviorRecordList.size() > 0) {
+            applyTourAlgorithmToOneDayRecordList();
+        }
+    }
+
+    /**
+     * Completes the current day if it ended before the given time, so the last day of a user who stopped uploading
+     * data is not held back forever. The pending enter activity is kept, and the watermark then points at it, or after
+     * the last analyzed document.
+     * @param cutoffMillis time before which no more records are expected
+     */
+    public void finishDayEndedBefore(long cutoffMillis) {
+        if (mOneDayTravelBehaviorRecordList.isEmpty()) {
+            return;
+        }
+        Long dayEndMillis = TravelBehaviorUtils.getDayEndMillis(mOneDayTravelBehaviorRecordList,
+                mSameDayDiffHours, mTimeZoneHelper);
+        if (dayEndMillis == null || dayEndMillis <= cutoffMillis) {
+            applyTourAlgorithmToOneDayRecordList();
+        }
+    }
+
+    /**
+     * TODO: Implement subtours to this tour algorithm
+     *
+     * Tour Algorithm:
+     * 1. Put all activity transition records that happened in the same day
+     *    in a list
+     * 2.  Assume the first element in the list is the home of the user
+     * 3.  Iterate over the list, if the user comes back to home then
+     * mark all transition between two home travel as one tour
+     * 4. If the user does not come to the starting place (home),
+     * all activity transition are marked with new tour ids
+     */
+    private void applyTourAlgorithmToOneDayRecordList() {
+        if (mOneDayTravelBehaviorRecordList.size() < 2) {
+            flushOneDayTravelBehaviorRecordList();
+            return;
+        }
+
+        // Assume the first record of the day is at home
+        TravelBehaviorRecord homeTbr = mOneDayTravelBehaviorRecordList.get(0);
+        int startIndex = 0;
+        int tailIndex = 1;
+
+        while (startIndex < mOneDayTravelBehaviorRecordList.size() && tailIndex < mOneDayTravelBehaviorRecordList.size()) {
+            TravelBehaviorRecord currTbr = mOneDayTravelBehaviorRecordList.get(tailIndex);
+            if (LocationUtils.isTravelBehaviorRecordsClose(homeTbr, currTbr)) {
+                setTourIdBetweenIndices(startIndex, tailIndex);
+                startIndex = ++tailIndex;
+            } else {
+                tailIndex++;
+            }
+        }
+
+        flushOneDayTravelBehaviorRecordList();
+    }
+
+    private void setTourIdBetweenIndices(int startIndex, int tailIndex) {
+        String tourId = TravelBehaviorUtils.getTourId(mUserId,
+                mOneDayTravelBehaviorRecordList.get(startIndex).getTripId());
+        int tourIndex = 1;
+        for (int i = startIndex; i <= tailIndex; i++) {
+            mOneDayTravelBehaviorRecordList.get(i).setTourId(tourId).setTourIndex(tourIndex++);
+        }
+    }
+
+    /**
+     * Hands all one day travel behavior data to the listener
+     */
+    private void flushOneDayTravelBehaviorRecordList() {
+        mDayListener.onDayCompleted(mOneDayStartDoc.getComparableTime(), mOneDayTravelBehaviorRecordList);
+        // clean the one day list
+        mOneDayTravelBehaviorRecordList.clear();
+    }
+
+    /**
+     * Every time we add a transition record to the same day record list,
+     * we look if this event is walking or running and we look the previous
+     * event. If the previous event is walking, running, or walking/running
+     * we merge them together.
+     * And make the event walking and running.
+     */
+    private void mergeWalkingAndRunningEvents() {
+        int size = mOneDayTravelBehaviorRecordList.size();
+        if (!mMergeWalkingAndRunningEvents || size < 2) return;
+
+        if ((TravelBehaviorConstants.ACTIVITY_RUNNING.equals(mOneDayTravelBehaviorRecordList.get(size - 1).
+                getGoogleActivity()) || TravelBehaviorConstants.ACTIVITY_WALKING.equals(mOneDayTravelBehaviorRecordList.get(size - 1).
+                getGoogleActivity())) && (TravelBehaviorConstants.ACTIVITY_RUNNING.equals(mOneDayTravelBehaviorRecordList.get(size - 2).
+                getGoogleActivity()) || TravelBehaviorConstants.ACTIVITY_WALKING.equals(mOneDayTravelBehaviorRecordList.get(size - 2).
+                getGoogleActivity()) || TravelBehaviorConstants.ACTIVITY_WALKING_AND_RUNNING.equals(mOneDayTravelBehaviorRecordList.get(size - 2).
+                getGoogleActivity()))){
+
+            TravelBehaviorRecord tbrFirst = mOneDayTravelBehaviorRecordList.get(size - 2);
+            TravelBehaviorRecord tbrSecond = mOneDayTravelBehaviorRecordList.get(size - 1);
+
+            if (tbrFirst.getActivityEndTimeMillis() != null && tbrSecond.getActivityStartTimeMillis() != null &&
+                    tbrSecond.getActivityStartTimeMillis() - tbrFirst.getActivityEndTimeMillis() <
+                            mWalkingRunningActivityMergeThreshold) {
+
+                mergeTravelBehaviorRecord(tbrFirst, tbrSecond);
+                tbrFirst.setGoogleActivity(TravelBehaviorConstants.ACTIVITY_WALKING_AND_RUNNING);
+
+                mOneDayTravelBehaviorRecordList.remove(mOneDayTravelBehaviorRecordList.size() - 1);
+                mOneDayTravelBehaviorRecordList.remove(mOneDayTravelBehaviorRecordList.size() - 1);
+                mOneDayTravelBehaviorRecordList.add(tbrFirst);
+            }
+        }
+    }
+
+    /**
+     * Every time we add a transition record to the same day record list,
+     * we look if the previous record is a still event and the two previous
+     * event is the same event with this event and if the still event's duration
+     * is less then the threshold we remove the middle still event and merge
+     * two same (e.g., in_vehicle, in_vehicle) or similar events (e.g., walking,
+     *  walking/running) events into a single event.
+     */
+    private void mergeStillEvents() {
+        if (!mMergeStillEvents) return;
+
+        int size = mOneDayTravelBehaviorRecordList.size();
+        if (size < 3 || TravelBehaviorConstants.ACTIVITY_STILL.equals(mOneDayTravelBehaviorRecordList.get(size - 1).
+                getGoogleActivity()) || !TravelBehaviorConstants.ACTIVITY_STILL.equals(mOneDayTravelBehaviorRecordList.
+                get(size - 2).getGoogleActivity())) {
+            return;
+        }
+
+        TravelBehaviorRecord tbrFirst = mOneDayTravelBehaviorRecordList.get(size - 3);
+        TravelBehaviorRecord tbrLast = mOneDayTravelBehaviorRecordList.get(size - 1);
+
+        if ((tbrFirst.getGoogleActivity().contains(tbrLast.getGoogleActivity()) ||
+                tbrLast.getGoogleActivity().contains(tbrFirst.getGoogleActivity())) &&
+                tbrFirst.getActivityEndTimeMillis() != null && tbrLast.getActivityStartTimeMillis() != null &&
+                tbrLast.getActivityStartTimeMillis() - tbrFirst.getActivityEndTimeMillis() < mStillActivityMergeThreshold) {
+
+            mergeTravelBehaviorRecord(tbrFirst, tbrLast);
+
+            mOneDayTravelBehaviorRecordList.remove(mOneDayTravelBehaviorRecordList.size() - 1);
+            mOneDayTravelBehaviorRecordList.remove(mOneDayTravelBehaviorRecordList.size() - 1);
+            mOneDayTravelBehaviorRecordList.remove(mOneDayTravelBehaviorRecordList.size() - 1);
+            mOneDayTravelBehaviorRecordList.add(tbrFirst);
+        }
+    }
+
+    /**
+     * Merges two TravelBehaviorRecord's into the first TravelBehaviorRecord object
+     * @param tbrFirst First TravelBehaviorRecord
+     * @param tbrLast Second TravelBehaviorRecord
+     */
+    private void mergeTravelBehaviorRecord(TravelBehaviorRecord tbrFirst, TravelBehaviorRecord tbrLast) {
+        tbrFirst.setActivityEndDateAndTime(tbrLast.getActivityEndDateAndTime()).setActivityEndTimeMillis(
+                tbrLast.getActivityEndTimeMillis()).setEndLat(tbrLast.getEndLat()).setEndLon(tbrLast.getEndLon()).
+                setDestinationLocationDateAndTime(tbrLast.getDestinationLocationDateAndTime()).
+                setDestinationHorAccuracy(tbrLast.getDestinationHorAccuracy()).setDestinationProvider
+                (tbrLast.getDestinationProvider()).setLocationEndTimeMillis(tbrLast.getLocationEndTimeMillis()).
+                setActivityEndDestinationTimeDiff(tbrLast.getActivityEndDestinationTimeDiff()).setRegionId(
+                tbrLast.getRegionId());
+
+        if (tbrFirst.getActivityStartTimeMillis() != null &&
+                tbrFirst.getActivityEndTimeMillis() != null) {
+            long diff = tbrFirst.getActivityEndTimeMillis() - tbrFirst.getActivityStartTimeMillis();
+            tbrFirst.setActivityDuration(TravelBehaviorUtils.millisToMinutes(diff));
+        }
+
+        if (tbrFirst.getStartLat() != null && tbrFirst.getStartLon() != null &&
+                tbrFirst.getEndLat() != null && tbrFirst.getEndLon() != null) {
+            float distance = LocationUtils.computeDistance(tbrFirst.getStartLat(), tbrFirst.getStartLon(),
+                    tbrFirst.getEndLat(), tbrFirst.getEndLon(), mFastDistance);
+            tbrFirst.setOriginDestinationDistance(distance);
+        }
+
+        if (tbrLast.getGoogleActivity().equals(TravelBehaviorConstants.ACTIVITY_WALKING_AND_RUNNING)) {
+            tbrFirst.setGoogleActivity(TravelBehaviorConstants.ACTIVITY_WALKING_AND_RUNNING);
+        }
+    }
+}
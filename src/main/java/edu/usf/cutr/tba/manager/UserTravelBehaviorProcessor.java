@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.manager;
+
+import com.google.api.core.ApiFuture;
+import edu.usf.cutr.tba.constants.FirebaseConstants;
+import edu.usf.cutr.tba.constants.TravelBehaviorConstants;
+import edu.usf.cutr.tba.io.TravelBehaviorDataSource;
+import edu.usf.cutr.tba.io.TravelBehaviorRecordSink;
+import edu.usf.cutr.tba.io.WatermarkStore;
+import edu.usf.cutr.tba.model.DeviceInformationDocument;
+import edu.usf.cutr.tba.model.TravelBehaviorDocument;
+import edu.usf.cutr.tba.model.UserWatermark;
+import edu.usf.cutr.tba.options.ProgramOptions;
+import edu.usf.cutr.tba.utils.*;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Downloads the travel behavior data of a single user and feeds it to a {@link TravelBehaviorSegmenter}. All state of
+ * the user lives in this object, so a new instance must be created for each user and different users can be
+ * processed concurrently on different threads.
+ */
+public class UserTravelBehaviorProcessor {
+
+    private final String mUserId;
+
+    private final ProgramOptions mProgramOptions;
+
+    private final TravelBehaviorDataSource mDataSource;
+
+    private final TravelBehaviorRecordSink mSink;
+
+    // Number of rows written to the CSV file
+    private int mRecordCount = 0;
+
+    // Number of activity transitions analyzed
+    private int mDocumentCount = 0;
+
+    private ApiFuture<List<DeviceInformationDocument>> mUserDeviceInfo;
+
+    private ApiFuture<List<TravelBehaviorDocument>> mUserInfo;
+
+    private Iterator<TravelBehaviorDocument> mOrderedUserInfo;
+
+    // Watermarks of the incremental run, or null if the run is not incremental
+    private final WatermarkStore mWatermarkStore;
+
+    // Watermark left by the previous incremental run, or null if the user is analyzed from the beginning
+    private UserWatermark mWatermark;
+
+    /**
+     * @param userId firebase user id
+     * @param dataSource source of the user data
+     * @param sink thread-safe destination of the completed days
+     * @param watermarkStore watermarks of the incremental run, or null if the run is not incremental
+     * @param programOptions options of the job
+     */
+    public UserTravelBehaviorProcessor(String userId, TravelBehaviorDataSource dataSource,
+                                       TravelBehaviorRecordSink sink, WatermarkStore watermarkStore,
+                                       ProgramOptions programOptions) {
+        mUserId = userId;
+        mDataSource = dataSource;
+        mSink = sink;
+        mWatermarkStore = watermarkStore;
+        mProgramOptions = programOptions;
+    }
+
+    public String getUserId() {
+        return mUserId;
+    }
+
+    public int getDocumentCount() {
+        return mDocumentCount;
+    }
+
+    /**
+     * Starts downloading the activity transitions and the device information of the user together, without waiting
+     * for them. Calling it before process() lets the download overlap with the processing of other users. When a date
+     * range is set most users have no activity in it, so only the activity transitions are requested and the device
+     * information is downloaded by process() if the user turns out to be active.
+     */
+    public void prefetch() {
+        if (mUserDeviceInfo != null || mUserInfo != null || mOrderedUserInfo != null) {
+            return;
+        }
+        long startDateMillis = mProgramOptions.getStartDate();
+        long endDateMillis = mProgramOptions.getEndDate();
+
+        if (startDateMillis == 0 || endDateMillis == 0) {
+            mUserDeviceInfo = mDataSource.getAllUserDeviceInfoByIdAsync(mUserId);
+        }
+        if (mWatermarkStore != null) {
+            mWatermark = mWatermarkStore.get(mUserId);
+        }
+        if (mWatermark != null) {
+            // Only the documents from the open segmentation state of the previous run on are requested
+            mOrderedUserInfo = mDataSource.getUserInfoByIdFromWatermark(mUserId, mWatermark);
+        } else if (mProgramOptions.isOrderedFetch()) {
+            // The first page is requested right away
+            mOrderedUserInfo = mDataSource.getUserInfoByIdOrderedByTime(mUserId, startDateMillis, endDateMillis);
+        } else if (startDateMillis > 0 && endDateMillis > 0) {
+            // Valid date range exists, make a filtered query by using date range
+            mUserInfo = mDataSource.getAllUserInfoByIdAndDateRangeAsync(mUserId, startDateMillis, endDateMillis);
+        } else {
+            // No valid date range defined, continue with a regular query by userId
+            mUserInfo = mDataSource.getAllUserInfoByIdAsync(mUserId);
+        }
+    }
+
+    /**
+     * Downloads and analyzes all data of the user
+     */
+    public void process() {
+        try {
+            analyze();
+        } finally {
+            mDataSource.release(mUserId);
+        }
+    }
+
+    private void analyze() {
+        prefetch();
+
+        // Holds all user data by id, ordered by activity time
+        Iterator<TravelBehaviorDocument> userInfoById = getUserInfoSortedByTime();
+
+        if (mUserDeviceInfo == null) {
+            if (!userInfoById.hasNext()) {
+                // The user has no activity in the date range, so its device information isn't needed
+                mSink.completeUser(mUserId, mRecordCount);
+                return;
+            }
+            mUserDeviceInfo = mDataSource.getAllUserDeviceInfoByIdAsync(mUserId);
+        }
+
+        // Get the device information of the current userId
+        List<DeviceInformationDocument> userDeviceInfoList = FirebaseIOUtils.getDocuments(mUserDeviceInfo);
+
+        // Sort the data by timestamp, if timestamp is not available, then the decoded timestamp
+        // falls back to the document id which is assumed has the timestamp as its name
+        Collections.sort(userDeviceInfoList, new DeviceInformationDocumentComparator());
+        DeviceInfoTimeline deviceInfoTimeline = new DeviceInfoTimeline(userDeviceInfoList);
+
+        // create sub-folder named after userId for kmz files
+        if (!mProgramOptions.skipKmz()) {
+            Path userFolderPath = Paths.get(mProgramOptions.getOutputDir(), mUserId);
+            StringUtils.validateAndParseFolderPath(userFolderPath.toString());
+        }
+        mSink.startUser(mUserId);
+
+        // Each completed day is written right away, except the days written by a previous run that stopped while it
+        // was processing the user
+        final Long lastWrittenDayStartMillis = mSink.getLastDayStartMillis(mUserId);
+        TravelBehaviorSegmenter segmenter = new TravelBehaviorSegmenter(mUserId, deviceInfoTimeline, mProgramOptions,
+                mWatermark == null ? 0 : mWatermark.getDeviceTripId(),
+                (dayStartMillis, oneDayTravelBehaviorRecordList) -> {
+                    if (lastWrittenDayStartMillis == null || dayStartMillis > lastWrittenDayStartMillis) {
+                        mRecordCount += mSink.appendDay(mUserId, dayStartMillis, oneDayTravelBehaviorRecordList);
+                    }
+                });
+
+        // analyze each transition activity of the user one by one
+        while (userInfoById.hasNext()) {
+            segmenter.accept(userInfoById.next());
+            mDocumentCount++;
+        }
+
+        if (mWatermarkStore == null) {
+            segmenter.finish();
+        } else {
+            // The current day is only exported once it is older than the data cut-off, otherwise it is not exported
+            // and the next run analyzes it again. The pending enter activity is always analyzed again.
+            segmenter.finishDayEndedBefore(System.currentTimeMillis() -
+                    TravelBehaviorConstants.INCREMENTAL_DATA_CUTOFF);
+            UserWatermark watermark = segmenter.getWatermark();
+            if (watermark == null) {
+                watermark = mWatermark;
+            }
+            if (watermark != null) {
+                mWatermarkStore.put(mUserId, watermark);
+            }
+        }
+
+        mSink.completeUser(mUserId, mRecordCount);
+    }
+
+    /**
+     * Returns the activity transitions of the user sorted by activity time. If the ordered fetch is enabled the
+     * documents are streamed from Firestore already ordered by firstActivityEventTimeMillis. If the user has no
+     * document with that field (data from old app versions), or the ordered fetch is disabled, all documents are
+     * downloaded and sorted on the client.
+     * @return iterator over the activity transitions of the user sorted by activity time
+     */
+    private Iterator<TravelBehaviorDocument> getUserInfoSortedByTime() {
+        if (mWatermark != null) {
+            return mOrderedUserInfo;
+        }
+        if (mOrderedUserInfo != null) {
+            // The date range query filters on the same field, so it can't return documents without it
+            boolean hasDateRange = mProgramOptions.getStartDate() > 0 && mProgramOptions.getEndDate() > 0;
+            if (mOrderedUserInfo.hasNext() || hasDateRange || !mDataSource.hasAnyUserInfo(mUserId)) {
+                return mOrderedUserInfo;
+            }
+            System.out.println("Activity transitions of user " + mUserId + " are missing the " +
+                    FirebaseConstants.FIREBASE_FIRST_ACTIVITY_EVENT_TIME_FIELD + " field, sorting them on the client");
+            mUserInfo = mDataSource.getAllUserInfoByIdAsync(mUserId);
+        }
+
+        List<TravelBehaviorDocument> userInfoById = FirebaseIOUtils.getDocuments(mUserInfo);
+        // sorts the data by activity time, which was computed once when the documents were decoded
+        Collections.sort(userInfoById, new TravelBehaviorDocumentComparator());
+        return userInfoById.iterator();
+    }
+}
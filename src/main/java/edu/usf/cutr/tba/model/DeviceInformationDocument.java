@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.model;
+
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import edu.usf.cutr.tba.utils.StringUtils;
+
+/**
+ * A device-information document decoded once from Firestore, together with its parsed timestamp. If the document
+ * has no timestamp property the document id is used, as we assume the document id by default has the time stamp as
+ * its name. The decoded DeviceInformation must be treated as read-only.
+ */
+public final class DeviceInformationDocument {
+
+    private final String mId;
+
+    private final DeviceInformation mInfo;
+
+    private final long mTimestamp;
+
+    public DeviceInformationDocument(String id, DeviceInformation info) {
+        mId = id;
+        mInfo = info;
+        String timeStamp = info.getTimestamp();
+        if (timeStamp == null) {
+            timeStamp = StringUtils.parsableTimeStamp(id);
+            info.setTimestamp(timeStamp);
+        }
+        mTimestamp = Long.parseLong(timeStamp);
+    }
+
+    /**
+     * Decodes a device-information document
+     * @param doc Firestore device-information document
+     * @return the decoded document
+     */
+    public static DeviceInformationDocument fromSnapshot(QueryDocumentSnapshot doc) {
+        return new DeviceInformationDocument(doc.getId(), doc.toObject(DeviceInformation.class));
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public DeviceInformation getInfo() {
+        return mInfo;
+    }
+
+    /**
+     * Returns the time in milliseconds of the device information
+     * @return the time in milliseconds of the device information
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.model;
+
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import edu.usf.cutr.tba.utils.TravelBehaviorUtils;
+
+/**
+ * An activity-transitions document decoded once from Firestore, together with the values derived from it that are
+ * needed to sort and segment the documents. The decoded TravelBehaviorInfo must be treated as read-only.
+ */
+public final class TravelBehaviorDocument {
+
+    private final String mId;
+
+    private final TravelBehaviorInfo mInfo;
+
+    private final Long mActivityStartTime;
+
+    private final long mComparableTime;
+
+    public TravelBehaviorDocument(String id, TravelBehaviorInfo info) {
+        mId = id;
+        mInfo = info;
+        mActivityStartTime = TravelBehaviorUtils.getActivityStartTime(info);
+        mComparableTime = TravelBehaviorUtils.getComparableTime(info);
+    }
+
+    /**
+     * Decodes an activity-transitions document
+     * @param doc Firestore activity-transitions document
+     * @return the decoded document
+     */
+    public static TravelBehaviorDocument fromSnapshot(QueryDocumentSnapshot doc) {
+        return new TravelBehaviorDocument(doc.getId(), doc.toObject(TravelBehaviorInfo.class));
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public TravelBehaviorInfo getInfo() {
+        return mInfo;
+    }
+
+    /**
+     * Returns the time of the first activity of the document, or null if it is not available
+     * @return the time of the first activity of the document, or null if it is not available
+     */
+    public Long getActivityStartTime() {
+        return mActivityStartTime;
+    }
+
+    /**
+     * Returns the (not null) time used to sort the documents, see TravelBehaviorUtils.getComparableTime()
+     * @return the time used to sort the documents
+     */
+    public long getComparableTime() {
+        return mComparableTime;
+    }
+}
@@ -15,13 +15,10 @@
  */
 package edu.usf.cutr.tba.model;
 
+import edu.usf.cutr.tba.utils.LocationUtils;
 import edu.usf.cutr.tba.utils.StringUtils;
 import edu.usf.cutr.tba.utils.TravelBehaviorUtils;
 
-import java.util.List;
-
-import static edu.usf.cutr.tba.utils.TravelBehaviorUtils.getLocationInfo;
-
 public class TravelBehaviorRecord {
 
     public static final String[] CSV_HEADER = {"User ID",
@@ -100,7 +97,7 @@ public class TravelBehaviorRecord {
     private Float mActivityDuration;
     private Integer mChainId;
     private Integer mChainIndex;
-    private Integer mTourId;
+    private String mTourId;
     private Integer mTourIndex;
     private String mOriginLocationDateAndTime;
     private Float mActivityStartOriginTimeDiff;
@@ -116,8 +113,14 @@ public class TravelBehaviorRecord {
     private Boolean mIsTalkBackEnabled;
     private Boolean mIsPowerSaveModeEnabled;
 
-    public List<TravelBehaviorInfo.LocationInfo> locationInfoListOrigin = null;
-    public List<TravelBehaviorInfo.LocationInfo> locationInfoListDestination = null;
+    // Latest location of each provider at the origin and destination. Only these are kept instead of the location
+    // list of the document, so the documents can be freed once they are analyzed.
+    private TravelBehaviorInfo.LocationInfo mOriginFused;
+    private TravelBehaviorInfo.LocationInfo mOriginGps;
+    private TravelBehaviorInfo.LocationInfo mOriginNetwork;
+    private TravelBehaviorInfo.LocationInfo mDestinationFused;
+    private TravelBehaviorInfo.LocationInfo mDestinationGps;
+    private TravelBehaviorInfo.LocationInfo mDestinationNetwork;
 
     // Internal usage
     private Long mActivityStartTimeMillis;
@@ -212,7 +215,7 @@ public class TravelBehaviorRecord {
         return this;
     }
 
-    public TravelBehaviorRecord setTourId(Integer tourId) {
+    public TravelBehaviorRecord setTourId(String tourId) {
         mTourId = tourId;
         return this;
     }
@@ -422,13 +425,31 @@ public class TravelBehaviorRecord {
     public Boolean getIsPowerSaveModeEnabled() { return mIsPowerSaveModeEnabled; }
 
 
+    /**
+     * Keeps the location of each provider of the origin document
+     * @param locations locations chosen for the enter activity
+     * @return this record
+     */
+    public TravelBehaviorRecord setOriginLocations(LocationUtils.LocationSelection locations) {
+        mOriginFused = locations.getFused();
+        mOriginGps = locations.getGps();
+        mOriginNetwork = locations.getNetwork();
+        return this;
+    }
+
+    /**
+     * Keeps the location of each provider of the destination document
+     * @param locations locations chosen for the exit activity
+     * @return this record
+     */
+    public TravelBehaviorRecord setDestinationLocations(LocationUtils.LocationSelection locations) {
+        mDestinationFused = locations.getFused();
+        mDestinationGps = locations.getGps();
+        mDestinationNetwork = locations.getNetwork();
+        return this;
+    }
+
     public String[] toStringArray() {
-        TravelBehaviorInfo.LocationInfo originFused = getLocationInfo(locationInfoListOrigin, FUSED);
-        TravelBehaviorInfo.LocationInfo originGps = getLocationInfo(locationInfoListOrigin, GPS);
-        TravelBehaviorInfo.LocationInfo originNetwork = getLocationInfo(locationInfoListOrigin, NETWORK);
-        TravelBehaviorInfo.LocationInfo destinationFused = getLocationInfo(locationInfoListDestination, FUSED);
-        TravelBehaviorInfo.LocationInfo destinationGps = getLocationInfo(locationInfoListDestination, GPS);
-        TravelBehaviorInfo.LocationInfo destinationNetwork = getLocationInfo(locationInfoListDestination, NETWORK);
         return new String[]{mUserId, mDeviceTripId, mTripId, mRegionId, mGoogleActivity, StringUtils.valueOf(mGoogleConfidence), mVehicleType,
                 mActivityStartDateAndTime, mOriginLocationDateAndTime, StringUtils.valueOf(mActivityStartOriginTimeDiff),
                 StringUtils.valueOf(mStartLat), StringUtils.valueOf(mStartLon), StringUtils.valueOf(mOriginHorAccuracy), mOriginProvider,
@@ -438,29 +459,29 @@ public class TravelBehaviorRecord {
                 StringUtils.valueOf(mChainIndex), StringUtils.valueOf(mTourId), StringUtils.valueOf(mTourIndex),
                 StringUtils.valueOf(mIsIgnoringBatteryOptimizations), StringUtils.valueOf(mIsTalkBackEnabled),
                 StringUtils.valueOf(mIsPowerSaveModeEnabled),
-                (originFused == null) ? "" :  TravelBehaviorUtils.getDateAndTimeFromMillis(originFused.getTime()),
-                (originFused == null) ? "" :  StringUtils.valueOf(originFused.getLat()),
-                (originFused == null) ? "" :  StringUtils.valueOf(originFused.getLon()),
-                (originFused == null) ? "" :  StringUtils.valueOf(originFused.getAccuracy()),
-                (originGps == null) ? "" :  TravelBehaviorUtils.getDateAndTimeFromMillis(originGps.getTime()),
-                (originGps == null) ? "" :  StringUtils.valueOf(originGps.getLat()),
-                (originGps == null) ? "" :  StringUtils.valueOf(originGps.getLon()),
-                (originGps == null) ? "" :  StringUtils.valueOf(originGps.getAccuracy()),
-                (originNetwork == null) ? "" :  TravelBehaviorUtils.getDateAndTimeFromMillis(originNetwork.getTime()),
-                (originNetwork == null) ? "" :  StringUtils.valueOf(originNetwork.getLat()),
-                (originNetwork == null) ? "" :  StringUtils.valueOf(originNetwork.getLon()),
-                (originNetwork == null) ? "" :  StringUtils.valueOf(originNetwork.getAccuracy()),
-                (destinationFused == null) ? "" :  TravelBehaviorUtils.getDateAndTimeFromMillis(destinationFused.getTime()),
-                (destinationFused == null) ? "" :  StringUtils.valueOf(destinationFused.getLat()),
-                (destinationFused == null) ? "" :  StringUtils.valueOf(destinationFused.getLon()),
-                (destinationFused == null) ? "" :  StringUtils.valueOf(destinationFused.getAccuracy()),
-                (destinationGps == null) ? "" :  TravelBehaviorUtils.getDateAndTimeFromMillis(destinationGps.getTime()),
-                (destinationGps == null) ? "" :  StringUtils.valueOf(destinationGps.getLat()),
-                (destinationGps == null) ? "" :  StringUtils.valueOf(destinationGps.getLon()),
-                (destinationGps == null) ? "" :  StringUtils.valueOf(destinationGps.getAccuracy()),
-                (destinationNetwork == null) ? "" :  TravelBehaviorUtils.getDateAndTimeFromMillis(destinationNetwork.getTime()),
-                (destinationNetwork == null) ? "" :  StringUtils.valueOf(destinationNetwork.getLat()),
-                (destinationNetwork == null) ? "" :  StringUtils.valueOf(destinationNetwork.getLon()),
-                (destinationNetwork == null) ? "" :  StringUtils.valueOf(destinationNetwork.getAccuracy())};
+                (mOriginFused == null) ? "" :  TravelBehaviorUtils.getDateAndTimeFromMillis(mOriginFused.getTime()),
+                (mOriginFused == null) ? "" :  StringUtils.valueOf(mOriginFused.getLat()),
+                (mOriginFused == null) ? "" :  StringUtils.valueOf(mOriginFused.getLon()),
+                (mOriginFused == null) ? "" :  StringUtils.valueOf(mOriginFused.getAccuracy()),
+                (mOriginGps == null) ? "" :  TravelBehaviorUtils.getDateAndTimeFromMillis(mOriginGps.getTime()),
+                (mOriginGps == null) ? "" :  StringUtils.valueOf(mOriginGps.getLat()),
+                (mOriginGps == null) ? "" :  StringUtils.valueOf(mOriginGps.getLon()),
+                (mOriginGps == null) ? "" :  StringUtils.valueOf(mOriginGps.getAccuracy()),
+                (mOriginNetwork == null) ? "" :  TravelBehaviorUtils.getDateAndTimeFromMillis(mOriginNetwork.getTime()),
+                (mOriginNetwork == null) ? "" :  StringUtils.valueOf(mOriginNetwork.getLat()),
+                (mOriginNetwork == null) ? "" :  StringUtils.valueOf(mOriginNetwork.getLon()),
+                (mOriginNetwork == null) ? "" :  StringUtils.valueOf(mOriginNetwork.getAccuracy()),
+                (mDestinationFused == null) ? "" :  TravelBehaviorUtils.getDateAndTimeFromMillis(mDestinationFused.getTime()),
+                (mDestinationFused == null) ? "" :  StringUtils.valueOf(mDestinationFused.getLat()),
+                (mDestinationFused == null) ? "" :  StringUtils.valueOf(mDestinationFused.getLon()),
+                (mDestinationFused == null) ? "" :  StringUtils.valueOf(mDestinationFused.getAccuracy()),
+                (mDestinationGps == null) ? "" :  TravelBehaviorUtils.getDateAndTimeFromMillis(mDestinationGps.getTime()),
+                (mDestinationGps == null) ? "" :  StringUtils.valueOf(mDestinationGps.getLat()),
+                (mDestinationGps == null) ? "" :  StringUtils.valueOf(mDestinationGps.getLon()),
+                (mDestinationGps == null) ? "" :  StringUtils.valueOf(mDestinationGps.getAccuracy()),
+                (mDestinationNetwork == null) ? "" :  TravelBehaviorUtils.getDateAndTimeFromMillis(mDestinationNetwork.getTime()),
+                (mDestinationNetwork == null) ? "" :  StringUtils.valueOf(mDestinationNetwork.getLat()),
+                (mDestinationNetwork == null) ? "" :  StringUtils.valueOf(mDestinationNetwork.getLon()),
+                (mDestinationNetwork == null) ? "" :  StringUtils.valueOf(mDestinationNetwork.getAccuracy())};
     }
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.model;
+
+/**
+ * Point from which the activity transitions of a user must be analyzed by the next incremental run. It is the
+ * first activity-transitions document that belongs to segmentation state that is still open (the current day or a
+ * pending enter activity), which is analyzed again so trips that cross the boundary are identical to a full
+ * recompute, or the last analyzed document if there is no open state.
+ */
+public final class UserWatermark {
+
+    private final long mEventTimeMillis;
+
+    private final String mDocumentId;
+
+    private final boolean mInclusive;
+
+    private final int mDeviceTripId;
+
+    /**
+     * @param eventTimeMillis firstActivityEventTimeMillis of the document
+     * @param documentId id of the document
+     * @param inclusive true if the document must be analyzed again, false to start after it
+     * @param deviceTripId device trip id of the user when the document was analyzed
+     */
+    public UserWatermark(long eventTimeMillis, String documentId, boolean inclusive, int deviceTripId) {
+        mEventTimeMillis = eventTimeMillis;
+        mDocumentId = documentId;
+        mInclusive = inclusive;
+        mDeviceTripId = deviceTripId;
+    }
+
+    public long getEventTimeMillis() {
+        return mEventTimeMillis;
+    }
+
+    public String getDocumentId() {
+        return mDocumentId;
+    }
+
+    public boolean isInclusive() {
+        return mInclusive;
+    }
+
+    public int getDeviceTripId() {
+        return mDeviceTripId;
+    }
+}
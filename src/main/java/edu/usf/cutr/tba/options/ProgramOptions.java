@@ -15,6 +15,12 @@
  */
 package edu.usf.cutr.tba.options;
 
+import edu.usf.cutr.tba.constants.FirebaseConstants;
+
+/**
+ * Configuration of an export job. Instances are immutable and built with {@link Builder}, so several jobs with
+ * different options can run in the same process.
+ */
 public class ProgramOptions {
 
     public static final String KEY_FILE = "keyFile";
@@ -50,142 +56,438 @@ public class ProgramOptions {
     // Path to file with multiple IDs
     public static final String MULTI_USERS_PATH = "multiUserId";
 
+    // Number of users to process concurrently
+    public static final String THREADS = "threads";
+
+    // Option to fetch activity transitions ordered by time and in pages
+    public static final String ORDERED_FETCH = "orderedFetch";
+
+    // Number of users whose data is downloaded ahead of the user being processed
+    public static final String PREFETCH = "prefetch";
+
+    // Option to resume a previous run from its checkpoint journal
+    public static final String RESUME = "resume";
+
+    // Path to the state file of incremental runs
+    public static final String INCREMENTAL = "incremental";
+
+    // Directory of the local cache of Firestore documents
+    public static final String CACHE_DIR = "cacheDir";
+
+    // Maximum age in hours of the cached documents
+    public static final String CACHE_MAX_AGE = "cacheMaxAge";
+
+    // Maximum size in megabytes of the cache
+    public static final String CACHE_MAX_SIZE = "cacheMaxSize";
+
+    // Directory with JSON lines dumps to analyze instead of Firestore
+    public static final String REPLAY_DIR = "replayDir";
+
+    // Maximum number of Firestore reads started per second
+    public static final String MAX_READS_PER_SECOND = "maxReadsPerSecond";
+
+    // Maximum number of Firestore reads in flight
+    public static final String MAX_CONCURRENT_READS = "maxConcurrentReads";
+
+    // Path of the file with the work of each user in previous runs, used to process the heaviest users first
+    public static final String WORK_STATS = "workStats";
+
+    // Shard of the users processed by this run, as index/count
+    public static final String SHARD = "shard";
+
+    // Number of shards whose CSV files are merged
+    public static final String MERGE_SHARDS = "mergeShards";
+
+    // Approximate heap, in megabytes, used for the documents downloaded ahead of the analysis
+    public static final String MEMORY_BUDGET = "memoryBudget";
+
+    // Option to report the origin-destination distance computed on a sphere instead of the WGS84 ellipsoid
+    public static final String FAST_DISTANCE = "fastDistance";
+
+    // Bounding box of the time zones loaded by the time zone engine, as minLat,minLon,maxLat,maxLon
+    public static final String TIME_ZONE_BOUNDS = "timeZoneBounds";
+
     // When to show the number of processed user records (interval)
     public static final int SHOW_PROGRESS_INTERVAL = 1000;
 
-    private boolean mIsMergeStillEventsEnabled = true;
+    private final boolean mIsMergeStillEventsEnabled;
 
-    private boolean mIsMergeAllWalkingAndRunningEventsEnabled = true;
+    private final boolean mIsMergeAllWalkingAndRunningEventsEnabled;
 
-    private String mUserId;
+    private final String mUserId;
 
-    private String mMultiUserId;
+    private final String mMultiUserId;
 
-    private String mKeyFilePath;
+    private final String mKeyFilePath;
 
-    private Integer mSameDayStartPoint;
+    private final Integer mSameDayStartPoint;
 
-    private Integer mStillEventMergeThreshold;
+    private final Integer mStillEventMergeThreshold;
 
-    private Integer mWalkingRunningEventMergeThreshold;
+    private final Integer mWalkingRunningEventMergeThreshold;
 
-    private long mStartDate = 0;
+    private final long mStartDate;
 
-    private long mEndDate = 0;
+    private final long mEndDate;
 
-    private String mOutputDir = "";
+    private final String mOutputDir;
 
-    private boolean mSkipKmz = false;
+    private final boolean mSkipKmz;
 
-    private static ProgramOptions sProgramOptions = null;
+    private final int mThreads;
 
-    private ProgramOptions() {
+    private final boolean mOrderedFetch;
 
-    }
+    private final int mPrefetch;
 
-    public static ProgramOptions getInstance() {
-        if (sProgramOptions == null) {
-            sProgramOptions = new ProgramOptions();
-        }
-        return sProgramOptions;
+    private final boolean mResume;
+
+    private final String mIncrementalStatePath;
+
+    private final String mCacheDir;
+
+    private final long mCacheMaxAgeMillis;
+
+    private final long mCacheMaxSizeBytes;
+
+    private final String mReplayDir;
+
+    private final int mMaxReadsPerSecond;
+
+    private final int mMaxConcurrentReads;
+
+    private final String mWorkStatsPath;
+
+    private final int mShardIndex;
+
+    private final int mShardCount;
+
+    private final long mMemoryBudgetBytes;
+
+    private final boolean mFastDistance;
+
+    private final double[] mTimeZoneBounds;
+
+    private ProgramOptions(Builder builder) {
+        mIsMergeStillEventsEnabled = builder.mIsMergeStillEventsEnabled;
+        mIsMergeAllWalkingAndRunningEventsEnabled = builder.mIsMergeAllWalkingAndRunningEventsEnabled;
+        mUserId = builder.mUserId;
+        mMultiUserId = builder.mMultiUserId;
+        mKeyFilePath = builder.mKeyFilePath;
+        mSameDayStartPoint = builder.mSameDayStartPoint;
+        mStillEventMergeThreshold = builder.mStillEventMergeThreshold;
+        mWalkingRunningEventMergeThreshold = builder.mWalkingRunningEventMergeThreshold;
+        mStartDate = builder.mStartDate;
+        mEndDate = builder.mEndDate;
+        mOutputDir = builder.mOutputDir;
+        mSkipKmz = builder.mSkipKmz;
+        mThreads = builder.mThreads;
+        mOrderedFetch = builder.mOrderedFetch;
+        mPrefetch = builder.mPrefetch;
+        mResume = builder.mResume;
+        mIncrementalStatePath = builder.mIncrementalStatePath;
+        mCacheDir = builder.mCacheDir;
+        mCacheMaxAgeMillis = builder.mCacheMaxAgeMillis;
+        mCacheMaxSizeBytes = builder.mCacheMaxSizeBytes;
+        mReplayDir = builder.mReplayDir;
+        mMaxReadsPerSecond = builder.mMaxReadsPerSecond;
+        mMaxConcurrentReads = builder.mMaxConcurrentReads;
+        mWorkStatsPath = builder.mWorkStatsPath;
+        mShardIndex = builder.mShardIndex;
+        mShardCount = builder.mShardCount;
+        mMemoryBudgetBytes = builder.mMemoryBudgetBytes;
+        mFastDistance = builder.mFastDistance;
+        mTimeZoneBounds = builder.mTimeZoneBounds;
     }
 
     public boolean isMergeStillEventsEnabled() {
         return mIsMergeStillEventsEnabled;
     }
 
-    public ProgramOptions setMergeStillEventsEnabled(boolean mergeStillEventsEnabled) {
-        mIsMergeStillEventsEnabled = mergeStillEventsEnabled;
-        return this;
-    }
-
     public boolean isMergeAllWalkingAndRunningEventsEnabled() {
         return mIsMergeAllWalkingAndRunningEventsEnabled;
     }
 
-    public ProgramOptions setMergeAllWalkingAndRunningEventsEnabled(boolean mergeAllWalkingAndRunningEventsEnabled) {
-        mIsMergeAllWalkingAndRunningEventsEnabled = mergeAllWalkingAndRunningEventsEnabled;
-        return this;
-    }
-
     public String getUserId() {
         return mUserId;
     }
 
-    public ProgramOptions setUserId(String userId) {
-        mUserId = userId;
-        return this;
+    public String getMultiUserId() {
+        return mMultiUserId;
     }
 
     public String getKeyFilePath() {
         return mKeyFilePath;
     }
 
-    public ProgramOptions setKeyFilePath(String keyFilePath) {
-        mKeyFilePath = keyFilePath;
-        return this;
-    }
-
     public Integer getSameDayStartPoint() {
         return mSameDayStartPoint;
     }
 
-    public ProgramOptions setSameDayStartPoint(Integer sameDayStartPoint) {
-        mSameDayStartPoint = sameDayStartPoint;
-        return this;
-    }
-
     public Integer getStillEventMergeThreshold() {
         return mStillEventMergeThreshold;
     }
 
-    public ProgramOptions setStillEventMergeThreshold(Integer stillEventMergeThreshold) {
-        mStillEventMergeThreshold = stillEventMergeThreshold;
-        return this;
-    }
-
     public Integer getWalkingRunningEventMergeThreshold() {
         return mWalkingRunningEventMergeThreshold;
     }
 
-    public ProgramOptions setWalkingRunningEventMergeThreshold(Integer walkingRunningEventMergeThreshold) {
-        mWalkingRunningEventMergeThreshold = walkingRunningEventMergeThreshold;
-        return this;
-    }
+    public long getStartDate() { return mStartDate; }
 
-    public  long getStartDate() { return mStartDate; }
+    public long getEndDate() { return mEndDate; }
 
-    public  ProgramOptions setStartDate(long startDate) {
-        this.mStartDate = startDate;
-        return this;
-    }
+    public String getOutputDir() { return mOutputDir; }
 
-    public  long getEndDate() { return mEndDate; }
+    public boolean skipKmz() { return mSkipKmz; }
 
-    public  ProgramOptions setEndDate(long endDate) {
-        this.mEndDate = endDate;
-        return this;
-    }
+    public int getThreads() { return mThreads; }
 
-    public String getOutputDir() { return mOutputDir; }
+    public boolean isOrderedFetch() { return mOrderedFetch; }
 
-    public ProgramOptions setOutputDir(String outputDir) {
-        this.mOutputDir = outputDir;
-        return this;
-    }
+    public int getPrefetch() { return mPrefetch; }
 
-    public boolean skipKmz() { return mSkipKmz; }
+    public boolean isResume() { return mResume; }
 
-    public ProgramOptions setSkipKmz(boolean skipKmz) {
-        this.mSkipKmz = skipKmz;
-        return this;
-    }
+    public String getIncrementalStatePath() { return mIncrementalStatePath; }
 
-    public String getMultiUserId() { return mMultiUserId; }
+    public String getCacheDir() { return mCacheDir; }
 
-    public ProgramOptions setMultiUserId( String multiUserId) {
-        this.mMultiUserId = multiUserId;
-        return this;
-    }
+    public long getCacheMaxAgeMillis() { return mCacheMaxAgeMillis; }
+
+    public long getCacheMaxSizeBytes() { return mCacheMaxSizeBytes; }
+
+    public String getReplayDir() { return mReplayDir; }
+
+    public int getMaxReadsPerSecond() { return mMaxReadsPerSecond; }
+
+    public int getMaxConcurrentReads() { return mMaxConcurrentReads; }
+
+    public String getWorkStatsPath() { return mWorkStatsPath; }
+
+    public int getShardIndex() { return mShardIndex; }
+
+    public int getShardCount() { return mShardCount; }
+
+    public long getMemoryBudgetBytes() { return mMemoryBudgetBytes; }
+
+    public boolean isFastDistance() { return mFastDistance; }
+
+    public double[] getTimeZoneBounds() { return mTimeZoneBounds; }
+
+    /**
+     * Builds the options of a job, starting from the default values
+     */
+    public static class Builder {
+
+        private boolean mIsMergeStillEventsEnabled = true;
+
+        private boolean mIsMergeAllWalkingAndRunningEventsEnabled = true;
+
+        private String mUserId;
+
+        private String mMultiUserId;
+
+        private String mKeyFilePath;
+
+        private Integer mSameDayStartPoint;
+
+        private Integer mStillEventMergeThreshold;
+
+        private Integer mWalkingRunningEventMergeThreshold;
+
+        private long mStartDate = 0;
+
+        private long mEndDate = 0;
+
+        private String mOutputDir = "";
+
+        private boolean mSkipKmz = false;
+
+        private int mThreads = 1;
 
+        private boolean mOrderedFetch = false;
+
+        private int mPrefetch = 0;
+
+        private boolean mResume = false;
+
+        private String mIncrementalStatePath = null;
+
+        private String mCacheDir = null;
+
+        private long mCacheMaxAgeMillis = 0;
+
+        private long mCacheMaxSizeBytes = 0;
+
+        private String mReplayDir = null;
+
+        private int mMaxReadsPerSecond = 0;
+
+        private int mMaxConcurrentReads = FirebaseConstants.FIREBASE_DEFAULT_MAX_CONCURRENT_READS;
+
+        private String mWorkStatsPath = null;
+
+        private int mShardIndex = 0;
+
+        private int mShardCount = 1;
+
+        private long mMemoryBudgetBytes = 0;
+
+        private boolean mFastDistance = false;
+
+        private double[] mTimeZoneBounds = null;
+
+        public String getOutputDir() { return mOutputDir; }
+
+        public boolean isOrderedFetch() { return mOrderedFetch; }
+
+        public Builder setMergeStillEventsEnabled(boolean mergeStillEventsEnabled) {
+            mIsMergeStillEventsEnabled = mergeStillEventsEnabled;
+            return this;
+        }
+
+        public Builder setMergeAllWalkingAndRunningEventsEnabled(boolean mergeAllWalkingAndRunningEventsEnabled) {
+            mIsMergeAllWalkingAndRunningEventsEnabled = mergeAllWalkingAndRunningEventsEnabled;
+            return this;
+        }
+
+        public Builder setUserId(String userId) {
+            mUserId = userId;
+            return this;
+        }
+
+        public Builder setMultiUserId(String multiUserId) {
+            mMultiUserId = multiUserId;
+            return this;
+        }
+
+        public Builder setKeyFilePath(String keyFilePath) {
+            mKeyFilePath = keyFilePath;
+            return this;
+        }
+
+        public Builder setSameDayStartPoint(Integer sameDayStartPoint) {
+            mSameDayStartPoint = sameDayStartPoint;
+            return this;
+        }
+
+        public Builder setStillEventMergeThreshold(Integer stillEventMergeThreshold) {
+            mStillEventMergeThreshold = stillEventMergeThreshold;
+            return this;
+        }
+
+        public Builder setWalkingRunningEventMergeThreshold(Integer walkingRunningEventMergeThreshold) {
+            mWalkingRunningEventMergeThreshold = walkingRunningEventMergeThreshold;
+            return this;
+        }
+
+        public Builder setStartDate(long startDate) {
+            mStartDate = startDate;
+            return this;
+        }
+
+        public Builder setEndDate(long endDate) {
+            mEndDate = endDate;
+            return this;
+        }
+
+        public Builder setOutputDir(String outputDir) {
+            mOutputDir = outputDir;
+            return this;
+        }
+
+        public Builder setSkipKmz(boolean skipKmz) {
+            mSkipKmz = skipKmz;
+            return this;
+        }
+
+        public Builder setThreads(int threads) {
+            mThreads = threads;
+            return this;
+        }
+
+        public Builder setOrderedFetch(boolean orderedFetch) {
+            mOrderedFetch = orderedFetch;
+            return this;
+        }
+
+        public Builder setPrefetch(int prefetch) {
+            mPrefetch = prefetch;
+            return this;
+        }
+
+        public Builder setResume(boolean resume) {
+            mResume = resume;
+            return this;
+        }
+
+        public Builder setIncrementalStatePath(String incrementalStatePath) {
+            mIncrementalStatePath = incrementalStatePath;
+            return this;
+        }
+
+        public Builder setCacheDir(String cacheDir) {
+            mCacheDir = cacheDir;
+            return this;
+        }
+
+        public Builder setCacheMaxAgeMillis(long cacheMaxAgeMillis) {
+            mCacheMaxAgeMillis = cacheMaxAgeMillis;
+            return this;
+        }
+
+        public Builder setCacheMaxSizeBytes(long cacheMaxSizeBytes) {
+            mCacheMaxSizeBytes = cacheMaxSizeBytes;
+            return this;
+        }
+
+        public Builder setReplayDir(String replayDir) {
+            mReplayDir = replayDir;
+            return this;
+        }
+
+        public Builder setMaxReadsPerSecond(int maxReadsPerSecond) {
+            mMaxReadsPerSecond = maxReadsPerSecond;
+            return this;
+        }
+
+        public Builder setMaxConcurrentReads(int maxConcurrentReads) {
+            mMaxConcurrentReads = maxConcurrentReads;
+            return this;
+        }
+
+        public Builder setWorkStatsPath(String workStatsPath) {
+            mWorkStatsPath = workStatsPath;
+            return this;
+        }
+
+        public Builder setShardIndex(int shardIndex) {
+            mShardIndex = shardIndex;
+            return this;
+        }
+
+        public Builder setShardCount(int shardCount) {
+            mShardCount = shardCount;
+            return this;
+        }
+
+        public Builder setMemoryBudgetBytes(long memoryBudgetBytes) {
+            mMemoryBudgetBytes = memoryBudgetBytes;
+            return this;
+        }
+
+        public Builder setFastDistance(boolean fastDistance) {
+            mFastDistance = fastDistance;
+            return this;
+        }
+
+        public Builder setTimeZoneBounds(double[] timeZoneBounds) {
+            mTimeZoneBounds = timeZoneBounds;
+            return this;
+        }
+
+        public ProgramOptions build() {
+            return new ProgramOptions(this);
+        }
+    }
 }
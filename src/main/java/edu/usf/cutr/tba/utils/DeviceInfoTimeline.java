@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.utils;
+
+import edu.usf.cutr.tba.model.DeviceInformation;
+import edu.usf.cutr.tba.model.DeviceInformationDocument;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Device information of one user over time, built once per user so the device state at the end of each trip can be
+ * looked up without decoding, parsing or allocating anything.
+ *
+ * Consecutive documents that report the same device state (region id, battery optimization, TalkBack and power save
+ * mode) are collapsed into the first of them, as most users report the same settings for weeks.
+ */
+public class DeviceInfoTimeline {
+
+    private final long[] mTimestamps;
+
+    private final DeviceInformation[] mDeviceInfos;
+
+    private final int mSize;
+
+    /**
+     * Creates the timeline of a user
+     * @param userDeviceInfoList decoded device information of the user, sorted by timestamp
+     */
+    public DeviceInfoTimeline(List<DeviceInformationDocument> userDeviceInfoList) {
+        mTimestamps = new long[userDeviceInfoList.size()];
+        mDeviceInfos = new DeviceInformation[userDeviceInfoList.size()];
+        int size = 0;
+        for (DeviceInformationDocument doc : userDeviceInfoList) {
+            if (size > 0 && isSameDeviceState(mDeviceInfos[size - 1], doc.getInfo())) {
+                continue;
+            }
+            mTimestamps[size] = doc.getTimestamp();
+            mDeviceInfos[size] = doc.getInfo();
+            size++;
+        }
+        mSize = size;
+    }
+
+    /**
+     * Returns the device information with the nearest timestamp that occurs prior to (and not after) the given time.
+     * If the time is before the first timestamp the first device information is returned.
+     * @param timeMillis time in milliseconds, i.e. the end time of an activity
+     * @return the device information closest to the given time or null if the timeline is empty
+     */
+    public DeviceInformation getClosestDeviceInfo(long timeMillis) {
+        if (mSize == 0) return null;
+
+        int index = Arrays.binarySearch(mTimestamps, 0, mSize, timeMillis);
+        if (index < 0) {
+            // Index of the first timestamp greater than timeMillis, minus one
+            index = -index - 2;
+        }
+        return mDeviceInfos[Math.max(index, 0)];
+    }
+
+    /**
+     * Returns the number of distinct device states of the timeline
+     * @return the number of distinct device states of the timeline
+     */
+    public int size() {
+        return mSize;
+    }
+
+    private static boolean isSameDeviceState(DeviceInformation d1, DeviceInformation d2) {
+        return Objects.equals(d1.regionId, d2.regionId) &&
+                Objects.equals(d1.getIgnoringBatteryOptimizations(), d2.getIgnoringBatteryOptimizations()) &&
+                Objects.equals(d1.getTalkBackEnabled(), d2.getTalkBackEnabled()) &&
+                Objects.equals(d1.getPowerSaveModeEnabled(), d2.getPowerSaveModeEnabled());
+    }
+}
@@ -15,36 +15,20 @@
  */
 package edu.usf.cutr.tba.utils;
 
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-import edu.usf.cutr.tba.model.DeviceInformation;
+import edu.usf.cutr.tba.model.DeviceInformationDocument;
 
 import java.util.Comparator;
 
 /**
- * Comparator class implementation to be used to compare two DeviceInformation objects.
- * Overrides the compare method comparing the long value of timestamp string property.
+ * Comparator class implementation to be used to compare two DeviceInformationDocument objects.
+ * Overrides the compare method comparing the timestamp parsed when the document was decoded.
  * If the timestamp property is not available, the document id is used. We assume the
  * document id by default have the time stamp as its name.
  */
-public class QueryDocumentSnapshotDeviceComparator implements Comparator<QueryDocumentSnapshot> {
-
-    private QueryDocumentSnapshot o;
+public class DeviceInformationDocumentComparator implements Comparator<DeviceInformationDocument> {
 
     @Override
-    public int compare(QueryDocumentSnapshot o1, QueryDocumentSnapshot o2) {
-        long t1 = getDeviceComparableTime(o1);
-        long t2 = getDeviceComparableTime(o2);
-
-        return Long.compare(t1, t2);
-    }
-
-    private long getDeviceComparableTime(QueryDocumentSnapshot o) {
-        DeviceInformation devInfo = o.toObject(DeviceInformation.class);
-
-        String timeStamp = devInfo.getTimestamp();
-        if (timeStamp == null) {
-            timeStamp = StringUtils.parsableTimeStamp(o.getId());
-        }
-        return Long.parseLong(timeStamp);
+    public int compare(DeviceInformationDocument o1, DeviceInformationDocument o2) {
+        return Long.compare(o1.getTimestamp(), o2.getTimestamp());
     }
 }
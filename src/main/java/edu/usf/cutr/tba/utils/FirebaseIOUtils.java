@@ -15,12 +15,18 @@
  */
 package edu.usf.cutr.tba.utils;
 
+import com.google.api.core.ApiFunction;
 import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
 import com.google.cloud.firestore.*;
+import com.google.common.util.concurrent.MoreExecutors;
+import edu.usf.cutr.tba.constants.FirebaseConstants;
+import edu.usf.cutr.tba.exception.FirestoreReadException;
 
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 public class FirebaseIOUtils {
 
@@ -37,62 +43,251 @@ public class FirebaseIOUtils {
         return db.collection(path).document(recordId);
     }
 
-    public static List<QueryDocumentSnapshot> getAllUserIds(Firestore db) {
-        CollectionReference collectionReference = db.collection("users");
-        return getQueryDocumentSnapshots(collectionReference);
+    /**
+     * Streams the ids of all users. The users collection is read in pages ordered by document id, so only one page
+     * is held in memory and the first ids are available as soon as the first page arrives.
+     * @param db Firestore data base interface
+     * @param readLimiter limiter of the reads of the job
+     * @return iterator over the ids of all users
+     */
+    public static Iterator<String> getAllUserIds(Firestore db, FirestoreReadLimiter readLimiter) {
+        // Only the ids are used, so the fields of the user documents are not downloaded
+        Query query = db.collection("users").select(FieldPath.documentId()).orderBy(FieldPath.documentId());
+        final Iterator<QueryDocumentSnapshot> pages = new FirestorePageIterator(query, readLimiter,
+                FirebaseConstants.FIREBASE_USERS_PAGE_SIZE);
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return pages.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return pages.next().getId();
+            }
+        };
     }
 
-    public static List<QueryDocumentSnapshot> getAllRecordIdsByUserIdAndFolder(Firestore db, String userId,
-                                                                               String folder) {
-        CollectionReference cr = db.collection("users/" + userId + "/" + folder);
-        return getQueryDocumentSnapshots(cr);
+    public static List<QueryDocumentSnapshot> getAllRecordIdsByUserIdAndFolder(Firestore db,
+                                                                               FirestoreReadLimiter readLimiter,
+                                                                               String userId, String folder) {
+        return getDocuments(getAllRecordsByUserIdAndFolderAsync(db, readLimiter, userId, folder));
+    }
+
+    /**
+     * Starts a query for all documents of a user folder without waiting for the result
+     * @param db Firestore data base interface
+     * @param readLimiter limiter of the reads of the job
+     * @param userId id of user to retrieve data from
+     * @param folder path to collection in data base
+     * @return future list of QueryDocument Snapshots of the folder
+     */
+    public static ApiFuture<List<QueryDocumentSnapshot>> getAllRecordsByUserIdAndFolderAsync(Firestore db,
+                                                                                             FirestoreReadLimiter readLimiter,
+                                                                                             String userId,
+                                                                                             String folder) {
+        return getDocumentsAsync(readLimiter, getFolderQuery(db, userId, folder));
     }
 
     /**
      * Perform a query by userId using a date range as filter
      * @param db Firestore data base interface
+     * @param readLimiter limiter of the reads of the job
      * @param userId id of user to retrieve data from
      * @param folder path to collection in data base
      * @param startDateMillis starting date to filter activities
      * @param endDateMillis end date to filter activities
      * @return List of QueryDocument Snapshots including activities filtered by date range.
      */
-    public static List<QueryDocumentSnapshot> getAllRecordIdsByDateRangeUserIdAndFolder(Firestore db, String userId,
+    public static List<QueryDocumentSnapshot> getAllRecordIdsByDateRangeUserIdAndFolder(Firestore db,
+                                                                                        FirestoreReadLimiter readLimiter,
+                                                                                        String userId,
                                                                                         String folder, long startDateMillis,
                                                                                         long endDateMillis) {
+        return getDocuments(getAllRecordsByDateRangeUserIdAndFolderAsync(db, readLimiter, userId, folder,
+                startDateMillis, endDateMillis));
+    }
+
+    /**
+     * Starts a query by userId using a date range as filter without waiting for the result
+     * @param db Firestore data base interface
+     * @param readLimiter limiter of the reads of the job
+     * @param userId id of user to retrieve data from
+     * @param folder path to collection in data base
+     * @param startDateMillis starting date to filter activities
+     * @param endDateMillis end date to filter activities
+     * @return future list of QueryDocument Snapshots including activities filtered by date range.
+     */
+    public static ApiFuture<List<QueryDocumentSnapshot>> getAllRecordsByDateRangeUserIdAndFolderAsync(Firestore db,
+                                                                                                      FirestoreReadLimiter readLimiter,
+                                                                                                      String userId,
+                                                                                                      String folder,
+                                                                                                      long startDateMillis,
+                                                                                                      long endDateMillis) {
+        Query dateRangeQuery = getFolderQuery(db, userId, folder).whereGreaterThanOrEqualTo(FirebaseConstants.FIREBASE_FIRST_ACTIVITY_EVENT_TIME_FIELD,
+                startDateMillis).whereLessThanOrEqualTo(FirebaseConstants.FIREBASE_FIRST_ACTIVITY_EVENT_TIME_FIELD,
+                endDateMillis);
+        return getDocumentsAsync(readLimiter, dateRangeQuery);
+    }
+
+    /**
+     * Streams the documents of a user folder ordered by firstActivityEventTimeMillis, one page at a time. The
+     * documents of heavy users are split into time slices that are downloaded concurrently. Documents without the
+     * firstActivityEventTimeMillis field are not returned by Firestore.
+     * @param db Firestore data base interface
+     * @param readLimiter limiter of the reads of the job
+     * @param sliceExecutor executor of the job that requests the pages of the time slices
+     * @param userId id of user to retrieve data from
+     * @param folder path to collection in data base
+     * @param startDateMillis starting date to filter activities, or 0 to not filter the activities by date
+     * @param endDateMillis end date to filter activities, or 0 to not filter the activities by date
+     * @return iterator over the documents ordered by firstActivityEventTimeMillis
+     */
+    public static Iterator<QueryDocumentSnapshot> getRecordsOrderedByActivityTime(Firestore db,
+                                                                                  FirestoreReadLimiter readLimiter,
+                                                                                  Executor sliceExecutor,
+                                                                                  String userId,
+                                                                                  String folder, long startDateMillis,
+                                                                                  long endDateMillis) {
+        return getRecordsOrderedByActivityTime(db, readLimiter, sliceExecutor, userId, folder, startDateMillis,
+                endDateMillis, FirebaseConstants.FIREBASE_MAX_TIME_SLICES,
+                FirebaseConstants.FIREBASE_SLICE_BUFFERED_PAGES);
+    }
+
+    /**
+     * Streams the documents of a user folder ordered by firstActivityEventTimeMillis, like
+     * getRecordsOrderedByActivityTime(), with the given limits on the pages downloaded ahead
+     * @param db Firestore data base interface
+     * @param readLimiter limiter of the reads of the job
+     * @param sliceExecutor executor of the job that requests the pages of the time slices
+     * @param userId id of user to retrieve data from
+     * @param folder path to collection in data base
+     * @param startDateMillis starting date to filter activities, or 0 to not filter the activities by date
+     * @param endDateMillis end date to filter activities, or 0 to not filter the activities by date
+     * @param maxSlices maximum number of time slices downloaded concurrently
+     * @param bufferedPages number of pages each time slice downloads ahead
+     * @return iterator over the documents ordered by firstActivityEventTimeMillis
+     */
+    public static Iterator<QueryDocumentSnapshot> getRecordsOrderedByActivityTime(Firestore db,
+                                                                                  FirestoreReadLimiter readLimiter,
+                                                                                  Executor sliceExecutor,
+                                                                                  String userId,
+                                                                                  String folder, long startDateMillis,
+                                                                                  long endDateMillis, int maxSlices,
+                                                                                  int bufferedPages) {
+        Query query = getFolderQuery(db, userId, folder);
+        if (startDateMillis > 0 && endDateMillis > 0) {
+            query = query.whereGreaterThanOrEqualTo(FirebaseConstants.FIREBASE_FIRST_ACTIVITY_EVENT_TIME_FIELD,
+                    startDateMillis).whereLessThanOrEqualTo(FirebaseConstants.FIREBASE_FIRST_ACTIVITY_EVENT_TIME_FIELD,
+                    endDateMillis);
+        }
+        return new TimeSlicedPageIterator(query, readLimiter, sliceExecutor,
+                FirebaseConstants.FIREBASE_FIRST_ACTIVITY_EVENT_TIME_FIELD,
+                FirebaseConstants.FIREBASE_ACTIVITY_TRANSITIONS_PAGE_SIZE, FirebaseConstants.FIREBASE_HEAVY_USER_DOCUMENTS,
+                maxSlices, bufferedPages);
+    }
+
+    /**
+     * Streams the documents of a user folder ordered by firstActivityEventTimeMillis and document id, one page at a
+     * time, starting at (or after) the given document. Documents without the firstActivityEventTimeMillis field are
+     * not returned by Firestore.
+     * @param db Firestore data base interface
+     * @param readLimiter limiter of the reads of the job
+     * @param userId id of user to retrieve data from
+     * @param folder path to collection in data base
+     * @param eventTimeMillis firstActivityEventTimeMillis of the first document
+     * @param documentId id of the first document
+     * @param inclusive true to start at the given document, false to start after it
+     * @return iterator over the documents ordered by firstActivityEventTimeMillis and document id
+     */
+    public static Iterator<QueryDocumentSnapshot> getRecordsOrderedByActivityTimeFrom(Firestore db,
+                                                                                      FirestoreReadLimiter readLimiter,
+                                                                                      String userId,
+                                                                                      String folder,
+                                                                                      long eventTimeMillis,
+                                                                                      String documentId,
+                                                                                      boolean inclusive) {
+        Query query = getFolderQuery(db, userId, folder)
+                .orderBy(FirebaseConstants.FIREBASE_FIRST_ACTIVITY_EVENT_TIME_FIELD)
+                .orderBy(FieldPath.documentId());
+        query = inclusive ? query.startAt(eventTimeMillis, documentId) : query.startAfter(eventTimeMillis, documentId);
+        return new FirestorePageIterator(query, readLimiter, FirebaseConstants.FIREBASE_ACTIVITY_TRANSITIONS_PAGE_SIZE);
+    }
+
+    /**
+     * Returns true if the user folder contains at least one document. Only one document is read.
+     * @param db Firestore data base interface
+     * @param readLimiter limiter of the reads of the job
+     * @param userId id of user to retrieve data from
+     * @param folder path to collection in data base
+     * @return true if the user folder contains at least one document
+     */
+    public static boolean hasAnyRecord(Firestore db, FirestoreReadLimiter readLimiter, String userId, String folder) {
         CollectionReference cr = db.collection("users/" + userId + "/" + folder);
-        Query dateRangeQuery = cr.whereGreaterThanOrEqualTo("firstActivityEventTimeMillis",
-                startDateMillis).whereLessThanOrEqualTo("firstActivityEventTimeMillis", endDateMillis);
-        return getQueryDocumentSnapshots(dateRangeQuery);
+        return !getQueryDocumentSnapshots(readLimiter, cr.select(FieldPath.documentId()).limit(1)).isEmpty();
     }
 
-    private static List<QueryDocumentSnapshot> getQueryDocumentSnapshots(CollectionReference cr) {
-        ApiFuture<QuerySnapshot> querySnapshotApiFuture = cr.get();
-        try {
-            return querySnapshotApiFuture.get().getDocuments();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
+    /**
+     * Returns a query for the documents of a user folder that only downloads the fields used by the analysis
+     * @param db Firestore data base interface
+     * @param userId id of user to retrieve data from
+     * @param folder path to collection in data base
+     * @return query for the documents of the folder
+     */
+    private static Query getFolderQuery(Firestore db, String userId, String folder) {
+        CollectionReference cr = db.collection("users/" + userId + "/" + folder);
+        if (FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER.equals(folder)) {
+            return cr.select(FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FIELDS);
+        } else if (FirebaseConstants.FIREBASE_DEVICE_INFO_FOLDER.equals(folder)) {
+            return cr.select(FirebaseConstants.FIREBASE_DEVICE_INFO_FIELDS);
         }
-        return new ArrayList<>();
+        return cr;
     }
 
     /**
      * Perform a query and return de documents collection
+     * @param readLimiter limiter of the reads of the job
      * @param qr query to be performed
      * @return list of document according to the entered filters
      */
-    private static List<QueryDocumentSnapshot> getQueryDocumentSnapshots(Query qr) {
-        ApiFuture<QuerySnapshot> querySnapshotApiFuture = qr.get();
+    static List<QueryDocumentSnapshot> getQueryDocumentSnapshots(FirestoreReadLimiter readLimiter, Query qr) {
+        return getDocuments(getDocumentsAsync(readLimiter, qr));
+    }
+
+    /**
+     * Starts a query without waiting for the result. The query waits for the read limiter and is retried if it fails
+     * with a transient error.
+     * @param readLimiter limiter of the reads of the job
+     * @param qr query to be performed
+     * @return future list of document according to the entered filters
+     */
+    static ApiFuture<List<QueryDocumentSnapshot>> getDocumentsAsync(FirestoreReadLimiter readLimiter, Query qr) {
+        return ApiFutures.transform(readLimiter.read(qr::get), new ApiFunction<QuerySnapshot, List<QueryDocumentSnapshot>>() {
+            @Override
+            public List<QueryDocumentSnapshot> apply(QuerySnapshot querySnapshot) {
+                return querySnapshot.getDocuments();
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Waits for the documents of a query
+     * @param future future list of documents returned by one of the async methods
+     * @return list of documents
+     * @throws FirestoreReadException if the query failed, so the caller doesn't mistake it for an empty result
+     */
+    public static <T> List<T> getDocuments(ApiFuture<List<T>> future) {
         try {
-            return querySnapshotApiFuture.get().getDocuments();
+            return future.get();
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            throw new FirestoreReadException("Interrupted while waiting for a Firestore read", e);
         } catch (ExecutionException e) {
-            e.printStackTrace();
+            if (e.getCause() instanceof FirestoreReadException) {
+                throw (FirestoreReadException) e.getCause();
+            }
+            throw new FirestoreReadException("Firestore read failed", e.getCause());
         }
-        return new ArrayList<>();
     }
 
 }
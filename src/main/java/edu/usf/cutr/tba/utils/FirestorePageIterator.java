@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.utils;
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the results of an ordered query one page at a time, using the last document of each page as the
+ * cursor for the next one. At most two pages are held in memory, no matter how many documents the query matches:
+ * the page being consumed and the next page, which is requested as soon as the current one arrives so the network
+ * round trip overlaps with the processing of the current page. The first page is requested by the constructor
+ * without waiting for it.
+ */
+public class FirestorePageIterator implements Iterator<QueryDocumentSnapshot> {
+
+    private final Query mQuery;
+
+    private final FirestoreReadLimiter mReadLimiter;
+
+    private final int mPageSize;
+
+    private List<QueryDocumentSnapshot> mPage;
+
+    private ApiFuture<List<QueryDocumentSnapshot>> mNextPage;
+
+    private int mIndex = 0;
+
+    /**
+     * @param query query to page through. It must define an order (e.g., orderBy(FieldPath.documentId())) so the
+     *              cursors are stable between pages.
+     * @param readLimiter limiter of the reads of the job
+     * @param pageSize maximum number of documents requested per page
+     */
+    public FirestorePageIterator(Query query, FirestoreReadLimiter readLimiter, int pageSize) {
+        mQuery = query;
+        mReadLimiter = readLimiter;
+        mPageSize = pageSize;
+        mNextPage = FirebaseIOUtils.getDocumentsAsync(readLimiter, query.limit(pageSize));
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (mPage == null || mIndex >= mPage.size()) {
+            if (mNextPage == null) {
+                return false;
+            }
+            mPage = FirebaseIOUtils.getDocuments(mNextPage);
+            mIndex = 0;
+            if (mPage.size() < mPageSize) {
+                // This page is not full, so there are no more documents
+                mNextPage = null;
+            } else {
+                QueryDocumentSnapshot last = mPage.get(mPage.size() - 1);
+                mNextPage = FirebaseIOUtils.getDocumentsAsync(mReadLimiter, mQuery.startAfter(last).limit(mPageSize));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public QueryDocumentSnapshot next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return mPage.get(mIndex++);
+    }
+}
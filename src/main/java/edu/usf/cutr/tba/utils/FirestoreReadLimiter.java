@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.utils;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ApiException;
+import com.google.common.util.concurrent.MoreExecutors;
+import edu.usf.cutr.tba.constants.FirebaseConstants;
+import edu.usf.cutr.tba.exception.FirestoreReadException;
+import io.grpc.Status;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throttles the Firestore reads and retries the ones that fail with a transient error, so a busy database slows the
+ * export down instead of dropping the data of users.
+ *
+ * Three mechanisms work together:
+ * - A token bucket caps the number of reads started per second, if a maximum rate is configured.
+ * - The number of reads in flight is limited with AIMD (additive increase, multiplicative decrease): each healthy
+ * read raises the limit by 1/limit, i.e. about one more read per round trip, while a read rejected because Firestore
+ * is overloaded, or a short term latency well above the long term latency, halves it (at most once per round trip).
+ * - Reads that fail with a retryable status (e.g., RESOURCE_EXHAUSTED or DEADLINE_EXCEEDED) are retried after an
+ * exponential backoff with full jitter, so the retries of many users don't hit Firestore at the same time.
+ *
+ * No thread ever waits for the limits: the reads that can't start yet are queued, and are started by the thread
+ * that completes a read and releases its slot, or by a task scheduled when the token bucket refills.
+ *
+ * A read that still fails after the last retry, or fails with a status that can't be retried, fails with a
+ * FirestoreReadException.
+ */
+public class FirestoreReadLimiter {
+
+    // Status codes of the reads that may succeed if they are retried
+    private static final Set<String> RETRYABLE_CODES = new HashSet<>(Arrays.asList("RESOURCE_EXHAUSTED",
+            "DEADLINE_EXCEEDED", "UNAVAILABLE", "ABORTED", "INTERNAL"));
+
+    // Factor applied to the concurrency limit when Firestore is overloaded
+    private static final double DECREASE_FACTOR = 0.5;
+
+    // The reads are considered slow when the short term latency is this many times the long term latency
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    // Weights of the last read in the short and long term latency averages
+    private static final double SHORT_LATENCY_WEIGHT = 0.2;
+
+    private static final double LONG_LATENCY_WEIGHT = 0.01;
+
+    private final double mMaxReadsPerSecond;
+
+    private final int mMaxConcurrentReads;
+
+    private final int mMaxRetries;
+
+    private final long mInitialBackoffMillis;
+
+    private final long mMaxBackoffMillis;
+
+    // Reads waiting for a slot or a token, the state below is guarded by this
+    private final Deque<Runnable> mPending = new ArrayDeque<>();
+
+    private boolean mDispatching = false;
+
+    private boolean mDispatchRequested = false;
+
+    private boolean mRefillScheduled = false;
+
+    private double mTokens;
+
+    private long mLastRefillNanos;
+
+    private double mConcurrencyLimit;
+
+    private int mInFlight = 0;
+
+    private double mShortLatencyNanos = 0;
+
+    private double mLongLatencyNanos = 0;
+
+    private long mLastDecreaseNanos;
+
+    private final AtomicLong mRetryCount = new AtomicLong();
+
+    private ScheduledExecutorService mScheduler;
+
+    /**
+     * @param maxReadsPerSecond maximum number of reads started per second, or 0 to not limit the rate
+     * @param maxConcurrentReads maximum number of reads in flight
+     */
+    public FirestoreReadLimiter(double maxReadsPerSecond, int maxConcurrentReads) {
+        this(maxReadsPerSecond, maxConcurrentReads, FirebaseConstants.FIREBASE_READ_MAX_RETRIES,
+                FirebaseConstants.FIREBASE_READ_INITIAL_BACKOFF_MILLIS,
+                FirebaseConstants.FIREBASE_READ_MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param maxReadsPerSecond maximum number of reads started per second, or 0 to not limit the rate
+     * @param maxConcurrentReads maximum number of reads in flight
+     * @param maxRetries number of times a failed read is retried
+     * @param initialBackoffMillis backoff before the first retry, doubled for each following retry
+     * @param maxBackoffMillis maximum backoff between two retries
+     */
+    public FirestoreReadLimiter(double maxReadsPerSecond, int maxConcurrentReads, int maxRetries,
+                                long initialBackoffMillis, long maxBackoffMillis) {
+        mMaxReadsPerSecond = maxReadsPerSecond;
+        mMaxConcurrentReads = Math.max(maxConcurrentReads, 1);
+        mMaxRetries = maxRetries;
+        mInitialBackoffMillis = initialBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+        // Allow bursts of up to one second of reads
+        mTokens = Math.max(maxReadsPerSecond, 1);
+        mLastRefillNanos = System.nanoTime();
+        mLastDecreaseNanos = mLastRefillNanos;
+        // Start below the maximum and ramp up while the reads are healthy
+        mConcurrencyLimit = Math.max(mMaxConcurrentReads / 4, 1);
+    }
+
+    /**
+     * Queues a read, which is started once the rate and concurrency limits allow it, and retried if it fails with a
+     * transient error. This method never blocks.
+     * @param read starts the read, it is called again for each retry
+     * @return future result of the read, which fails with a FirestoreReadException if all attempts failed
+     */
+    public <T> ApiFuture<T> read(Callable<ApiFuture<T>> read) {
+        SettableApiFuture<T> result = SettableApiFuture.create();
+        enqueue(() -> attempt(read, result, 0), false);
+        return result;
+    }
+
+    /**
+     * Returns the number of failed reads that were retried
+     * @return the number of failed reads that were retried
+     */
+    public long getRetryCount() {
+        return mRetryCount.get();
+    }
+
+    /**
+     * Returns the current maximum number of reads in flight
+     * @return the current maximum number of reads in flight
+     */
+    public synchronized int getConcurrencyLimit() {
+        return (int) mConcurrencyLimit;
+    }
+
+    /**
+     * Starts a read, its slot and token are already taken
+     */
+    private <T> void attempt(final Callable<ApiFuture<T>> read, final SettableApiFuture<T> result,
+                             final int retry) {
+        final long startNanos = System.nanoTime();
+        ApiFuture<T> future;
+        try {
+            future = read.call();
+        } catch (Exception e) {
+            future = ApiFutures.immediateFailedFuture(e);
+        }
+        ApiFutures.addCallback(future, new ApiFutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                onReadCompleted(System.nanoTime() - startNanos, false);
+                dispatch();
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                boolean retryable = isRetryable(t);
+                onReadCompleted(-1, retryable);
+                dispatch();
+                if (!retryable || retry >= mMaxRetries) {
+                    result.setException(new FirestoreReadException("Firestore read failed after " + (retry + 1) +
+                            " attempts", t));
+                    return;
+                }
+                mRetryCount.incrementAndGet();
+                getScheduler().schedule(() -> enqueue(() -> attempt(read, result, retry + 1), true),
+                        getBackoffMillis(retry), TimeUnit.MILLISECONDS);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Queues a read and starts the queued reads that the limits allow
+     * @param attempt starts the read
+     * @param retry true if the read is retried, it is then started before the reads that never ran
+     */
+    private void enqueue(Runnable attempt, boolean retry) {
+        synchronized (this) {
+            if (retry) {
+                mPending.addFirst(attempt);
+            } else {
+                mPending.addLast(attempt);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Starts the queued reads that the concurrency and rate limits allow. Only one thread starts reads at a time,
+     * the others ask it to check the queue again, so a read that completes right away doesn't recurse in here.
+     */
+    private void dispatch() {
+        synchronized (this) {
+            if (mDispatching) {
+                mDispatchRequested = true;
+                return;
+            }
+            mDispatching = true;
+        }
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                next = pollStartable();
+                if (next == null) {
+                    if (!mDispatchRequested) {
+                        mDispatching = false;
+                        return;
+                    }
+                    mDispatchRequested = false;
+                    continue;
+                }
+            }
+            next.run();
+        }
+    }
+
+    /**
+     * Takes a slot and a token for the next queued read, or schedules a new dispatch if the bucket is empty
+     * @return the next read to start, or null if none can start now
+     */
+    private Runnable pollStartable() {
+        if (mPending.isEmpty() || mInFlight >= (int) mConcurrencyLimit) {
+            return null;
+        }
+        long waitNanos = takeToken();
+        if (waitNanos > 0) {
+            if (!mRefillScheduled) {
+                mRefillScheduled = true;
+                getScheduler().schedule(() -> {
+                    synchronized (this) {
+                        mRefillScheduled = false;
+                    }
+                    dispatch();
+                }, waitNanos, TimeUnit.NANOSECONDS);
+            }
+            return null;
+        }
+        mInFlight++;
+        return mPending.poll();
+    }
+
+    /**
+     * Takes a token from the bucket
+     * @return 0 if a token was taken, otherwise the time until the next token in nanoseconds
+     */
+    private long takeToken() {
+        if (mMaxReadsPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        mTokens = Math.min(Math.max(mMaxReadsPerSecond, 1),
+                mTokens + (now - mLastRefillNanos) * mMaxReadsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        mLastRefillNanos = now;
+        if (mTokens >= 1) {
+            mTokens--;
+            return 0;
+        }
+        return (long) Math.ceil((1 - mTokens) * TimeUnit.SECONDS.toNanos(1) / mMaxReadsPerSecond);
+    }
+
+    /**
+     * Releases the slot of a read and adjusts the concurrency limit
+     * @param latencyNanos latency of a successful read, or -1 if the read failed
+     * @param overloaded true if the read failed because Firestore is overloaded
+     */
+    private synchronized void onReadCompleted(long latencyNanos, boolean overloaded) {
+        mInFlight--;
+        long now = System.nanoTime();
+        if (overloaded) {
+            decreaseConcurrencyLimit(now);
+        } else if (latencyNanos >= 0) {
+            if (mLongLatencyNanos == 0) {
+                mShortLatencyNanos = latencyNanos;
+                mLongLatencyNanos = latencyNanos;
+            }
+            mShortLatencyNanos += SHORT_LATENCY_WEIGHT * (latencyNanos - mShortLatencyNanos);
+            mLongLatencyNanos += LONG_LATENCY_WEIGHT * (latencyNanos - mLongLatencyNanos);
+            if (mShortLatencyNanos > LATENCY_TOLERANCE * mLongLatencyNanos) {
+                decreaseConcurrencyLimit(now);
+            } else {
+                mConcurrencyLimit = Math.min(mMaxConcurrentReads, mConcurrencyLimit + 1 / mConcurrencyLimit);
+            }
+        }
+    }
+
+    private void decreaseConcurrencyLimit(long now) {
+        // The reads in flight started before the limit was decreased, so wait for about one round trip
+        if (now - mLastDecreaseNanos < mShortLatencyNanos) {
+            return;
+        }
+        mConcurrencyLimit = Math.max(1, mConcurrencyLimit * DECREASE_FACTOR);
+        mShortLatencyNanos = mLongLatencyNanos;
+        mLastDecreaseNanos = now;
+    }
+
+    private long getBackoffMillis(int retry) {
+        long backoff = Math.min(mMaxBackoffMillis, mInitialBackoffMillis << Math.min(retry, 30));
+        return ThreadLocalRandom.current().nextLong(backoff + 1);
+    }
+
+    /**
+     * Returns the scheduler of the retries and of the dispatches after a refill, its tasks never block
+     */
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (mScheduler == null) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "firestore-read-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return mScheduler;
+    }
+
+    /**
+     * Returns true if a read that failed with the given error may succeed if it is retried
+     * @param t error of the read
+     * @return true if the read may succeed if it is retried
+     */
+    static boolean isRetryable(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ApiException) {
+                return RETRYABLE_CODES.contains(((ApiException) cause).getStatusCode().getCode().name());
+            }
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return RETRYABLE_CODES.contains(Status.fromThrowable(t).getCode().name());
+    }
+}
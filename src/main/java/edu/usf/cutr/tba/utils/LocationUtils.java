@@ -18,8 +18,6 @@ package edu.usf.cutr.tba.utils;
 import edu.usf.cutr.tba.model.TravelBehaviorInfo;
 import edu.usf.cutr.tba.model.TravelBehaviorRecord;
 
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -30,40 +28,152 @@ public class LocationUtils {
 
     private static final float DISTANCE_THRESHOLD = 50f;  // 50 meters
 
+    private static final double EARTH_MEAN_RADIUS = 6371008.8;  // meters
+
+    // The haversine distance on a sphere differs from the Vincenty distance on the WGS84 ellipsoid by less than
+    // 0.6%, the bound is doubled to be safe
+    private static final double HAVERSINE_MAX_RELATIVE_ERROR = 0.012;
+
+    // Covers the rounding of the Vincenty distance to a float
+    private static final double HAVERSINE_MAX_ABSOLUTE_ERROR = 0.01;  // meters
+
+    /**
+     * Locations of a document chosen for an activity: the best location, and the location of each provider that is
+     * closest in time to the activity
+     */
+    public static final class LocationSelection {
+
+        private final TravelBehaviorInfo.LocationInfo mBest;
+
+        private final TravelBehaviorInfo.LocationInfo mFused;
+
+        private final TravelBehaviorInfo.LocationInfo mGps;
+
+        private final TravelBehaviorInfo.LocationInfo mNetwork;
+
+        private LocationSelection(TravelBehaviorInfo.LocationInfo best, TravelBehaviorInfo.LocationInfo fused,
+                                  TravelBehaviorInfo.LocationInfo gps, TravelBehaviorInfo.LocationInfo network) {
+            mBest = best;
+            mFused = fused;
+            mGps = gps;
+            mNetwork = network;
+        }
+
+        public TravelBehaviorInfo.LocationInfo getBest() { return mBest; }
+
+        public TravelBehaviorInfo.LocationInfo getFused() { return mFused; }
+
+        public TravelBehaviorInfo.LocationInfo getGps() { return mGps; }
+
+        public TravelBehaviorInfo.LocationInfo getNetwork() { return mNetwork; }
+    }
+
+    /**
+     * Returns the location closest in time to the activity among the locations with an accuracy better than
+     * ACC_THRESHOLD, or the most accurate location if there is none (the closest in time one if several are equally
+     * accurate). Ties are broken by the order of the list. The list is scanned once and is not modified.
+     * @param locationInfoList locations of a document
+     * @param activityTime time of the activity, or null to use getBestLocation(locationInfoList)
+     * @return the best location, or null if the list is empty
+     */
     public static TravelBehaviorInfo.LocationInfo getBestLocation(List<TravelBehaviorInfo.LocationInfo> locationInfoList,
                                                                   final Long activityTime) {
         if (activityTime == null) return getBestLocation(locationInfoList);
         if (locationInfoList == null || locationInfoList.size() == 0) return null;
         if (locationInfoList.size() == 1) return locationInfoList.get(0);
 
-        // Sort the locations based on the time difference of the activity time and the location time
-        Collections.sort(locationInfoList, (Comparator.comparingLong(a -> (Math.abs(activityTime - a.time)))));
-
-        // return the earliest location if the location is in accuracy threshold
-        for (TravelBehaviorInfo.LocationInfo info: locationInfoList) {
-            if (info.accuracy < ACC_THRESHOLD) return info;
-        }
-
-        // if non-of the location's accuracy is less then threshold then return the best one with the best accuracy
-        TravelBehaviorInfo.LocationInfo retInfo = locationInfoList.get(0);
-        Float acc = retInfo.accuracy;
-        for (int i = 1; i < locationInfoList.size(); i++) {
+        long time = activityTime;
+        TravelBehaviorInfo.LocationInfo closestAccurate = null;
+        long closestAccurateDiff = 0;
+        TravelBehaviorInfo.LocationInfo mostAccurate = null;
+        float mostAccurateAccuracy = 0;
+        long mostAccurateDiff = 0;
+        for (int i = 0; i < locationInfoList.size(); i++) {
             TravelBehaviorInfo.LocationInfo info = locationInfoList.get(i);
-            if (info.accuracy < acc) {
-                acc = info.accuracy;
-                retInfo = info;
+            long diff = Math.abs(time - info.time);
+            float accuracy = info.accuracy;
+            if (accuracy < ACC_THRESHOLD && (closestAccurate == null || diff < closestAccurateDiff)) {
+                closestAccurate = info;
+                closestAccurateDiff = diff;
+            }
+            if (mostAccurate == null || accuracy < mostAccurateAccuracy ||
+                    (accuracy == mostAccurateAccuracy && diff < mostAccurateDiff)) {
+                mostAccurate = info;
+                mostAccurateAccuracy = accuracy;
+                mostAccurateDiff = diff;
             }
         }
+        return closestAccurate != null ? closestAccurate : mostAccurate;
+    }
 
-        return retInfo;
+    /**
+     * Chooses the best location of a document and the location of each provider in a single scan, so a document
+     * that ends a record and starts the next one is only scanned once. The best location is the same as
+     * getBestLocation(locationInfoList, activityTime). The location of a provider is the one closest in time to the
+     * activity, or the first one of the provider if the activity time is unknown.
+     * @param locationInfoList locations of a document
+     * @param activityTime time of the activity, or null if it is unknown
+     * @return the chosen locations, all null if the list is empty
+     */
+    public static LocationSelection selectLocations(List<TravelBehaviorInfo.LocationInfo> locationInfoList,
+                                                    final Long activityTime) {
+        TravelBehaviorInfo.LocationInfo best = getBestLocation(locationInfoList, activityTime);
+        TravelBehaviorInfo.LocationInfo fused = null;
+        TravelBehaviorInfo.LocationInfo gps = null;
+        TravelBehaviorInfo.LocationInfo network = null;
+        if (locationInfoList != null) {
+            long fusedDiff = 0;
+            long gpsDiff = 0;
+            long networkDiff = 0;
+            // A single location is taken as it is, even without a time
+            boolean byTime = activityTime != null && locationInfoList.size() > 1;
+            for (int i = 0; i < locationInfoList.size(); i++) {
+                TravelBehaviorInfo.LocationInfo info = locationInfoList.get(i);
+                String provider = info.getProvider();
+                long diff = byTime ? Math.abs(activityTime - info.time) : 0;
+                if (TravelBehaviorRecord.FUSED.equals(provider)) {
+                    if (fused == null || diff < fusedDiff) {
+                        fused = info;
+                        fusedDiff = diff;
+                    }
+                } else if (TravelBehaviorRecord.GPS.equals(provider)) {
+                    if (gps == null || diff < gpsDiff) {
+                        gps = info;
+                        gpsDiff = diff;
+                    }
+                } else if (TravelBehaviorRecord.NETWORK.equals(provider)) {
+                    if (network == null || diff < networkDiff) {
+                        network = info;
+                        networkDiff = diff;
+                    }
+                }
+            }
+        }
+        return new LocationSelection(best, fused, gps, network);
     }
+
+    /**
+     * Returns the best location of a document whose activity time is unknown. The locations are compared as of the
+     * time of the latest location of the document instead of the current time, so the choice only depends on the
+     * document and is the same whenever the export runs.
+     * @param locationInfoList locations of a document
+     * @return the best location, or null if the list is empty
+     */
     public static TravelBehaviorInfo.LocationInfo getBestLocation(List<TravelBehaviorInfo.LocationInfo> locationInfoList) {
         if (locationInfoList == null || locationInfoList.size() == 0) return null;
         if (locationInfoList.size() == 1) return locationInfoList.get(0);
 
+        long referenceTime = Long.MIN_VALUE;
+        for (int i = 0; i < locationInfoList.size(); i++) {
+            Long time = locationInfoList.get(i).time;
+            if (time != null && time > referenceTime) {
+                referenceTime = time;
+            }
+        }
+
         TravelBehaviorInfo.LocationInfo bestLocation = locationInfoList.get(0);
         for(int i = 1; i < locationInfoList.size(); i++) {
-            if (!compareLocations(bestLocation, locationInfoList.get(i))) {
+            if (!compareLocations(bestLocation, locationInfoList.get(i), referenceTime)) {
                 bestLocation = locationInfoList.get(i);
             }
         }
@@ -79,9 +189,11 @@ public class LocationUtils {
      *
      * @param a location to compare
      * @param b location to compare against
+     * @param referenceTime time used as the current time to decide if b is too old
      * @return true if Location a is "better" than b, or false if b is "better" than a
      */
-    private static boolean compareLocations(TravelBehaviorInfo.LocationInfo a, TravelBehaviorInfo.LocationInfo b) {
+    private static boolean compareLocations(TravelBehaviorInfo.LocationInfo a, TravelBehaviorInfo.LocationInfo b,
+                                            long referenceTime) {
         if (a == null) {
             // New location isn't valid, return false
             return false;
@@ -93,7 +205,7 @@ public class LocationUtils {
 
         // If the last location is older than TIME_THRESHOLD minutes, and the new location is more recent,
         // save the new location, even if the accuracy for new location is worse
-        if (System.currentTimeMillis() - b.getTime() > TIME_THRESHOLD
+        if (referenceTime - b.getTime() > TIME_THRESHOLD
                 && compareLocationsByTime(a, b)) {
             return true;
         }
@@ -123,9 +235,65 @@ public class LocationUtils {
                 tbr.getEndLon() == null) {
             return false;
         }
-        float distance = computeDistanceAndBearing(lastRecord.getEndLat(), lastRecord.getEndLon(), tbr.getEndLat(),
-                tbr.getEndLon());
-        return distance < DISTANCE_THRESHOLD;
+        return isWithinDistance(lastRecord.getEndLat(), lastRecord.getEndLon(), tbr.getEndLat(), tbr.getEndLon(),
+                DISTANCE_THRESHOLD);
+    }
+
+    /**
+     * Returns true if computeDistanceAndBearing() would return a distance shorter than the threshold. The cheap
+     * haversine distance decides unless it is within its error bound of the threshold, only then the Vincenty distance
+     * is computed, so the result is always the same as with the Vincenty distance.
+     * @param lat1 latitude of the first point
+     * @param lon1 longitude of the first point
+     * @param lat2 latitude of the second point
+     * @param lon2 longitude of the second point
+     * @param threshold distance in meters
+     * @return true if the points are closer than the threshold
+     */
+    public static boolean isWithinDistance(double lat1, double lon1, double lat2, double lon2, float threshold) {
+        double distance = computeHaversineDistance(lat1, lon1, lat2, lon2);
+        double error = distance * HAVERSINE_MAX_RELATIVE_ERROR + HAVERSINE_MAX_ABSOLUTE_ERROR;
+        if (distance + error < threshold) {
+            return true;
+        }
+        if (distance - error >= threshold) {
+            return false;
+        }
+        return computeDistanceAndBearing(lat1, lon1, lat2, lon2) < threshold;
+    }
+
+    /**
+     * Computes the great-circle distance between two points on a sphere of the mean radius of the Earth, which is
+     * within HAVERSINE_MAX_RELATIVE_ERROR of the distance returned by computeDistanceAndBearing() and several times
+     * faster to compute
+     * @param lat1 latitude of the first point
+     * @param lon1 longitude of the first point
+     * @param lat2 latitude of the second point
+     * @param lon2 longitude of the second point
+     * @return the distance in meters
+     */
+    public static double computeHaversineDistance(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinHalfDeltaPhi = Math.sin((phi2 - phi1) / 2);
+        double sinHalfDeltaLambda = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double h = sinHalfDeltaPhi * sinHalfDeltaPhi +
+                Math.cos(phi1) * Math.cos(phi2) * sinHalfDeltaLambda * sinHalfDeltaLambda;
+        return 2 * EARTH_MEAN_RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    /**
+     * Computes the distance reported in the Origin-Destination Bird-Eye Distance column
+     * @param lat1 latitude of the first point
+     * @param lon1 longitude of the first point
+     * @param lat2 latitude of the second point
+     * @param lon2 longitude of the second point
+     * @param fast true to use the haversine distance, false to use the Vincenty distance
+     * @return the distance in meters
+     */
+    public static float computeDistance(double lat1, double lon1, double lat2, double lon2, boolean fast) {
+        return fast ? (float) computeHaversineDistance(lat1, lon1, lat2, lon2) :
+                computeDistanceAndBearing(lat1, lon1, lat2, lon2);
     }
 
     /**
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.zip.CRC32;
+
+public class ShardUtils {
+
+    private static final String SHARD_DIR_PREFIX = "shard-";
+
+    /**
+     * Returns the shard of a user. The shard only depends on the user id and the number of shards, so every process
+     * of a sharded run agrees on it regardless of the JVM or the host.
+     * @param userId firebase user id
+     * @param shardCount number of shards
+     * @return the shard of the user, between 0 and shardCount - 1
+     */
+    public static int getShard(String userId, int shardCount) {
+        CRC32 crc = new CRC32();
+        crc.update(userId.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % shardCount);
+    }
+
+    /**
+     * Returns the output directory of a shard
+     * @param outputDir output directory of the whole run
+     * @param shardIndex index of the shard
+     * @return the output directory of the shard
+     */
+    public static String getShardDir(String outputDir, int shardIndex) {
+        return Paths.get(outputDir, SHARD_DIR_PREFIX + shardIndex).toString();
+    }
+}
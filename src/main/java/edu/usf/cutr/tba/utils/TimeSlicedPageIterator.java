@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2019 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.tba.utils;
+
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import edu.usf.cutr.tba.constants.FirebaseConstants;
+import edu.usf.cutr.tba.exception.FirestoreReadException;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+
+/**
+ * Iterates over the documents of a query ordered by a time field one page at a time, like FirestorePageIterator, but
+ * splits the results of heavy users into time slices that are downloaded concurrently.
+ *
+ * The first page is requested by the constructor. If it is full, the time of the last document is requested and the
+ * number of documents is estimated from the time span covered by the first page. Below the heavy user threshold the
+ * documents are paged sequentially, one page ahead. Above it, the rest of the time span is split into slices of equal
+ * length, each one paged by its own chain of requests that reads a few pages ahead, and the slices are consumed one
+ * after the other so the documents keep their order. The memory used is bounded by the buffered pages, no matter how
+ * many documents the query matches.
+ */
+public class TimeSlicedPageIterator implements Iterator<QueryDocumentSnapshot> {
+
+    private final Query mQuery;
+
+    private final FirestoreReadLimiter mReadLimiter;
+
+    // Requests the pages of the slices and receives them, owned by the job
+    private final Executor mSliceExecutor;
+
+    private final String mTimeField;
+
+    private final int mPageSize;
+
+    private final int mHeavyUserDocuments;
+
+    private final int mMaxSlices;
+
+    private final int mBufferedPages;
+
+    private ApiFuture<List<QueryDocumentSnapshot>> mFirstPage;
+
+    private List<QueryDocumentSnapshot> mPage;
+
+    private int mIndex = 0;
+
+    private final ArrayDeque<Slice> mSlices = new ArrayDeque<>();
+
+    /**
+     * @param query filtered query to page through, it must not define an order
+     * @param readLimiter limiter of the reads of the job
+     * @param sliceExecutor executor of the job that requests the pages of the slices
+     * @param timeField field used to order and slice the documents
+     * @param pageSize maximum number of documents requested per page
+     */
+    public TimeSlicedPageIterator(Query query, FirestoreReadLimiter readLimiter, Executor sliceExecutor,
+                                  String timeField, int pageSize) {
+        this(query, readLimiter, sliceExecutor, timeField, pageSize, FirebaseConstants.FIREBASE_HEAVY_USER_DOCUMENTS,
+                FirebaseConstants.FIREBASE_MAX_TIME_SLICES, FirebaseConstants.FIREBASE_SLICE_BUFFERED_PAGES);
+    }
+
+    /**
+     * @param query filtered query to page through, it must not define an order
+     * @param readLimiter limiter of the reads of the job
+     * @param sliceExecutor executor of the job that requests the pages of the slices
+     * @param timeField field used to order and slice the documents
+     * @param pageSize maximum number of documents requested per page
+     * @param heavyUserDocuments estimated number of documents above which the documents are sliced
+     * @param maxSlices maximum number of slices
+     * @param bufferedPages number of pages each slice downloads ahead
+     */
+    public TimeSlicedPageIterator(Query query, FirestoreReadLimiter readLimiter, Executor sliceExecutor,
+                                  String timeField, int pageSize, int heavyUserDocuments, int maxSlices,
+                                  int bufferedPages) {
+        mQuery = query;
+        mReadLimiter = readLimiter;
+        mSliceExecutor = sliceExecutor;
+        mTimeField = timeField;
+        mPageSize = pageSize;
+        mHeavyUserDocuments = heavyUserDocuments;
+        mMaxSlices = maxSlices;
+        mBufferedPages = bufferedPages;
+        mFirstPage = FirebaseIOUtils.getDocumentsAsync(readLimiter, query.orderBy(timeField).limit(pageSize));
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (mPage == null || mIndex >= mPage.size()) {
+            if (mFirstPage != null) {
+                mPage = FirebaseIOUtils.getDocuments(mFirstPage);
+                mFirstPage = null;
+                mIndex = 0;
+                if (mPage.size() == mPageSize) {
+                    // There are more documents
+                    createSlices(mPage.get(0), mPage.get(mPage.size() - 1));
+                }
+                continue;
+            }
+            Slice slice = mSlices.peek();
+            if (slice == null) {
+                return false;
+            }
+            List<QueryDocumentSnapshot> page = slice.takePage();
+            if (page == null) {
+                mSlices.poll();
+            } else {
+                mPage = page;
+                mIndex = 0;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public QueryDocumentSnapshot next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return mPage.get(mIndex++);
+    }
+
+    /**
+     * Splits the documents after the first page into slices according to the estimated number of documents
+     * @param first first document of the first page
+     * @param last last document of the first page
+     */
+    private void createSlices(QueryDocumentSnapshot first, QueryDocumentSnapshot last) {
+        long firstTime = getTime(first);
+        long lastTime = getTime(last);
+        List<QueryDocumentSnapshot> latest = FirebaseIOUtils.getDocuments(FirebaseIOUtils.getDocumentsAsync(
+                mReadLimiter, mQuery.select(mTimeField).orderBy(mTimeField, Query.Direction.DESCENDING).limit(1)));
+        long maxTime = latest.isEmpty() ? lastTime : getTime(latest.get(0));
+
+        int sliceCount = 1;
+        if (maxTime > lastTime) {
+            double estimatedDocuments = lastTime > firstTime ?
+                    (double) mPageSize * (maxTime - firstTime) / (lastTime - firstTime) : Double.MAX_VALUE;
+            sliceCount = (int) Math.min(Math.min(mMaxSlices, maxTime - lastTime),
+                    Math.ceil(estimatedDocuments / mHeavyUserDocuments));
+        }
+        if (sliceCount <= 1) {
+            mSlices.add(new Slice(mQuery.orderBy(mTimeField), last, 1));
+            return;
+        }
+
+        long start = lastTime;
+        for (int i = 0; i < sliceCount; i++) {
+            Query query = mQuery;
+            if (i > 0) {
+                query = query.whereGreaterThanOrEqualTo(mTimeField, start);
+            }
+            long end = lastTime + (maxTime - lastTime) * (i + 1) / sliceCount;
+            if (i < sliceCount - 1) {
+                // The last slice is not bounded, so it includes the documents written meanwhile
+                query = query.whereLessThan(mTimeField, end);
+            }
+            mSlices.add(new Slice(query.orderBy(mTimeField), i == 0 ? last : null, mBufferedPages));
+            start = end;
+        }
+    }
+
+    private long getTime(QueryDocumentSnapshot doc) {
+        Long time = doc.getLong(mTimeField);
+        return time != null ? time : 0;
+    }
+
+    /**
+     * Pages through the documents of a time slice, requesting the next page in the background while fewer than the
+     * maximum number of pages are buffered
+     */
+    private class Slice {
+
+        private final Query mSliceQuery;
+
+        private final int mMaxPages;
+
+        private final ArrayDeque<List<QueryDocumentSnapshot>> mPages = new ArrayDeque<>();
+
+        private QueryDocumentSnapshot mCursor;
+
+        private boolean mFetching = false;
+
+        private boolean mDone = false;
+
+        private Throwable mError;
+
+        /**
+         * @param sliceQuery ordered query of the slice
+         * @param cursor document the slice starts after, or null to start at the first document of the query
+         * @param maxPages maximum number of pages buffered
+         */
+        Slice(Query sliceQuery, QueryDocumentSnapshot cursor, int maxPages) {
+            mSliceQuery = sliceQuery;
+            mCursor = cursor;
+            mMaxPages = maxPages;
+            mSliceExecutor.execute(this::fetchIfNeeded);
+        }
+
+        private void fetchIfNeeded() {
+            Query query;
+            synchronized (this) {
+                if (mDone || mFetching || mPages.size() >= mMaxPages) {
+                    return;
+                }
+                mFetching = true;
+                query = mCursor == null ? mSliceQuery : mSliceQuery.startAfter(mCursor);
+            }
+            ApiFutures.addCallback(FirebaseIOUtils.getDocumentsAsync(mReadLimiter, query.limit(mPageSize)),
+                    new ApiFutureCallback<List<QueryDocumentSnapshot>>() {
+                        @Override
+                        public void onSuccess(List<QueryDocumentSnapshot> page) {
+                            synchronized (Slice.this) {
+                                mFetching = false;
+                                mPages.add(page);
+                                if (page.size() < mPageSize) {
+                                    mDone = true;
+                                } else {
+                                    mCursor = page.get(page.size() - 1);
+                                }
+                                Slice.this.notifyAll();
+                            }
+                            fetchIfNeeded();
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            synchronized (Slice.this) {
+                                mFetching = false;
+                                mError = t;
+                                mDone = true;
+                                Slice.this.notifyAll();
+                            }
+                        }
+                    }, mSliceExecutor);
+        }
+
+        /**
+         * Waits for the next page of the slice
+         * @return the next page, or null if all the pages of the slice were returned
+         */
+        List<QueryDocumentSnapshot> takePage() {
+            List<QueryDocumentSnapshot> page;
+            synchronized (this) {
+                while (mPages.isEmpty() && !mDone) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new FirestoreReadException("Interrupted while waiting for a Firestore read", e);
+                    }
+                }
+                if (mPages.isEmpty()) {
+                    if (mError instanceof FirestoreReadException) {
+                        throw (FirestoreReadException) mError;
+                    } else if (mError != null) {
+                        throw new FirestoreReadException("Firestore read failed", mError);
+                    }
+                    return null;
+                }
+                page = mPages.poll();
+            }
+            mSliceExecutor.execute(this::fetchIfNeeded);
+            return page;
+        }
+    }
+}
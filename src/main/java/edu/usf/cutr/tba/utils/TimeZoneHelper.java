@@ -1,17 +1,138 @@
 package edu.usf.cutr.tba.utils;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import net.iakovlev.timeshape.TimeZoneEngine;
 
 import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Determines a time zone from a location.
  * <p>
- * Initializing the TimeZoneEngine library is expensive and should only happen once, so this is a singleton.
+ * Loading the time zone polygons is expensive and should only happen once for each bounding box, so there is a single
+ * instance per bounding box, returned by getInstance(). Jobs with different bounds in the same process each get their
+ * own instance, and the TimeZoneEngine of the whole globe is shared by all instances.
+ * <p>
+ * Users rarely change time zone, so the time zone of each cell of CELL_SIZE degrees is cached and most lookups don't
+ * query the engine. A cell is only cached as a single time zone if all the locations of a grid of CELL_SAMPLES by
+ * CELL_SAMPLES locations, which includes the corners and the sides of the cell, are in the same time zone. The
+ * locations of the other cells are looked up one by one. A border that only clips the cell between two locations of
+ * the grid, or an enclave smaller than the grid spacing (about 250 meters), can be missed. Lookups don't lock, so they
+ * don't hold up the other workers.
+ * <p>
+ * The polygons can be loaded for a bounding box only, which is faster and takes less memory than the whole globe,
+ * and they are loaded on a background thread so they are ready by the time the first documents are analyzed.
  */
 public class TimeZoneHelper {
-    private static TimeZoneEngine mTimeZoneEngine;
+
+    // In degrees, about 1 km
+    private static final double CELL_SIZE = 0.01;
+
+    // Number of locations sampled along each side of a cell
+    private static final int CELL_SAMPLES = 5;
+
+    // Number of cells kept in the cache of each instance, about the area of a large country
+    private static final int MAX_CACHED_CELLS = 100000;
+
+    private static final String GLOBAL_KEY = "global";
+
+    // Instances by bounding box
+    private static final ConcurrentMap<String, TimeZoneHelper> sInstances = new ConcurrentHashMap<>();
+
+    // Engine of the whole globe, shared by all instances and used for the locations whose time zone is not in the
+    // engine of their bounding box
+    private static volatile FutureTask<TimeZoneEngine> sGlobalEngine;
+
+    /**
+     * Time zone of a cell
+     */
+    private static final class CellTimeZone {
+
+        // Cell crossed by the border of a time zone, its locations must be looked up one by one
+        static final CellTimeZone MIXED = new CellTimeZone(null);
+
+        // Time zone of all locations of the cell, or null if they are not in any time zone
+        final ZoneId mZoneId;
+
+        CellTimeZone(ZoneId zoneId) {
+            mZoneId = zoneId;
+        }
+    }
+
+    // Least recently used cells are evicted one by one once the cache is full
+    private final Cache<Long, CellTimeZone> mCellTimeZones = CacheBuilder.newBuilder().
+            maximumSize(MAX_CACHED_CELLS).build();
+
+    // Bounding box of mEngine as minLat, minLon, maxLat, maxLon, or null if it covers the whole globe
+    private final double[] mBounds;
+
+    // Engine of the bounding box, or null if the instance covers the whole globe
+    private final FutureTask<TimeZoneEngine> mEngine;
+
+    private TimeZoneHelper(double[] bounds) {
+        mBounds = bounds == null ? null : bounds.clone();
+        if (bounds == null) {
+            mEngine = null;
+            getGlobalEngine(false);
+        } else {
+            mEngine = start(() -> TimeZoneEngine.initialize(mBounds[0], mBounds[1], mBounds[2], mBounds[3]));
+        }
+    }
+
+    /**
+     * Returns the time zones of a bounding box, and starts loading them on a background thread the first time. Only
+     * the time zones that are entirely within the bounds are loaded, the others are looked up in the time zones of
+     * the whole globe.
+     *
+     * @param bounds minLat, minLon, maxLat and maxLon of the time zones, or null to cover the whole globe
+     * @return the time zones of the bounding box
+     */
+    public static TimeZoneHelper getInstance(double[] bounds) {
+        String key = bounds == null ? GLOBAL_KEY : Arrays.toString(bounds);
+        return sInstances.computeIfAbsent(key, k -> new TimeZoneHelper(bounds));
+    }
+
+    private static <T> FutureTask<T> start(Callable<T> loader) {
+        FutureTask<T> task = new FutureTask<>(loader);
+        Thread thread = new Thread(task, "TimeZoneEngine");
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+
+    /**
+     * Returns the engine of the whole globe, and starts loading it the first time
+     *
+     * @param outsideBounds true if the engine is needed for a location outside of a bounding box
+     */
+    private static FutureTask<TimeZoneEngine> getGlobalEngine(boolean outsideBounds) {
+        FutureTask<TimeZoneEngine> engine = sGlobalEngine;
+        if (engine != null) {
+            return engine;
+        }
+        synchronized (TimeZoneHelper.class) {
+            if (sGlobalEngine == null) {
+                if (outsideBounds) {
+                    System.err.println("A location is not within the time zone bounds, loading the time zones of " +
+                            "the whole globe.");
+                }
+                sGlobalEngine = start(TimeZoneEngine::initialize);
+            }
+            return sGlobalEngine;
+        }
+    }
+
+    private boolean isInBounds(double lat, double lon) {
+        return mBounds == null || (lat >= mBounds[0] && lon >= mBounds[1] && lat <= mBounds[2] && lon <= mBounds[3]);
+    }
 
     /**
      * Returns a time ZoneId for a given location, or null if one couldn't be determined
@@ -20,12 +141,70 @@ public class TimeZoneHelper {
      * @param lon
      * @return a time ZoneId for a given location, or null if one couldn't be determined
      */
-    synchronized static public ZoneId query(double lat, double lon) {
-        if (mTimeZoneEngine == null) {
-            // We can't assume all participate travel behavior will occur within the U.S., so init globally
-            mTimeZoneEngine = TimeZoneEngine.initialize();
+    public ZoneId query(double lat, double lon) {
+        long latCell = (long) Math.floor(lat / CELL_SIZE);
+        long lonCell = (long) Math.floor(lon / CELL_SIZE);
+        Long key = (latCell << 32) | (lonCell & 0xffffffffL);
+
+        CellTimeZone cellTimeZone = mCellTimeZones.getIfPresent(key);
+        if (cellTimeZone == null) {
+            // Two threads may look up the same cell at the same time, they get the same result
+            cellTimeZone = queryCell(latCell, lonCell);
+            mCellTimeZones.put(key, cellTimeZone);
+        }
+        if (cellTimeZone == CellTimeZone.MIXED) {
+            return queryLocation(lat, lon).orElse(null);
+        }
+        return cellTimeZone.mZoneId;
+    }
+
+    /**
+     * Returns the time zone of the locations of a cell sampled on a grid, or CellTimeZone.MIXED if they differ
+     */
+    private CellTimeZone queryCell(long latCell, long lonCell) {
+        double south = latCell * CELL_SIZE;
+        double west = lonCell * CELL_SIZE;
+        if (!isInBounds(south, west) || !isInBounds(south + CELL_SIZE, west + CELL_SIZE)) {
+            // Part of the cell is looked up in the engine of the whole globe, which may not be needed at all
+            return CellTimeZone.MIXED;
+        }
+        ZoneId cellZoneId = null;
+        for (int i = 0; i < CELL_SAMPLES; i++) {
+            double lat = (latCell + (double) i / (CELL_SAMPLES - 1)) * CELL_SIZE;
+            for (int j = 0; j < CELL_SAMPLES; j++) {
+                double lon = (lonCell + (double) j / (CELL_SAMPLES - 1)) * CELL_SIZE;
+                ZoneId zoneId = queryLocation(lat, lon).orElse(null);
+                if (i == 0 && j == 0) {
+                    cellZoneId = zoneId;
+                } else if (!Objects.equals(zoneId, cellZoneId)) {
+                    return CellTimeZone.MIXED;
+                }
+            }
+        }
+        return new CellTimeZone(cellZoneId);
+    }
+
+    private Optional<ZoneId> queryLocation(double lat, double lon) {
+        if (mEngine != null && isInBounds(lat, lon)) {
+            Optional<ZoneId> zoneId = await(mEngine).query(lat, lon);
+            if (zoneId.isPresent()) {
+                return zoneId;
+            }
+        }
+        return await(getGlobalEngine(mEngine != null)).query(lat, lon);
+    }
+
+    /**
+     * Waits for the time zones to be loaded
+     */
+    private static <T> T await(FutureTask<T> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading the time zones", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to load the time zones", e.getCause());
         }
-        Optional<ZoneId> maybeZoneId = mTimeZoneEngine.query(lat, lon);
-        return maybeZoneId.orElse(null);
     }
 }
@@ -15,17 +15,17 @@
  */
 package edu.usf.cutr.tba.utils;
 
-import com.google.cloud.firestore.QueryDocumentSnapshot;
+import edu.usf.cutr.tba.model.TravelBehaviorDocument;
 
 import java.util.Comparator;
 
-public class QueryDocumentSnapshotComparator implements Comparator<QueryDocumentSnapshot> {
+/**
+ * Compares two decoded activity-transitions documents by their precomputed comparable time
+ */
+public class TravelBehaviorDocumentComparator implements Comparator<TravelBehaviorDocument> {
 
     @Override
-    public int compare(QueryDocumentSnapshot o1, QueryDocumentSnapshot o2) {
-        long t1 = TravelBehaviorUtils.getComparableTime(o1);
-        long t2 = TravelBehaviorUtils.getComparableTime(o2);
-
-        return Long.compare(t1, t2);
+    public int compare(TravelBehaviorDocument o1, TravelBehaviorDocument o2) {
+        return Long.compare(o1.getComparableTime(), o2.getComparableTime());
     }
 }
@@ -15,14 +15,12 @@
  */
 package edu.usf.cutr.tba.utils;
 
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.firebase.database.annotations.NotNull;
+import com.google.common.hash.Hashing;
 import edu.usf.cutr.tba.constants.TravelBehaviorConstants;
-import edu.usf.cutr.tba.model.DeviceInformation;
 import edu.usf.cutr.tba.model.TravelBehaviorInfo;
 import edu.usf.cutr.tba.model.TravelBehaviorRecord;
 
-import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.ZoneId;
@@ -120,6 +118,21 @@ public class TravelBehaviorUtils {
      */
     public static boolean isInSameDay(List<TravelBehaviorRecord> oneDayTravelBehaviorRecordList,
                                       TravelBehaviorRecord tbr, long sameDayDiffHours) {
+        return isInSameDay(oneDayTravelBehaviorRecordList, tbr, sameDayDiffHours, TimeZoneHelper.getInstance(null));
+    }
+
+    /**
+     * Same as isInSameDay(List, TravelBehaviorRecord, long), with the time zones of the given helper
+     *
+     * @param oneDayTravelBehaviorRecordList
+     * @param tbr
+     * @param sameDayDiffHours the number of hours past midnight to use as a time to split days
+     * @param timeZoneHelper   time zones used to find the local midnight
+     * @return true if the provided travel behavior record (tbr) is in the same day as the others in the provided list
+     */
+    public static boolean isInSameDay(List<TravelBehaviorRecord> oneDayTravelBehaviorRecordList,
+                                      TravelBehaviorRecord tbr, long sameDayDiffHours,
+                                      TimeZoneHelper timeZoneHelper) {
         // Get the times of the first record in the list, as well as the time of the new tbr
         TravelBehaviorRecord firstRecord = oneDayTravelBehaviorRecordList.get(0);
         Long firstRecordActivityEndTime = firstRecord.getActivityEndTimeMillis() != null ? firstRecord.getActivityEndTimeMillis() :
@@ -136,21 +149,13 @@ public class TravelBehaviorUtils {
         Instant firstRecordActivityEndTimeInstant = Instant.ofEpochMilli(firstRecordActivityEndTime);
         Instant newRecordActivityEndTimeInstant = Instant.ofEpochMilli(newRecordActivityEndTime);
 
-        double lat, lon;
-        if (tbr.getStartLat() != null && tbr.getStartLon() != null) {
-            lat = tbr.getStartLat();
-            lon = tbr.getStartLon();
-        } else if (tbr.getEndLat() != null && tbr.getEndLon() != null) {
-            lat = tbr.getEndLat();
-            lon = tbr.getEndLon();
-        } else {
+        // Get time zone from travel behavior location
+        ZoneId zoneId = getZoneId(tbr, timeZoneHelper);
+        if (zoneId == null) {
             // An incomplete record - return false
             return false;
         }
 
-        // Get time zone from travel behavior location
-        ZoneId zoneId = TimeZoneHelper.query(lat, lon);
-
         ZonedDateTime localTimeList = firstRecordActivityEndTimeInstant.atZone(zoneId);
         ZonedDateTime localTimeTbr = newRecordActivityEndTimeInstant.atZone(zoneId);
 
@@ -165,6 +170,58 @@ public class TravelBehaviorUtils {
         return localTimeTbr.isAfter(nextDayMidnight) && localTimeTbr.isBefore(nextDayMidnightPlusOffset);
     }
 
+    /**
+     * Returns the time zone of a travel behavior record, from its start location or else its end location
+     *
+     * @param tbr travel behavior record
+     * @param timeZoneHelper time zones of the locations
+     * @return the time zone of the record, or null if it has no location or its location has no time zone
+     */
+    public static ZoneId getZoneId(TravelBehaviorRecord tbr, TimeZoneHelper timeZoneHelper) {
+        if (tbr.getStartLat() != null && tbr.getStartLon() != null) {
+            return timeZoneHelper.query(tbr.getStartLat(), tbr.getStartLon());
+        } else if (tbr.getEndLat() != null && tbr.getEndLon() != null) {
+            return timeZoneHelper.query(tbr.getEndLat(), tbr.getEndLon());
+        }
+        return null;
+    }
+
+    /**
+     * Returns the end of a day of travel behavior records, (midnight + sameDayDiffHours) after the local date of the
+     * first record. isInSameDay() takes the time zone of each new record, which isn't known yet, so the time zone of
+     * the last record of the day that has one is used: a later record in that time zone that ends at or after this
+     * time is never in the same day. A later record in another time zone may end the day up to the difference
+     * between the two time zones earlier or later. If no record of the day has a time zone, the UTC day is used.
+     *
+     * @param oneDayTravelBehaviorRecordList records of a day
+     * @param sameDayDiffHours the number of hours past midnight to use as a time to split days
+     * @param timeZoneHelper time zones used to find the local midnight
+     * @return the end of the day in milliseconds, or null if the first record has no end time, so no later record
+     * can be in the same day
+     */
+    public static Long getDayEndMillis(List<TravelBehaviorRecord> oneDayTravelBehaviorRecordList,
+                                       long sameDayDiffHours, TimeZoneHelper timeZoneHelper) {
+        TravelBehaviorRecord firstRecord = oneDayTravelBehaviorRecordList.get(0);
+        Long endTime = firstRecord.getActivityEndTimeMillis() != null ? firstRecord.getActivityEndTimeMillis() :
+                firstRecord.getLocationEndTimeMillis();
+        if (endTime == null) {
+            return null;
+        }
+
+        ZoneId zoneId = null;
+        for (int i = oneDayTravelBehaviorRecordList.size() - 1; i >= 0 && zoneId == null; i--) {
+            zoneId = getZoneId(oneDayTravelBehaviorRecordList.get(i), timeZoneHelper);
+        }
+        if (zoneId == null) {
+            // No local time zone, the UTC day is at most 14 hours off
+            zoneId = ZoneId.of("UTC");
+        }
+
+        ZonedDateTime nextDayMidnight = Instant.ofEpochMilli(endTime).atZone(zoneId).truncatedTo(ChronoUnit.DAYS)
+                .plus(1, ChronoUnit.DAYS);
+        return nextDayMidnight.plus(sameDayDiffHours, ChronoUnit.HOURS).toInstant().toEpochMilli();
+    }
+
     public static float millisToMinutes(long millis) {
         return TimeUnit.MILLISECONDS.toSeconds(millis) / 60f;
     }
@@ -185,80 +242,14 @@ public class TravelBehaviorUtils {
         return true;
     }
 
-    /**
-     * Performs a binary search to return the DeviceInformation object which nearest timestamp
-     * that occurs prior to (and not after) the activityEndTime.
-     * @param userDeviceInfoList Sorted (by timeStamp) list of QueryDocumentSnapshot including information over time of user device
-     * @param activityEndTimeMillis End time of an activity in milliseconds.
-     * @return DeviceInformation object with the timestamp closest to the activityEndTime. If the
-     * activityEndTime or DeviceInfo list are not available, return null
-     */
-    public static DeviceInformation getClosestDeviceInfo(@Nonnull List<QueryDocumentSnapshot> userDeviceInfoList, @NotNull Long activityEndTimeMillis) {
-        // If the device list is empty or there is no activity end time then return null
-        if (userDeviceInfoList.size() == 0) return null;
-
-        int low = 0;
-        int high = userDeviceInfoList.size() - 1;
-        // If timestamp is lower that the first element on the array list, return the first devInfo in List
-        DeviceInformation devInfo = userDeviceInfoList.get(low).toObject(DeviceInformation.class);
-        String timeStamp = devInfo.getTimestamp();
-        if (timeStamp == null) {
-            timeStamp = StringUtils.parsableTimeStamp(userDeviceInfoList.get(low).getId());
-        }
-        if(activityEndTimeMillis < Long.parseLong(timeStamp)){
-            return devInfo;
-        }
-
-        // If timestamp is higher that the last element on the array list, return last devInfo
-        devInfo = userDeviceInfoList.get(high).toObject(DeviceInformation.class);
-        timeStamp = devInfo.getTimestamp();
-        if (timeStamp == null) {
-            timeStamp = StringUtils.parsableTimeStamp(userDeviceInfoList.get(high).getId());
-        }
-        if (activityEndTimeMillis >= Long.parseLong(timeStamp)){
-            devInfo.setTimestamp(timeStamp);
-            return devInfo;
-        }
-
-        // activityEndTimeMillis is not bigger or lower thant the extreme values on the arrayList.
-        // Perform a binary search to find closest timestamp record previous to activityEndTimeMillis
-        while (low <= high) {
-            int mid = (low + high) / 2;
-            assert (mid <= high);
-            devInfo = userDeviceInfoList.get(mid).toObject(DeviceInformation.class);
-            timeStamp = devInfo.getTimestamp();
-            if (timeStamp == null) {
-                timeStamp = StringUtils.parsableTimeStamp(userDeviceInfoList.get(mid).getId());
-            }
-
-            if (activityEndTimeMillis < Long.parseLong(timeStamp)) {
-                high = mid -1;
-            } else if (activityEndTimeMillis > Long.parseLong(timeStamp)) {
-                low = mid +1;
-            } else {
-                devInfo.setTimestamp(timeStamp);
-                return devInfo;
-            }
-        }
-        // low is equal to high+1, return userDeviceInfoList at index high
-        devInfo = userDeviceInfoList.get(high).toObject(DeviceInformation.class);
-        timeStamp = devInfo.getTimestamp();
-        if (timeStamp == null) {
-            timeStamp = StringUtils.parsableTimeStamp(userDeviceInfoList.get(high).getId());
-        }
-        devInfo.setTimestamp(timeStamp);
-        return devInfo;
-    }
-
     /**
      * Generates a comparable activityStartTime for an activity-transitions document.
      * If the activityStartTime from the transition is null, a value between bestLocation.time
      * and Long.MIN_VALUE will be selected
-     * @param o QueryDocumentSnapshot for an activity-transitions document
+     * @param tbi decoded activity-transitions document
      * @return a comparable (not null) activityStartTimeValue
      */
-    public static long getComparableTime(QueryDocumentSnapshot o) {
-        TravelBehaviorInfo tbi = o.toObject(TravelBehaviorInfo.class);
+    public static long getComparableTime(TravelBehaviorInfo tbi) {
         Long activityStartTime = TravelBehaviorUtils.getActivityStartTime(tbi);
         if (activityStartTime == null) {
             TravelBehaviorInfo.LocationInfo bestLocation = LocationUtils.getBestLocation(tbi.locationInfoList);
@@ -288,4 +279,34 @@ public class TravelBehaviorUtils {
         return null;
 
     }
+
+    /**
+     * Generates the trip id of a trip. The id only depends on the user and the document where the trip starts, so it
+     * is the same regardless of the order, thread or shard the user is processed in, and across runs.
+     * @param userId firebase user id
+     * @param enterDocumentId id of the activity-transitions document that starts the trip
+     * @return trip id
+     */
+    public static String getTripId(String userId, String enterDocumentId) {
+        return getStableId(userId + "/" + enterDocumentId);
+    }
+
+    /**
+     * Generates the tour id of a tour from the trip id of its first trip
+     * @param userId firebase user id
+     * @param firstTripId trip id of the first trip of the tour
+     * @return tour id
+     */
+    public static String getTourId(String userId, String firstTripId) {
+        return getStableId(userId + "/tour/" + firstTripId);
+    }
+
+    /**
+     * @param key value that identifies the trip or tour
+     * @return non-negative 63-bit hash of the key as a string
+     */
+    private static String getStableId(String key) {
+        long hash = Hashing.murmur3_128().hashString(key, StandardCharsets.UTF_8).asLong();
+        return String.valueOf(hash & Long.MAX_VALUE);
+    }
 }
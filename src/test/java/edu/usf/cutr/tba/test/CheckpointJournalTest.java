@@ -0,0 +1,65 @@
+package edu.usf.cutr.tba.test;
+
+import edu.usf.cutr.tba.constants.FirebaseConstants;
+import edu.usf.cutr.tba.io.CheckpointJournal;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests recording and loading the users completed by a run
+ */
+public class CheckpointJournalTest {
+
+    @Rule
+    public TemporaryFolder mOutputDir = new TemporaryFolder();
+
+    /**
+     * Given a journal with a completed user, a user with one written day and a partially written line, verify that
+     * resuming loads the completed user, the last written day and the KMZ files of the other user and the CSV offset
+     * of the last day, and that the partial line is dropped.
+     */
+    @Test
+    public void testResume() throws IOException {
+        String outputDir = mOutputDir.getRoot().getPath();
+        CheckpointJournal journal = new CheckpointJournal(outputDir, false);
+        journal.appendDay("user1", 1000L, 1200L, 3, "user1_a.kmz");
+        journal.appendDay("user2", 1500L, 1500L, 1, "user2_a.kmz");
+        journal.appendDay("user1", 2000L, 1800L, 2, "user1_b.kmz");
+        journal.appendUserCompleted("user1", 1800L, 5);
+        journal.appendDay("user2", 2500L, 2100L, 2, null);
+        journal.close();
+
+        File file = new File(outputDir, FirebaseConstants.TRAVEL_BEHAVIOR_CHECKPOINT_FILE);
+        try (FileWriter writer = new FileWriter(file, true)) {
+            writer.write("\"user2\",\"3500\",\"2400\",\"1\",\"user2_c");
+        }
+
+        CheckpointJournal resumed = new CheckpointJournal(outputDir, true);
+        assertEquals(1, resumed.getCompletedUserCount());
+        assertTrue(resumed.isCompleted("user1"));
+        assertFalse(resumed.isCompleted("user2"));
+        assertNull(resumed.getLastDayStartMillis("user1"));
+        assertEquals(Long.valueOf(2500L), resumed.getLastDayStartMillis("user2"));
+        assertNull(resumed.getLastDayStartMillis("user3"));
+        assertEquals(2100L, resumed.getCsvOffset());
+        assertTrue(resumed.getKmzFileNames("user1").isEmpty());
+        assertEquals(Collections.singleton("user2_a.kmz"), resumed.getKmzFileNames("user2"));
+        assertTrue(resumed.isResumed());
+        resumed.close();
+
+        // A new run starts a new journal
+        CheckpointJournal restarted = new CheckpointJournal(outputDir, false);
+        assertEquals(0, restarted.getCompletedUserCount());
+        assertEquals(0L, restarted.getCsvOffset());
+        restarted.close();
+        assertEquals(0, new CheckpointJournal(outputDir, true).getCompletedUserCount());
+    }
+}
@@ -0,0 +1,135 @@
+package edu.usf.cutr.tba.test;
+
+import edu.usf.cutr.tba.model.DeviceInformation;
+import edu.usf.cutr.tba.model.DeviceInformationDocument;
+import edu.usf.cutr.tba.utils.DeviceInfoTimeline;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests looking up the device information of a user over time
+ */
+public class DeviceInfoTimelineTest {
+
+    /**
+     * Given a sorted list of device information, verify that the closest device information prior to (and not
+     * after) a time is returned, and the first one if the time is before all of them.
+     */
+    @Test
+    public void testGetClosestDeviceInfo() {
+        DeviceInformation dev1 = createDeviceInfo(1L, false, "100");
+        DeviceInformation dev2 = createDeviceInfo(1L, true, "200");
+        DeviceInformation dev3 = createDeviceInfo(2L, true, "300");
+
+        DeviceInfoTimeline timeline = new DeviceInfoTimeline(Arrays.asList(
+                new DeviceInformationDocument("100", dev1),
+                new DeviceInformationDocument("200", dev2),
+                new DeviceInformationDocument("300", dev3)));
+
+        assertEquals(3, timeline.size());
+        assertSame(dev1, timeline.getClosestDeviceInfo(50L));
+        assertSame(dev1, timeline.getClosestDeviceInfo(100L));
+        assertSame(dev1, timeline.getClosestDeviceInfo(199L));
+        assertSame(dev2, timeline.getClosestDeviceInfo(200L));
+        assertSame(dev2, timeline.getClosestDeviceInfo(250L));
+        assertSame(dev3, timeline.getClosestDeviceInfo(Long.MAX_VALUE));
+
+        assertNull(new DeviceInfoTimeline(new ArrayList<DeviceInformationDocument>()).getClosestDeviceInfo(100L));
+    }
+
+    /**
+     * Given consecutive device information reporting the same device state, verify that they are collapsed into the
+     * first of them, while a state reported again later is kept.
+     */
+    @Test
+    public void testCollapseIdenticalDeviceStates() {
+        DeviceInformation dev1 = createDeviceInfo(1L, false, "100");
+        DeviceInformation dev2 = createDeviceInfo(1L, false, "200");
+        DeviceInformation dev3 = createDeviceInfo(1L, true, "300");
+        DeviceInformation dev4 = createDeviceInfo(1L, false, "400");
+
+        DeviceInfoTimeline timeline = new DeviceInfoTimeline(Arrays.asList(
+                new DeviceInformationDocument("100", dev1),
+                new DeviceInformationDocument("200", dev2),
+                new DeviceInformationDocument("300", dev3),
+                new DeviceInformationDocument("400", dev4)));
+
+        assertEquals(3, timeline.size());
+        assertSame(dev1, timeline.getClosestDeviceInfo(250L));
+        assertSame(dev3, timeline.getClosestDeviceInfo(350L));
+        assertSame(dev4, timeline.getClosestDeviceInfo(450L));
+
+        DeviceInfoTimeline single = new DeviceInfoTimeline(Collections.singletonList(
+                new DeviceInformationDocument("100", dev1)));
+        assertEquals(1, single.size());
+        assertSame(dev1, single.getClosestDeviceInfo(0L));
+    }
+
+    /**
+     * Given six device states and times in the middle, before, after and at their timestamps, verify that the closest
+     * device information prior to each time is returned.
+     */
+    @Test
+    public void testGetClosestDeviceInfoOfManyStates() {
+        DeviceInformation dev1 = createDeviceInfo(1L, false, "123456770");
+        DeviceInformation dev2 = createDeviceInfo(2L, false, "123456775");
+        DeviceInformation dev3 = createDeviceInfo(3L, false, "123456780");
+        DeviceInformation dev4 = createDeviceInfo(4L, false, "123456785");
+        DeviceInformation dev5 = createDeviceInfo(5L, false, "123456790");
+        DeviceInformation dev6 = createDeviceInfo(6L, false, "123456795");
+
+        DeviceInfoTimeline timeline = new DeviceInfoTimeline(Arrays.asList(
+                new DeviceInformationDocument(null, dev1),
+                new DeviceInformationDocument(null, dev2),
+                new DeviceInformationDocument(null, dev3),
+                new DeviceInformationDocument(null, dev4),
+                new DeviceInformationDocument(null, dev5),
+                new DeviceInformationDocument(null, dev6)));
+
+        assertEquals(6, timeline.size());
+        assertSame(dev4, timeline.getClosestDeviceInfo(123456788L));
+        assertSame(dev1, timeline.getClosestDeviceInfo(1234567L));
+        assertSame(dev6, timeline.getClosestDeviceInfo(123456799L));
+        assertSame(dev1, timeline.getClosestDeviceInfo(123456772L));
+        assertSame(dev5, timeline.getClosestDeviceInfo(123456790L));
+    }
+
+    /**
+     * Given device information taken from real documents, one of them without a timestamp property and with a
+     * document id that isn't a timestamp, verify that the closest device information prior to each time is returned.
+     */
+    @Test
+    public void testRealDataGetClosestDeviceInfo() {
+        DeviceInformation dev1 = createDeviceInfo(1L, false, null);
+        DeviceInformation dev2 = createDeviceInfo(2L, false, "1564623362560");
+        DeviceInformation dev3 = createDeviceInfo(3L, false, "1565737305141");
+        DeviceInformation dev4 = createDeviceInfo(4L, false, "1565743240407");
+        DeviceInformation dev5 = createDeviceInfo(5L, false, "1565744016204");
+        DeviceInformation dev6 = createDeviceInfo(6L, false, "1565744501832");
+
+        DeviceInfoTimeline timeline = new DeviceInfoTimeline(Arrays.asList(
+                new DeviceInformationDocument("0-eb01e0cd-b143-467e-94c9-a25edbefc122", dev1),
+                new DeviceInformationDocument("1564623362560", dev2),
+                new DeviceInformationDocument(null, dev3),
+                new DeviceInformationDocument(null, dev4),
+                new DeviceInformationDocument(null, dev5),
+                new DeviceInformationDocument(null, dev6)));
+
+        assertSame(dev4, timeline.getClosestDeviceInfo(1565743240500L));
+        assertSame(dev1, timeline.getClosestDeviceInfo(-1234567L));
+        assertSame(dev6, timeline.getClosestDeviceInfo(1565744501840L));
+        assertSame(dev1, timeline.getClosestDeviceInfo(100L));
+        assertSame(dev5, timeline.getClosestDeviceInfo(1565744016204L));
+    }
+
+    private static DeviceInformation createDeviceInfo(Long regionId, Boolean isPowerSaveModeEnabled,
+                                                      String timestamp) {
+        return new DeviceInformation("1.0", "model", "9", 28, "app", 1, regionId, false,
+                isPowerSaveModeEnabled, true, timestamp);
+    }
+}
@@ -0,0 +1,77 @@
+package edu.usf.cutr.tba.test;
+
+import edu.usf.cutr.tba.io.FirestoreCache;
+import edu.usf.cutr.tba.model.DeviceInformation;
+import edu.usf.cutr.tba.model.DeviceInformationDocument;
+import edu.usf.cutr.tba.model.TravelBehaviorDocument;
+import edu.usf.cutr.tba.model.TravelBehaviorInfo;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the local cache of Firestore documents
+ */
+public class FirestoreCacheTest {
+
+    @Rule
+    public TemporaryFolder mCacheDir = new TemporaryFolder();
+
+    /**
+     * Given cached activity transitions and device information, verify that they are read back with the same data.
+     */
+    @Test
+    public void testReadCachedDocuments() {
+        FirestoreCache cache = new FirestoreCache(mCacheDir.getRoot().getPath(), 0, 0);
+        assertNull(cache.readTravelBehaviorDocuments("user1"));
+
+        TravelBehaviorInfo.TravelBehaviorActivity activity = new TravelBehaviorInfo.TravelBehaviorActivity("WALKING",
+                "ACTIVITY_TRANSITION_ENTER");
+        activity.eventTimeMillis = 1565743240407L;
+        TravelBehaviorInfo.LocationInfo location = new TravelBehaviorInfo.LocationInfo();
+        location.lat = 28.0587;
+        location.lon = -82.4139;
+        location.time = 1565743240000L;
+        TravelBehaviorInfo tbi = new TravelBehaviorInfo(Collections.singletonList(activity), true);
+        tbi.locationInfoList = Collections.singletonList(location);
+        tbi.firstActivityEventTimeMillis = 1565743240407L;
+        cache.writeTravelBehaviorDocuments("user1", Collections.singletonList(new TravelBehaviorDocument("doc1", tbi)));
+
+        DeviceInformation deviceInfo = new DeviceInformation("1.0", "model", "9", 28, "app", 1, 1L, false,
+                true, false, "1565743240000");
+        cache.writeDeviceInformationDocuments("user1",
+                Collections.singletonList(new DeviceInformationDocument("1565743240000", deviceInfo)));
+
+        List<TravelBehaviorDocument> documents = cache.readTravelBehaviorDocuments("user1");
+        assertEquals(1, documents.size());
+        assertEquals("doc1", documents.get(0).getId());
+        assertEquals(Long.valueOf(1565743240407L), documents.get(0).getActivityStartTime());
+        assertEquals("WALKING", documents.get(0).getInfo().activities.get(0).detectedActivity);
+        assertEquals(-82.4139, documents.get(0).getInfo().locationInfoList.get(0).lon, 0);
+        assertEquals(1565743240407L, documents.get(0).getInfo().firstActivityEventTimeMillis);
+
+        List<DeviceInformationDocument> deviceDocuments = cache.readDeviceInformationDocuments("user1");
+        assertEquals(1, deviceDocuments.size());
+        assertEquals(1565743240000L, deviceDocuments.get(0).getTimestamp());
+        assertEquals(Long.valueOf(1L), deviceDocuments.get(0).getInfo().regionId);
+        assertTrue(deviceDocuments.get(0).getInfo().getPowerSaveModeEnabled());
+    }
+
+    /**
+     * Given a cache smaller than the cached files, verify that the least recently used files are evicted.
+     */
+    @Test
+    public void testEviction() {
+        FirestoreCache cache = new FirestoreCache(mCacheDir.getRoot().getPath(), 0, 1);
+        List<TravelBehaviorDocument> documents = new ArrayList<>();
+        documents.add(new TravelBehaviorDocument("doc1", new TravelBehaviorInfo()));
+        cache.writeTravelBehaviorDocuments("user1", documents);
+        assertNull(cache.readTravelBehaviorDocuments("user1"));
+    }
+}
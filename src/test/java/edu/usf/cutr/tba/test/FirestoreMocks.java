@@ -0,0 +1,44 @@
+package edu.usf.cutr.tba.test;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import edu.usf.cutr.tba.utils.FirestoreReadLimiter;
+import org.mockito.Mockito;
+
+import java.util.List;
+
+/**
+ * Mocks of Firestore documents and queries shared by the tests of the Firestore readers
+ */
+public class FirestoreMocks {
+
+    // Limiter of the reads of the tests, without a rate limit
+    static final FirestoreReadLimiter READ_LIMITER = new FirestoreReadLimiter(0, 16);
+
+    static QueryDocumentSnapshot mockDocument(String id) {
+        QueryDocumentSnapshot doc = Mockito.mock(QueryDocumentSnapshot.class);
+        Mockito.when(doc.getId()).thenReturn(id);
+        return doc;
+    }
+
+    static QueryDocumentSnapshot mockDocument(String id, String timeField, long time) {
+        QueryDocumentSnapshot doc = mockDocument(id);
+        Mockito.when(doc.getLong(timeField)).thenReturn(time);
+        return doc;
+    }
+
+    /**
+     * Returns a query whose results are the given documents
+     * @param documents results of the query
+     * @return a query whose results are the given documents
+     */
+    static Query mockPage(List<QueryDocumentSnapshot> documents) {
+        QuerySnapshot snapshot = Mockito.mock(QuerySnapshot.class);
+        Mockito.when(snapshot.getDocuments()).thenReturn(documents);
+        Query page = Mockito.mock(Query.class);
+        Mockito.when(page.get()).thenReturn(ApiFutures.immediateFuture(snapshot));
+        return page;
+    }
+}
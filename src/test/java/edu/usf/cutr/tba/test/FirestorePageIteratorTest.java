@@ -0,0 +1,86 @@
+package edu.usf.cutr.tba.test;
+
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import edu.usf.cutr.tba.utils.FirestorePageIterator;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static edu.usf.cutr.tba.test.FirestoreMocks.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests paging through the results of a Firestore query
+ */
+public class FirestorePageIteratorTest {
+
+    /**
+     * Given a query with five documents and a page size of two, verify that all documents are returned in order and
+     * that each page after the first one starts after the last document of the previous page.
+     */
+    @Test
+    public void testIterateOverPages() {
+        QueryDocumentSnapshot doc1 = mockDocument("a");
+        QueryDocumentSnapshot doc2 = mockDocument("b");
+        QueryDocumentSnapshot doc3 = mockDocument("c");
+        QueryDocumentSnapshot doc4 = mockDocument("d");
+        QueryDocumentSnapshot doc5 = mockDocument("e");
+
+        Query query = Mockito.mock(Query.class);
+        Query firstPage = mockPage(Arrays.asList(doc1, doc2));
+        Query afterDoc2 = Mockito.mock(Query.class);
+        Query secondPage = mockPage(Arrays.asList(doc3, doc4));
+        Query afterDoc4 = Mockito.mock(Query.class);
+        Query thirdPage = mockPage(Collections.singletonList(doc5));
+
+        Mockito.when(query.limit(2)).thenReturn(firstPage);
+        Mockito.when(query.startAfter(doc2)).thenReturn(afterDoc2);
+        Mockito.when(afterDoc2.limit(2)).thenReturn(secondPage);
+        Mockito.when(query.startAfter(doc4)).thenReturn(afterDoc4);
+        Mockito.when(afterDoc4.limit(2)).thenReturn(thirdPage);
+
+        FirestorePageIterator iterator = new FirestorePageIterator(query, READ_LIMITER, 2);
+        List<String> ids = new ArrayList<>();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().getId());
+        }
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), ids);
+
+        // The third page was not full, so no other page must be requested
+        Mockito.verify(query, Mockito.never()).startAfter(doc5);
+    }
+
+    /**
+     * Given a query whose number of documents is a multiple of the page size, verify that the iteration ends after
+     * an empty page is returned.
+     */
+    @Test
+    public void testIterateOverFullPages() {
+        QueryDocumentSnapshot doc1 = mockDocument("a");
+        QueryDocumentSnapshot doc2 = mockDocument("b");
+
+        Query query = Mockito.mock(Query.class);
+        Query firstPage = mockPage(Arrays.asList(doc1, doc2));
+        Query afterDoc2 = Mockito.mock(Query.class);
+        Query emptyPage = mockPage(Collections.<QueryDocumentSnapshot>emptyList());
+
+        Mockito.when(query.limit(2)).thenReturn(firstPage);
+        Mockito.when(query.startAfter(doc2)).thenReturn(afterDoc2);
+        Mockito.when(afterDoc2.limit(2)).thenReturn(emptyPage);
+
+        FirestorePageIterator iterator = new FirestorePageIterator(query, READ_LIMITER, 2);
+        assertSame(doc1, iterator.next());
+        assertSame(doc2, iterator.next());
+        assertFalse(iterator.hasNext());
+
+        // Verify an empty query
+        Query emptyQuery = Mockito.mock(Query.class);
+        Mockito.when(emptyQuery.limit(2)).thenReturn(emptyPage);
+        assertFalse(new FirestorePageIterator(emptyQuery, READ_LIMITER, 2).hasNext());
+    }
+}
@@ -0,0 +1,102 @@
+package edu.usf.cutr.tba.test;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import edu.usf.cutr.tba.exception.FirestoreReadException;
+import edu.usf.cutr.tba.utils.FirebaseIOUtils;
+import edu.usf.cutr.tba.utils.FirestoreReadLimiter;
+import io.grpc.Status;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests throttling and retrying the Firestore reads
+ */
+public class FirestoreReadLimiterTest {
+
+    private static <T> ApiFuture<T> failure(Status.Code code) {
+        return ApiFutures.immediateFailedFuture(ApiExceptionFactory.createException(new Exception(code.name()),
+                GrpcStatusCode.of(code), false));
+    }
+
+    /**
+     * Given a read that is rejected twice because Firestore is overloaded, verify that it is retried until it
+     * succeeds and that the concurrency limit is decreased.
+     */
+    @Test
+    public void testRetryTransientError() {
+        FirestoreReadLimiter limiter = new FirestoreReadLimiter(0, 16, 3, 1, 10);
+        int initialLimit = limiter.getConcurrencyLimit();
+        final AtomicInteger attempts = new AtomicInteger();
+        List<String> result = FirebaseIOUtils.getDocuments(limiter.read(() -> attempts.incrementAndGet() <= 2 ?
+                failure(Status.Code.RESOURCE_EXHAUSTED) :
+                ApiFutures.immediateFuture(Collections.singletonList("doc1"))));
+        assertEquals(Collections.singletonList("doc1"), result);
+        assertEquals(3, attempts.get());
+        assertEquals(2, limiter.getRetryCount());
+        assertTrue(limiter.getConcurrencyLimit() < initialLimit);
+    }
+
+    /**
+     * Given reads that fail with a permanent error or keep failing with a transient one, verify that they fail
+     * instead of returning an empty list.
+     */
+    @Test
+    public void testFailedRead() {
+        FirestoreReadLimiter limiter = new FirestoreReadLimiter(0, 16, 2, 1, 10);
+        final AtomicInteger attempts = new AtomicInteger();
+        try {
+            FirebaseIOUtils.getDocuments(limiter.<List<String>>read(() -> {
+                attempts.incrementAndGet();
+                return failure(Status.Code.PERMISSION_DENIED);
+            }));
+            fail();
+        } catch (FirestoreReadException e) {
+            assertEquals(1, attempts.get());
+        }
+
+        attempts.set(0);
+        try {
+            FirebaseIOUtils.getDocuments(limiter.<List<String>>read(() -> {
+                attempts.incrementAndGet();
+                return failure(Status.Code.UNAVAILABLE);
+            }));
+            fail();
+        } catch (FirestoreReadException e) {
+            assertEquals(3, attempts.get());
+        }
+    }
+
+    /**
+     * Given a concurrency limit of one read and a read in flight, verify that the next read is queued without
+     * blocking the caller and is started once the first read completes.
+     */
+    @Test
+    public void testQueuedRead() throws Exception {
+        FirestoreReadLimiter limiter = new FirestoreReadLimiter(0, 4, 0, 1, 10);
+        assertEquals(1, limiter.getConcurrencyLimit());
+        SettableApiFuture<List<String>> first = SettableApiFuture.create();
+        final AtomicInteger attempts = new AtomicInteger();
+        ApiFuture<List<String>> firstResult = limiter.read(() -> first);
+        ApiFuture<List<String>> secondResult = limiter.read(() -> {
+            attempts.incrementAndGet();
+            return ApiFutures.immediateFuture(Collections.singletonList("doc2"));
+        });
+        assertEquals(0, attempts.get());
+        assertFalse(secondResult.isDone());
+
+        first.set(Collections.singletonList("doc1"));
+        assertEquals(Collections.singletonList("doc1"), firstResult.get(1, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("doc2"), secondResult.get(1, TimeUnit.SECONDS));
+        assertEquals(1, attempts.get());
+    }
+}
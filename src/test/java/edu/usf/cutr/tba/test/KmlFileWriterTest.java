@@ -0,0 +1,49 @@
+package edu.usf.cutr.tba.test;
+
+import edu.usf.cutr.tba.io.KmlFileWriter;
+import edu.usf.cutr.tba.utils.TimeZoneHelper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests cleaning up the KMZ files of a user
+ */
+public class KmlFileWriterTest {
+
+    @Rule
+    public TemporaryFolder mOutputDir = new TemporaryFolder();
+
+    /**
+     * Given the folder of a user with the KMZ file of a recorded day, the KMZ file of a day that was not recorded, a
+     * KML file left by an interrupted conversion and another file, verify that only the KMZ file of the recorded day
+     * and the other file are kept.
+     */
+    @Test
+    public void testDeleteUserFiles() throws IOException {
+        File userFolder = mOutputDir.newFolder("user1");
+        File recorded = new File(userFolder, "user1_a.kmz");
+        File notRecorded = new File(userFolder, "user1_b.kmz");
+        File kml = new File(userFolder, "user1_c.kml");
+        File other = new File(userFolder, "notes.txt");
+        for (File file : new File[]{recorded, notRecorded, kml, other}) {
+            assertTrue(file.createNewFile());
+        }
+
+        KmlFileWriter writer = new KmlFileWriter(mOutputDir.getRoot().getPath(), TimeZoneHelper.getInstance(null));
+        writer.deleteUserFiles("user1", Collections.singleton("user1_a.kmz"));
+        assertTrue(recorded.exists());
+        assertFalse(notRecorded.exists());
+        assertFalse(kml.exists());
+        assertTrue(other.exists());
+
+        // A user without a folder has nothing to delete
+        writer.deleteUserFiles("user2", Collections.emptySet());
+    }
+}
@@ -0,0 +1,75 @@
+package edu.usf.cutr.tba.test;
+
+import edu.usf.cutr.tba.utils.LocationUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the distance formulas on pairs of points a few tens of meters apart, as in the tour algorithm
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LocationDistanceBenchmark {
+
+    private static final int POINT_COUNT = 1024;
+
+    private final double[] mLats = new double[POINT_COUNT * 2];
+
+    private final double[] mLons = new double[POINT_COUNT * 2];
+
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < mLats.length; i += 2) {
+            mLats[i] = 28.0587 + random.nextDouble() * 0.1;
+            mLons[i] = -82.4139 + random.nextDouble() * 0.1;
+            // Up to about 100 meters away
+            mLats[i + 1] = mLats[i] + (random.nextDouble() - 0.5) * 0.0018;
+            mLons[i + 1] = mLons[i] + (random.nextDouble() - 0.5) * 0.0018;
+        }
+    }
+
+    private int nextIndex() {
+        mIndex = (mIndex + 2) % mLats.length;
+        return mIndex;
+    }
+
+    @Benchmark
+    public float vincenty() {
+        int i = nextIndex();
+        return LocationUtils.computeDistanceAndBearing(mLats[i], mLons[i], mLats[i + 1], mLons[i + 1]);
+    }
+
+    @Benchmark
+    public double haversine() {
+        int i = nextIndex();
+        return LocationUtils.computeHaversineDistance(mLats[i], mLons[i], mLats[i + 1], mLons[i + 1]);
+    }
+
+    @Benchmark
+    public boolean vincentyThreshold() {
+        int i = nextIndex();
+        return LocationUtils.computeDistanceAndBearing(mLats[i], mLons[i], mLats[i + 1], mLons[i + 1]) < 50f;
+    }
+
+    @Benchmark
+    public boolean tieredThreshold() {
+        int i = nextIndex();
+        return LocationUtils.isWithinDistance(mLats[i], mLons[i], mLats[i + 1], mLons[i + 1], 50f);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(LocationDistanceBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,123 @@
+package edu.usf.cutr.tba.test;
+
+import edu.usf.cutr.tba.model.TravelBehaviorInfo;
+import edu.usf.cutr.tba.model.TravelBehaviorRecord;
+import edu.usf.cutr.tba.utils.LocationUtils;
+import edu.usf.cutr.tba.utils.TravelBehaviorUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests choosing the locations of a document
+ */
+public class LocationUtilsTest {
+
+    private static final String[] PROVIDERS = {TravelBehaviorRecord.FUSED, TravelBehaviorRecord.GPS,
+            TravelBehaviorRecord.NETWORK};
+
+    /**
+     * Previous implementation, which sorted the list by the time difference with the activity
+     */
+    private static TravelBehaviorInfo.LocationInfo getBestLocationBySorting(List<TravelBehaviorInfo.LocationInfo> list,
+                                                                            long activityTime) {
+        if (list.size() == 1) return list.get(0);
+        Collections.sort(list, Comparator.comparingLong(a -> Math.abs(activityTime - a.time)));
+        for (TravelBehaviorInfo.LocationInfo info : list) {
+            if (info.accuracy < 50f) return info;
+        }
+        TravelBehaviorInfo.LocationInfo retInfo = list.get(0);
+        for (int i = 1; i < list.size(); i++) {
+            if (list.get(i).accuracy < retInfo.accuracy) {
+                retInfo = list.get(i);
+            }
+        }
+        return retInfo;
+    }
+
+    /**
+     * Given random location lists with repeated times and accuracies, verify that the best location and the location
+     * of each provider are the ones the previous sorting implementation chose, and that the list is not reordered.
+     */
+    @Test
+    public void testSameChoicesAsSorting() {
+        Random random = new Random(42);
+        long activityTime = 1000000L;
+        for (int n = 0; n < 2000; n++) {
+            List<TravelBehaviorInfo.LocationInfo> list = new ArrayList<>();
+            int size = 1 + random.nextInt(6);
+            for (int i = 0; i < size; i++) {
+                TravelBehaviorInfo.LocationInfo info = new TravelBehaviorInfo.LocationInfo();
+                info.time = activityTime + (random.nextInt(9) - 4) * 1000L;
+                info.accuracy = (float) (random.nextInt(4) * 30);
+                info.provider = PROVIDERS[random.nextInt(PROVIDERS.length)];
+                list.add(info);
+            }
+            List<TravelBehaviorInfo.LocationInfo> original = new ArrayList<>(list);
+
+            LocationUtils.LocationSelection locations = LocationUtils.selectLocations(list, activityTime);
+            assertSame(locations.getBest(), LocationUtils.getBestLocation(list, activityTime));
+            assertEquals(original, list);
+
+            List<TravelBehaviorInfo.LocationInfo> sorted = new ArrayList<>(list);
+            assertSame(getBestLocationBySorting(sorted, activityTime), locations.getBest());
+            assertSame(TravelBehaviorUtils.getLocationInfo(sorted, TravelBehaviorRecord.FUSED), locations.getFused());
+            assertSame(TravelBehaviorUtils.getLocationInfo(sorted, TravelBehaviorRecord.GPS), locations.getGps());
+            assertSame(TravelBehaviorUtils.getLocationInfo(sorted, TravelBehaviorRecord.NETWORK),
+                    locations.getNetwork());
+        }
+    }
+
+    /**
+     * Given locations without an activity time where an old accurate location is followed by two recent inaccurate
+     * ones, verify that the locations are compared as of the time of the latest location and not the current time.
+     */
+    @Test
+    public void testBestLocationWithoutActivityTime() {
+        long time = 1559570400000L;
+        List<TravelBehaviorInfo.LocationInfo> list = new ArrayList<>();
+        float[] accuracies = {10f, 200f, 100f};
+        long[] times = {time, time + 20 * 60000L, time + 25 * 60000L};
+        for (int i = 0; i < times.length; i++) {
+            TravelBehaviorInfo.LocationInfo info = new TravelBehaviorInfo.LocationInfo();
+            info.time = times[i];
+            info.accuracy = accuracies[i];
+            list.add(info);
+        }
+        // The inaccurate locations are within 10 minutes of the latest one, so the last one of the list is kept
+        assertSame(list.get(2), LocationUtils.getBestLocation(list));
+
+        // Comparing with the current time would keep the newest location instead
+        Collections.swap(list, 1, 2);
+        assertSame(list.get(2), LocationUtils.getBestLocation(list));
+    }
+
+    /**
+     * Given random pairs of points around the 50 meter threshold, at several latitudes, verify that the tiered check
+     * gives the same result as comparing the Vincenty distance, and that the haversine distance is within 0.6% of it.
+     */
+    @Test
+    public void testWithinDistanceSameAsVincenty() {
+        Random random = new Random(42);
+        double[] latitudes = {0, 28.0587, 60, 80};
+        for (double lat : latitudes) {
+            for (int n = 0; n < 5000; n++) {
+                double lat1 = lat + random.nextDouble() * 0.01;
+                double lon1 = -82.4139 + random.nextDouble() * 0.01;
+                // Up to about 60 meters away
+                double lat2 = lat1 + (random.nextDouble() - 0.5) * 0.0011;
+                double lon2 = lon1 + (random.nextDouble() - 0.5) * 0.0011 / Math.cos(Math.toRadians(lat1));
+                float vincenty = LocationUtils.computeDistanceAndBearing(lat1, lon1, lat2, lon2);
+                assertEquals(vincenty < 50f, LocationUtils.isWithinDistance(lat1, lon1, lat2, lon2, 50f));
+                assertEquals(vincenty, LocationUtils.computeHaversineDistance(lat1, lon1, lat2, lon2),
+                        vincenty * 0.006 + 0.01);
+            }
+        }
+    }
+}
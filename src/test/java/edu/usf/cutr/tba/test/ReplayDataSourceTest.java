@@ -0,0 +1,94 @@
+package edu.usf.cutr.tba.test;
+
+import edu.usf.cutr.tba.constants.FirebaseConstants;
+import edu.usf.cutr.tba.io.ReplayDataSource;
+import edu.usf.cutr.tba.model.TravelBehaviorDocument;
+import edu.usf.cutr.tba.model.UserWatermark;
+import edu.usf.cutr.tba.utils.FirebaseIOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests reading the users and their documents from local JSON lines dumps
+ */
+public class ReplayDataSourceTest {
+
+    @Rule
+    public TemporaryFolder mReplayDir = new TemporaryFolder();
+
+    private void writeDump(String folder, String... lines) throws IOException {
+        File file = new File(mReplayDir.getRoot(), folder + ".jsonl");
+        try (FileWriter writer = new FileWriter(file)) {
+            for (String line : lines) {
+                writer.write(line + "\n");
+            }
+        }
+    }
+
+    /**
+     * Given dumps sorted by user id where a user only has device information, verify that all users are listed once
+     * with their own documents.
+     */
+    @Test
+    public void testListUsers() throws IOException {
+        writeDump(FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER,
+                "{\"userId\":\"a\",\"id\":\"1\",\"data\":{\"firstActivityEventTimeMillis\":100}}",
+                "{\"userId\":\"a\",\"id\":\"2\",\"data\":{\"firstActivityEventTimeMillis\":200}}",
+                "{\"userId\":\"c\",\"id\":\"3\",\"data\":{\"firstActivityEventTimeMillis\":300}}");
+        writeDump(FirebaseConstants.FIREBASE_DEVICE_INFO_FOLDER,
+                "{\"userId\":\"b\",\"id\":\"50\",\"data\":{\"timestamp\":\"50\"}}",
+                "{\"userId\":\"c\",\"id\":\"60\",\"data\":{\"timestamp\":\"60\"}}");
+
+        ReplayDataSource dataSource = new ReplayDataSource(mReplayDir.getRoot().getPath());
+        List<String> userIds = new ArrayList<>();
+        dataSource.getAllUserIds().forEachRemaining(userIds::add);
+        assertEquals(3, userIds.size());
+        assertEquals("a", userIds.get(0));
+        assertEquals("b", userIds.get(1));
+        assertEquals("c", userIds.get(2));
+
+        assertEquals(2, FirebaseIOUtils.getDocuments(dataSource.getAllUserInfoByIdAsync("a")).size());
+        assertFalse(dataSource.hasAnyUserInfo("b"));
+        assertEquals(1, FirebaseIOUtils.getDocuments(dataSource.getAllUserDeviceInfoByIdAsync("b")).size());
+        assertEquals(1, FirebaseIOUtils.getDocuments(dataSource.getAllUserDeviceInfoByIdAsync("c")).size());
+
+        // Users that are not listed are found by scanning the dumps
+        dataSource.release("c");
+        assertEquals("3", FirebaseIOUtils.getDocuments(dataSource.getAllUserInfoByIdAsync("c")).get(0).getId());
+    }
+
+    /**
+     * Given unsorted documents of a user, verify that the ordered and watermark queries return them in event time
+     * order starting after the watermark.
+     */
+    @Test
+    public void testOrderedQueries() throws IOException {
+        writeDump(FirebaseConstants.FIREBASE_ACTIVITY_TRANSITION_FOLDER,
+                "{\"userId\":\"a\",\"id\":\"3\",\"data\":{\"firstActivityEventTimeMillis\":300}}",
+                "{\"userId\":\"a\",\"id\":\"1\",\"data\":{\"firstActivityEventTimeMillis\":100}}",
+                "{\"userId\":\"a\",\"id\":\"0\",\"data\":{}}",
+                "{\"userId\":\"a\",\"id\":\"2\",\"data\":{\"firstActivityEventTimeMillis\":200}}");
+
+        ReplayDataSource dataSource = new ReplayDataSource(mReplayDir.getRoot().getPath());
+        Iterator<TravelBehaviorDocument> ordered = dataSource.getUserInfoByIdOrderedByTime("a", 0, 0);
+        assertEquals("1", ordered.next().getId());
+        assertEquals("2", ordered.next().getId());
+        assertEquals("3", ordered.next().getId());
+        assertFalse(ordered.hasNext());
+
+        Iterator<TravelBehaviorDocument> fromWatermark = dataSource.getUserInfoByIdFromWatermark("a",
+                new UserWatermark(200, "2", false, 1));
+        assertEquals("3", fromWatermark.next().getId());
+        assertFalse(fromWatermark.hasNext());
+    }
+}
@@ -0,0 +1,65 @@
+package edu.usf.cutr.tba.test;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+import edu.usf.cutr.tba.constants.FirebaseConstants;
+import edu.usf.cutr.tba.io.ShardMerger;
+import edu.usf.cutr.tba.utils.ShardUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests merging the CSV files of the shards of a run
+ */
+public class ShardMergerTest {
+
+    private static final String[] HEADER = {"User ID", "Trip ID", "Tour ID"};
+
+    @Rule
+    public TemporaryFolder mOutputDir = new TemporaryFolder();
+
+    private void writeShard(int shardIndex, String[]... rows) throws IOException {
+        File shardDir = new File(ShardUtils.getShardDir(mOutputDir.getRoot().getPath(), shardIndex));
+        assertTrue(shardDir.mkdirs());
+        try (CSVWriter writer = new CSVWriter(new FileWriter(new File(shardDir,
+                FirebaseConstants.TRAVEL_BEHAVIOR_CSV_FILE)))) {
+            writer.writeNext(HEADER);
+            for (String[] row : rows) {
+                writer.writeNext(row);
+            }
+        }
+    }
+
+    /**
+     * Given two shards, verify that their rows are written in shard order after a single header.
+     */
+    @Test
+    public void testMerge() throws IOException {
+        writeShard(0, new String[]{"a", "11", "21"}, new String[]{"a", "12", "21"}, new String[]{"b", "13", ""});
+        writeShard(1, new String[]{"c", "14", "22"}, new String[]{"c", "15", "23"});
+        assertTrue(new ShardMerger(mOutputDir.getRoot().getPath(), 2).merge());
+
+        List<String[]> rows;
+        try (CSVReader reader = new CSVReader(new FileReader(new File(mOutputDir.getRoot(),
+                FirebaseConstants.TRAVEL_BEHAVIOR_CSV_FILE)))) {
+            rows = reader.readAll();
+        }
+        assertEquals(6, rows.size());
+        assertArrayEquals(HEADER, rows.get(0));
+        assertArrayEquals(new String[]{"b", "13", ""}, rows.get(3));
+        assertArrayEquals(new String[]{"c", "14", "22"}, rows.get(4));
+        assertArrayEquals(new String[]{"c", "15", "23"}, rows.get(5));
+
+        // A missing shard fails the merge
+        assertFalse(new ShardMerger(mOutputDir.getRoot().getPath(), 3).merge());
+    }
+}
@@ -0,0 +1,101 @@
+package edu.usf.cutr.tba.test;
+
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.common.util.concurrent.MoreExecutors;
+import edu.usf.cutr.tba.utils.TimeSlicedPageIterator;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static edu.usf.cutr.tba.test.FirestoreMocks.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests downloading the documents of heavy users in time slices
+ */
+public class TimeSlicedPageIteratorTest {
+
+    private static final String TIME = "time";
+
+    /**
+     * Given a first page that covers a tenth of the time span of the documents, verify that the rest of the
+     * documents are requested in two time slices and returned in order.
+     */
+    @Test
+    public void testHeavyUser() {
+        QueryDocumentSnapshot docA = mockDocument("a", TIME, 0);
+        QueryDocumentSnapshot docB = mockDocument("b", TIME, 10);
+        QueryDocumentSnapshot docC = mockDocument("c", TIME, 20);
+        QueryDocumentSnapshot docD = mockDocument("d", TIME, 30);
+        QueryDocumentSnapshot docE = mockDocument("e", TIME, 40);
+        QueryDocumentSnapshot docF = mockDocument("f", TIME, 100);
+
+        Query query = Mockito.mock(Query.class);
+        Query ordered = Mockito.mock(Query.class);
+        Mockito.when(query.orderBy(TIME)).thenReturn(ordered);
+        Query firstPage = mockPage(Arrays.asList(docA, docB));
+        Mockito.when(ordered.limit(2)).thenReturn(firstPage);
+
+        // Time of the last document
+        Query selected = Mockito.mock(Query.class);
+        Query descending = Mockito.mock(Query.class);
+        Query latest = mockPage(Collections.singletonList(docF));
+        Mockito.when(query.select(TIME)).thenReturn(selected);
+        Mockito.when(selected.orderBy(TIME, Query.Direction.DESCENDING)).thenReturn(descending);
+        Mockito.when(descending.limit(1)).thenReturn(latest);
+
+        // First slice, from doc b to 55
+        Query slice1 = Mockito.mock(Query.class);
+        Query slice1Ordered = Mockito.mock(Query.class);
+        Query afterDocB = Mockito.mock(Query.class);
+        Query afterDocD = Mockito.mock(Query.class);
+        Query slice1Page1 = mockPage(Arrays.asList(docC, docD));
+        Query slice1Page2 = mockPage(Collections.singletonList(docE));
+        Mockito.when(query.whereLessThan(TIME, 55L)).thenReturn(slice1);
+        Mockito.when(slice1.orderBy(TIME)).thenReturn(slice1Ordered);
+        Mockito.when(slice1Ordered.startAfter(docB)).thenReturn(afterDocB);
+        Mockito.when(afterDocB.limit(2)).thenReturn(slice1Page1);
+        Mockito.when(slice1Ordered.startAfter(docD)).thenReturn(afterDocD);
+        Mockito.when(afterDocD.limit(2)).thenReturn(slice1Page2);
+
+        // Second slice, from 55 on
+        Query slice2 = Mockito.mock(Query.class);
+        Query slice2Ordered = Mockito.mock(Query.class);
+        Query slice2Page1 = mockPage(Collections.singletonList(docF));
+        Mockito.when(query.whereGreaterThanOrEqualTo(TIME, 55L)).thenReturn(slice2);
+        Mockito.when(slice2.orderBy(TIME)).thenReturn(slice2Ordered);
+        Mockito.when(slice2Ordered.limit(2)).thenReturn(slice2Page1);
+
+        TimeSlicedPageIterator iterator = new TimeSlicedPageIterator(query, READ_LIMITER,
+                MoreExecutors.directExecutor(), TIME, 2, 4, 2, 2);
+        List<String> ids = new ArrayList<>();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().getId());
+        }
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f"), ids);
+    }
+
+    /**
+     * Given a query whose documents fit in the first page, verify that no other query is made.
+     */
+    @Test
+    public void testLightUser() {
+        QueryDocumentSnapshot docA = mockDocument("a", TIME, 0);
+        Query query = Mockito.mock(Query.class);
+        Query ordered = Mockito.mock(Query.class);
+        Mockito.when(query.orderBy(TIME)).thenReturn(ordered);
+        Query firstPage = mockPage(Collections.singletonList(docA));
+        Mockito.when(ordered.limit(2)).thenReturn(firstPage);
+
+        TimeSlicedPageIterator iterator = new TimeSlicedPageIterator(query, READ_LIMITER,
+                MoreExecutors.directExecutor(), TIME, 2, 4, 2, 2);
+        assertSame(docA, iterator.next());
+        assertFalse(iterator.hasNext());
+        Mockito.verify(query, Mockito.never()).select(TIME);
+    }
+}
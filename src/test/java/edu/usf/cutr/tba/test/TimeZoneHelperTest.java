@@ -0,0 +1,84 @@
+package edu.usf.cutr.tba.test;
+
+import edu.usf.cutr.tba.utils.TimeZoneHelper;
+import net.iakovlev.timeshape.TimeZoneEngine;
+import org.junit.Test;
+
+import java.time.ZoneId;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the cached time zone lookups
+ */
+public class TimeZoneHelperTest {
+
+    private static final ZoneId EASTERN = ZoneId.of("America/New_York");
+
+    private static final ZoneId CENTRAL = ZoneId.of("America/Chicago");
+
+    /**
+     * Given locations every 5 meters on a line crossing the border between Alabama and Georgia, looked up from both
+     * ends, verify that the time zone changes exactly once and at the same location in both directions.
+     */
+    @Test
+    public void testBorderCells() {
+        TimeZoneHelper timeZoneHelper = TimeZoneHelper.getInstance(null);
+        double lat = 32.47;
+        int steps = 8000;
+        ZoneId[] westToEast = new ZoneId[steps];
+        for (int i = 0; i < steps; i++) {
+            westToEast[i] = timeZoneHelper.query(lat, -85.2 + i * 0.00005);
+        }
+        for (int i = steps - 1; i >= 0; i--) {
+            assertEquals(westToEast[i], timeZoneHelper.query(lat, -85.2 + i * 0.00005));
+        }
+
+        assertEquals(CENTRAL, westToEast[0]);
+        assertEquals(EASTERN, westToEast[steps - 1]);
+        int changes = 0;
+        for (int i = 1; i < steps; i++) {
+            assertTrue(westToEast[i].equals(CENTRAL) || westToEast[i].equals(EASTERN));
+            if (!westToEast[i].equals(westToEast[i - 1])) {
+                changes++;
+            }
+        }
+        assertEquals(1, changes);
+    }
+
+    /**
+     * Given random locations around time zone borders in the U.S., verify that the cached lookups return the same
+     * time zone as the engine for every location.
+     */
+    @Test
+    public void testSameAsEngine() {
+        TimeZoneEngine engine = TimeZoneEngine.initialize();
+        TimeZoneHelper timeZoneHelper = TimeZoneHelper.getInstance(null);
+        double[][] areas = {{32.40, -85.10}, {41.60, -86.90}, {36.90, -114.10}, {25.76, -80.19}};
+        Random random = new Random(42);
+        for (double[] area : areas) {
+            for (int i = 0; i < 300; i++) {
+                double lat = area[0] + random.nextDouble() * 0.05;
+                double lon = area[1] + random.nextDouble() * 0.05;
+                assertEquals(engine.query(lat, lon).orElse(null), timeZoneHelper.query(lat, lon));
+            }
+        }
+    }
+
+    /**
+     * Given two jobs of the same process with the bounds of North America and of Europe, verify that each job gets
+     * the time zones of its own bounds and that jobs with the same bounds share them.
+     */
+    @Test
+    public void testBoundsPerJob() {
+        TimeZoneHelper northAmerica = TimeZoneHelper.getInstance(new double[]{18, -180, 72, -50});
+        TimeZoneHelper europe = TimeZoneHelper.getInstance(new double[]{35, -25, 72, 45});
+
+        assertSame(northAmerica, TimeZoneHelper.getInstance(new double[]{18, -180, 72, -50}));
+        assertNotSame(northAmerica, europe);
+        assertEquals(EASTERN, northAmerica.query(27.95, -82.46));
+        assertEquals(ZoneId.of("Europe/Paris"), europe.query(48.86, 2.35));
+        assertEquals(CENTRAL, europe.query(41.88, -87.63));
+    }
+}
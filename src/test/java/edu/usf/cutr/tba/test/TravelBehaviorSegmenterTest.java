@@ -0,0 +1,175 @@
+package edu.usf.cutr.tba.test;
+
+import edu.usf.cutr.tba.constants.TravelBehaviorConstants;
+import edu.usf.cutr.tba.manager.TravelBehaviorSegmenter;
+import edu.usf.cutr.tba.model.TravelBehaviorDocument;
+import edu.usf.cutr.tba.model.TravelBehaviorInfo;
+import edu.usf.cutr.tba.model.TravelBehaviorRecord;
+import edu.usf.cutr.tba.model.UserWatermark;
+import edu.usf.cutr.tba.options.ProgramOptions;
+import edu.usf.cutr.tba.utils.DeviceInfoTimeline;
+import edu.usf.cutr.tba.utils.TravelBehaviorUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests segmenting a stream of activity transitions into travel behavior records
+ */
+public class TravelBehaviorSegmenterTest {
+
+    private static final String USER_ID = "test-user";
+
+    // 2019-06-03 10:00 in Tampa, FL
+    private static final long START_MILLIS = 1559570400000L;
+
+    private static TravelBehaviorInfo.TravelBehaviorActivity activity(String detectedActivity, String type,
+                                                                      long timeMillis) {
+        TravelBehaviorInfo.TravelBehaviorActivity activity = new TravelBehaviorInfo.TravelBehaviorActivity(
+                detectedActivity, type);
+        activity.eventTimeMillis = timeMillis;
+        return activity;
+    }
+
+    private static TravelBehaviorDocument document(String id, long timeMillis,
+                                                   TravelBehaviorInfo.TravelBehaviorActivity... activities) {
+        // Tampa, FL
+        return document(id, 28.0587, -82.4139, timeMillis, activities);
+    }
+
+    private static TravelBehaviorDocument document(String id, double lat, double lon, long timeMillis,
+                                                   TravelBehaviorInfo.TravelBehaviorActivity... activities) {
+        TravelBehaviorInfo.LocationInfo location = new TravelBehaviorInfo.LocationInfo();
+        location.lat = lat;
+        location.lon = lon;
+        location.time = timeMillis;
+        location.accuracy = 10f;
+        location.provider = TravelBehaviorRecord.FUSED;
+        TravelBehaviorInfo info = new TravelBehaviorInfo(Arrays.asList(activities), null);
+        info.locationInfoList = new ArrayList<>(Collections.singletonList(location));
+        info.firstActivityEventTimeMillis = timeMillis;
+        return new TravelBehaviorDocument(id, info);
+    }
+
+    /**
+     * Given a walking trip followed right away by a running trip, verify that a single walking and running record
+     * is emitted when the segmenter is finished, and that the watermark restarts from the first document of the day.
+     */
+    @Test
+    public void testMergeWalkingAndRunning() {
+        long tenMinutes = TimeUnit.MINUTES.toMillis(10);
+        List<TravelBehaviorRecord> records = new ArrayList<>();
+        TravelBehaviorSegmenter segmenter = new TravelBehaviorSegmenter(USER_ID,
+                new DeviceInfoTimeline(Collections.emptyList()), new ProgramOptions.Builder().build(), 0,
+                (dayStartMillis, day) -> records.addAll(day));
+
+        segmenter.accept(document("1", START_MILLIS, activity(TravelBehaviorConstants.ACTIVITY_WALKING,
+                TravelBehaviorConstants.ACTIVITY_TRANSITION_ENTER, START_MILLIS)));
+        segmenter.accept(document("2", START_MILLIS + tenMinutes,
+                activity(TravelBehaviorConstants.ACTIVITY_WALKING, TravelBehaviorConstants.ACTIVITY_TRANSITION_EXIT,
+                        START_MILLIS + tenMinutes),
+                activity(TravelBehaviorConstants.ACTIVITY_RUNNING, TravelBehaviorConstants.ACTIVITY_TRANSITION_ENTER,
+                        START_MILLIS + tenMinutes)));
+        segmenter.accept(document("3", START_MILLIS + 2 * tenMinutes,
+                activity(TravelBehaviorConstants.ACTIVITY_RUNNING, TravelBehaviorConstants.ACTIVITY_TRANSITION_EXIT,
+                        START_MILLIS + 2 * tenMinutes)));
+
+        // The day is still open
+        assertTrue(records.isEmpty());
+        UserWatermark watermark = segmenter.getWatermark();
+        assertEquals("1", watermark.getDocumentId());
+        assertTrue(watermark.isInclusive());
+
+        segmenter.finish();
+        assertEquals(1, records.size());
+        TravelBehaviorRecord record = records.get(0);
+        assertEquals(TravelBehaviorConstants.ACTIVITY_WALKING_AND_RUNNING, record.getGoogleActivity());
+        assertEquals(TravelBehaviorUtils.getTripId(USER_ID, "1"), record.getTripId());
+        assertEquals(Long.valueOf(START_MILLIS + 2 * tenMinutes), record.getActivityEndTimeMillis());
+    }
+
+    /**
+     * Given a still trip followed by an enter activity without its exit activity, verify that the day is not
+     * completed before 3 AM of the next day in Tampa, that it is completed after it, and that the watermark then
+     * restarts from the pending enter activity.
+     */
+    @Test
+    public void testFinishDayEndedBefore() {
+        long tenMinutes = TimeUnit.MINUTES.toMillis(10);
+        List<TravelBehaviorRecord> records = new ArrayList<>();
+        TravelBehaviorSegmenter segmenter = new TravelBehaviorSegmenter(USER_ID,
+                new DeviceInfoTimeline(Collections.emptyList()), new ProgramOptions.Builder().build(), 0,
+                (dayStartMillis, day) -> records.addAll(day));
+
+        segmenter.accept(document("1", START_MILLIS, activity(TravelBehaviorConstants.ACTIVITY_STILL,
+                TravelBehaviorConstants.ACTIVITY_TRANSITION_ENTER, START_MILLIS)));
+        segmenter.accept(document("2", START_MILLIS + tenMinutes,
+                activity(TravelBehaviorConstants.ACTIVITY_STILL, TravelBehaviorConstants.ACTIVITY_TRANSITION_EXIT,
+                        START_MILLIS + tenMinutes),
+                activity(TravelBehaviorConstants.ACTIVITY_WALKING, TravelBehaviorConstants.ACTIVITY_TRANSITION_ENTER,
+                        START_MILLIS + tenMinutes)));
+
+        // 2019-06-04 03:00 in Tampa, FL
+        long dayEndMillis = START_MILLIS + TimeUnit.HOURS.toMillis(17);
+        segmenter.finishDayEndedBefore(dayEndMillis - 1);
+        assertTrue(records.isEmpty());
+        assertEquals("1", segmenter.getWatermark().getDocumentId());
+
+        segmenter.finishDayEndedBefore(dayEndMillis);
+        assertEquals(1, records.size());
+        assertEquals(TravelBehaviorConstants.ACTIVITY_STILL, records.get(0).getGoogleActivity());
+        UserWatermark watermark = segmenter.getWatermark();
+        assertEquals("2", watermark.getDocumentId());
+        assertTrue(watermark.isInclusive());
+    }
+
+    /**
+     * Given a day that starts in Tampa (Eastern time) and ends in Pensacola (Central time), verify that the day is
+     * completed at 3 AM of the next day in Pensacola, where a later record would be in the same day until then.
+     */
+    @Test
+    public void testFinishDayEndedBeforeAcrossTimeZones() {
+        long tenMinutes = TimeUnit.MINUTES.toMillis(10);
+        long sixHours = TimeUnit.HOURS.toMillis(6);
+        double pensacolaLat = 30.4213;
+        double pensacolaLon = -87.2169;
+        List<TravelBehaviorRecord> records = new ArrayList<>();
+        TravelBehaviorSegmenter segmenter = new TravelBehaviorSegmenter(USER_ID,
+                new DeviceInfoTimeline(Collections.emptyList()), new ProgramOptions.Builder().build(), 0,
+                (dayStartMillis, day) -> records.addAll(day));
+
+        segmenter.accept(document("1", START_MILLIS, activity(TravelBehaviorConstants.ACTIVITY_STILL,
+                TravelBehaviorConstants.ACTIVITY_TRANSITION_ENTER, START_MILLIS)));
+        segmenter.accept(document("2", START_MILLIS + tenMinutes,
+                activity(TravelBehaviorConstants.ACTIVITY_STILL, TravelBehaviorConstants.ACTIVITY_TRANSITION_EXIT,
+                        START_MILLIS + tenMinutes),
+                activity(TravelBehaviorConstants.ACTIVITY_WALKING, TravelBehaviorConstants.ACTIVITY_TRANSITION_ENTER,
+                        START_MILLIS + tenMinutes)));
+        segmenter.accept(document("3", pensacolaLat, pensacolaLon, START_MILLIS + sixHours,
+                activity(TravelBehaviorConstants.ACTIVITY_WALKING, TravelBehaviorConstants.ACTIVITY_TRANSITION_EXIT,
+                        START_MILLIS + sixHours),
+                activity(TravelBehaviorConstants.ACTIVITY_STILL, TravelBehaviorConstants.ACTIVITY_TRANSITION_ENTER,
+                        START_MILLIS + sixHours)));
+        segmenter.accept(document("4", pensacolaLat, pensacolaLon, START_MILLIS + sixHours + tenMinutes,
+                activity(TravelBehaviorConstants.ACTIVITY_STILL, TravelBehaviorConstants.ACTIVITY_TRANSITION_EXIT,
+                        START_MILLIS + sixHours + tenMinutes)));
+
+        // 2019-06-04 03:00 in Pensacola, FL, an hour after 3 AM in Tampa
+        long dayEndMillis = START_MILLIS + TimeUnit.HOURS.toMillis(18);
+        TravelBehaviorRecord lastRecord = new TravelBehaviorRecord(USER_ID).setStartLat(pensacolaLat)
+                .setStartLon(pensacolaLon).setActivityEndTimeMillis(dayEndMillis - 1);
+        segmenter.finishDayEndedBefore(dayEndMillis - 1);
+        assertTrue(records.isEmpty());
+
+        segmenter.finishDayEndedBefore(dayEndMillis);
+        assertFalse(records.isEmpty());
+        assertTrue(TravelBehaviorUtils.isInSameDay(records, lastRecord, 3));
+        assertFalse(TravelBehaviorUtils.isInSameDay(records, lastRecord.setActivityEndTimeMillis(dayEndMillis), 3));
+    }
+}